@@ -0,0 +1,142 @@
+package com.potterhsu.rtsplibrary.benchmark;
+
+import com.potterhsu.rtsplibrary.NativeBufferCallback;
+import com.potterhsu.rtsplibrary.NativeCallback;
+import com.potterhsu.rtsplibrary.NativePacketCallback;
+import com.potterhsu.rtsplibrary.NativeYuvCallback;
+import com.potterhsu.rtsplibrary.RtspClient;
+import com.potterhsu.rtsplibrary.RtspOptions;
+import com.potterhsu.rtsplibrary.RtspStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the generated clip from a {@link LoopbackRtspServer} with each delivery mode.  One
+ * benchmark operation is one frame reaching the callback, so the throughput score is frames per
+ * second.  Run with {@code -prof gc} (the default in build.gradle) for the allocation rate per
+ * frame.
+ * <p>
+ * Unpaced, the server sends as fast as the client reads, which measures the maximum frame rate.
+ * Paced, it sends in real time and the per iteration output shows PTS to delivery latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PlaybackBenchmark {
+
+    private static final int FRAME_RATE = 30;
+    private static final int BUFFER_COUNT = 4;
+
+    @Param({"BYTE_ARRAY", "BUFFER", "YUV", "PACKETS"})
+    public String delivery;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    @Param({"false", "true"})
+    public boolean paced;
+
+    private final Semaphore frames = new Semaphore(0);
+    private LoopbackRtspServer server;
+    private RtspClient client;
+    private Thread playThread;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LoopbackRtspServer(H264Clip.fromSystemProperty(), FRAME_RATE, paced);
+        client = createClient();
+        client.setPipelined(pipelined);
+        RtspOptions options = RtspOptions.lowestLatency().buildUpon()
+                .setTransport(RtspOptions.TRANSPORT_TCP)
+                .build();
+        String url = server.getUrl();
+        playThread = new Thread(() -> client.play(url, options), "play");
+        playThread.start();
+    }
+
+    private RtspClient createClient() {
+        switch (delivery) {
+            case "BYTE_ARRAY":
+                return new RtspClient(new NativeCallback() {
+                    @Override
+                    public void onFrame(byte[] frame, int nChannel, int width, int height) {
+                        frames.release();
+                    }
+                });
+            case "BUFFER":
+                return new RtspClient(new NativeBufferCallback() {
+                    @Override
+                    public void onFrame(ByteBuffer frame, int bufferIndex, int nChannel, int width, int height) {
+                        client.releaseFrame(bufferIndex);
+                        frames.release();
+                    }
+                }, BUFFER_COUNT);
+            case "YUV":
+                return new RtspClient(new NativeYuvCallback() {
+                    @Override
+                    public void onFrame(ByteBuffer frame, int bufferIndex, int width, int height, int yStride, int uvStride) {
+                        client.releaseFrame(bufferIndex);
+                        frames.release();
+                    }
+                }, BUFFER_COUNT);
+            case "PACKETS":
+                return new RtspClient(new NativePacketCallback() {
+                    @Override
+                    public void onCodecConfig(ByteBuffer config, int size) {
+                    }
+
+                    @Override
+                    public void onPacket(ByteBuffer packet, int size, long ptsUs, long dtsUs, boolean keyFrame) {
+                        frames.release();
+                    }
+                });
+            default:
+                throw new IllegalArgumentException("Unknown delivery: " + delivery);
+        }
+    }
+
+    @Benchmark
+    public void frame() throws InterruptedException {
+        if (!frames.tryAcquire(5, TimeUnit.SECONDS))
+            throw new IllegalStateException("No frame for 5 seconds");
+    }
+
+    @TearDown(Level.Iteration)
+    public void printStats() {
+        RtspStats stats = client.getStats();
+        System.out.printf("%n  latency p50 %d us, p99 %d us, max %d us; callback p99 %d us; decode p99 %d us; dropped %d frames%n",
+                stats.getPercentileUs(RtspStats.STAGE_LATENCY, 50),
+                stats.getPercentileUs(RtspStats.STAGE_LATENCY, 99),
+                stats.getMaxUs(RtspStats.STAGE_LATENCY),
+                stats.getPercentileUs(RtspStats.STAGE_CALLBACK, 99),
+                stats.getPercentileUs(RtspStats.STAGE_DECODE, 99),
+                stats.getDroppedFrameCount());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        playThread.join();
+        client.dispose();
+        server.close();
+    }
+}
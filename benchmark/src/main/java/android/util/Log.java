@@ -0,0 +1,38 @@
+package android.util;
+
+/**
+ * Stand-in for the Android logger so the library's Java sources build and run on the host.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        int written = println("E", tag, msg);
+        tr.printStackTrace();
+        return written;
+    }
+
+    private static int println(String priority, String tag, String msg) {
+        String line = priority + " " + tag + ": " + msg;
+        System.err.println(line);
+        return line.length();
+    }
+}
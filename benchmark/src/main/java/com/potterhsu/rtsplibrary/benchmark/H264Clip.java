@@ -0,0 +1,123 @@
+package com.potterhsu.rtsplibrary.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Annex-B H264 elementary stream split into access units, each a list of NAL units without
+ * start codes.
+ */
+public final class H264Clip {
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR_SLICE = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    private final List<List<byte[]>> accessUnits;
+    private final byte[] sps;
+    private final byte[] pps;
+
+    private H264Clip(List<List<byte[]>> accessUnits, byte[] sps, byte[] pps) {
+        this.accessUnits = accessUnits;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    /**
+     * Loads the clip named by the rtsp.clip system property, which the benchmark build generates.
+     */
+    public static H264Clip fromSystemProperty() throws IOException {
+        String path = System.getProperty("rtsp.clip");
+        if (path == null)
+            throw new IllegalStateException("Set -Drtsp.clip to an Annex-B H264 file");
+        return load(Files.readAllBytes(Paths.get(path)));
+    }
+
+    public static H264Clip load(byte[] stream) {
+        List<List<byte[]>> accessUnits = new ArrayList<>();
+        List<byte[]> current = new ArrayList<>();
+        boolean currentHasSlice = false;
+        byte[] sps = null;
+        byte[] pps = null;
+
+        for (byte[] nal : splitNalUnits(stream)) {
+            int type = nal[0] & 0x1f;
+            // A new access unit starts with an AUD, parameter sets or the first slice of a picture
+            // (first_mb_in_slice 0, i.e. its ue(v) starts with a 1 bit).
+            boolean firstSlice = (type == NAL_SLICE || type == NAL_IDR_SLICE) && nal.length > 1 && (nal[1] & 0x80) != 0;
+            if (currentHasSlice && (type == NAL_AUD || type == NAL_SPS || type == NAL_PPS || firstSlice)) {
+                accessUnits.add(current);
+                current = new ArrayList<>();
+                currentHasSlice = false;
+            }
+            if (type == NAL_SPS && sps == null)
+                sps = nal;
+            if (type == NAL_PPS && pps == null)
+                pps = nal;
+            currentHasSlice |= type == NAL_SLICE || type == NAL_IDR_SLICE;
+            current.add(nal);
+        }
+        if (currentHasSlice)
+            accessUnits.add(current);
+
+        if (sps == null || pps == null || accessUnits.isEmpty())
+            throw new IllegalArgumentException("Not an H264 stream with SPS, PPS and slices");
+        return new H264Clip(Collections.unmodifiableList(accessUnits), sps, pps);
+    }
+
+    private static List<byte[]> splitNalUnits(byte[] stream) {
+        List<byte[]> nalUnits = new ArrayList<>();
+        int start = -1;
+        int i = 0;
+        while (i + 2 < stream.length) {
+            if (stream[i] == 0 && stream[i + 1] == 0 && stream[i + 2] == 1) {
+                if (start >= 0)
+                    nalUnits.add(trimmedCopy(stream, start, i));
+                i += 3;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (start >= 0 && start < stream.length)
+            nalUnits.add(trimmedCopy(stream, start, stream.length));
+        return nalUnits;
+    }
+
+    /**
+     * Copies a NAL unit, dropping the zero byte of a following 4 byte start code.
+     */
+    private static byte[] trimmedCopy(byte[] stream, int from, int to) {
+        while (to > from && stream[to - 1] == 0)
+            to--;
+        byte[] nal = new byte[to - from];
+        System.arraycopy(stream, from, nal, 0, nal.length);
+        return nal;
+    }
+
+    public List<List<byte[]>> getAccessUnits() {
+        return accessUnits;
+    }
+
+    /**
+     * sprop-parameter-sets for the SDP
+     */
+    public String getParameterSets() {
+        Base64.Encoder encoder = Base64.getEncoder();
+        return encoder.encodeToString(sps) + "," + encoder.encodeToString(pps);
+    }
+
+    /**
+     * profile-level-id for the SDP
+     */
+    public String getProfileLevelId() {
+        return String.format("%02x%02x%02x", sps[1] & 0xff, sps[2] & 0xff, sps[3] & 0xff);
+    }
+}
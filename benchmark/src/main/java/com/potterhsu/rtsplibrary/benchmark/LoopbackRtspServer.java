@@ -0,0 +1,303 @@
+package com.potterhsu.rtsplibrary.benchmark;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Just enough of an RTSP server to stream an {@link H264Clip} to FFmpeg on 127.0.0.1: DESCRIBE,
+ * SETUP with RTP interleaved in the TCP connection, PLAY and TEARDOWN.  The clip loops until the
+ * client goes away, optionally paced at its frame rate.
+ * <p>
+ * Clients have to ask for TCP transport, e.g. {@code RtspOptions.TRANSPORT_TCP}.
+ */
+public final class LoopbackRtspServer implements Closeable {
+
+    private static final int PAYLOAD_TYPE = 96;
+    private static final int CLOCK_RATE = 90000;
+    private static final int MAX_PAYLOAD = 1400;
+    private static final int NAL_FU_A = 28;
+
+    private final H264Clip clip;
+    private final int frameRate;
+    private final boolean paced;
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * @param paced send frames in real time at frameRate, or as fast as the client reads them
+     */
+    public LoopbackRtspServer(H264Clip clip, int frameRate, boolean paced) throws IOException {
+        this.clip = clip;
+        this.frameRate = frameRate;
+        this.paced = paced;
+        this.serverSocket = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        this.acceptThread = new Thread(this::acceptLoop, "rtsp-accept");
+        this.acceptThread.start();
+    }
+
+    public String getUrl() {
+        return "rtsp://127.0.0.1:" + serverSocket.getLocalPort() + "/clip";
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : connections)
+            socket.close();
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                new Thread(() -> serve(socket), "rtsp-connection").start();
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Thread streamer = null;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream output = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readRequestLine(reader)) != null) {
+                if (requestLine.isEmpty())
+                    continue;
+                String method = requestLine.split(" ")[0];
+                String cSeq = "0";
+                String transport = "";
+                int contentLength = 0;
+                String header;
+                while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                    int colon = header.indexOf(':');
+                    if (colon < 0)
+                        continue;
+                    String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                    String value = header.substring(colon + 1).trim();
+                    if (name.equals("cseq"))
+                        cSeq = value;
+                    else if (name.equals("transport"))
+                        transport = value;
+                    else if (name.equals("content-length"))
+                        contentLength = Integer.parseInt(value);
+                }
+                skipFully(reader, contentLength);
+
+                switch (method) {
+                    case "OPTIONS":
+                        respond(output, "200 OK", cSeq, "Public: OPTIONS, DESCRIBE, SETUP, PLAY, TEARDOWN, GET_PARAMETER\r\n", null);
+                        break;
+                    case "DESCRIBE":
+                        respond(output, "200 OK", cSeq, "Content-Base: " + getUrl() + "/\r\nContent-Type: application/sdp\r\n", sdp());
+                        break;
+                    case "SETUP":
+                        if (!transport.contains("TCP")) {
+                            respond(output, "461 Unsupported Transport", cSeq, "", null);
+                            break;
+                        }
+                        respond(output, "200 OK", cSeq, "Session: 1;timeout=60\r\n" +
+                                "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n", null);
+                        break;
+                    case "PLAY":
+                        respond(output, "200 OK", cSeq, "Session: 1\r\nRange: npt=0.000-\r\n", null);
+                        if (streamer == null) {
+                            streamer = new Thread(() -> stream(socket, output), "rtsp-stream");
+                            streamer.start();
+                        }
+                        break;
+                    case "TEARDOWN":
+                        respond(output, "200 OK", cSeq, "Session: 1\r\n", null);
+                        socket.close();
+                        break;
+                    default:
+                        respond(output, "200 OK", cSeq, "Session: 1\r\n", null);
+                        break;
+                }
+            }
+        } catch (SocketException e) {
+            // Client or close() hung up
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            connections.remove(socket);
+            if (streamer != null) {
+                try {
+                    streamer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Skips interleaved RTCP the client sends between requests.  ISO-8859-1 maps bytes to chars
+     * one to one, so the binary frames can be read through the same reader.
+     */
+    private static String readRequestLine(BufferedReader reader) throws IOException {
+        while (true) {
+            reader.mark(1);
+            int c = reader.read();
+            if (c < 0)
+                return null;
+            if (c != '$') {
+                reader.reset();
+                return reader.readLine();
+            }
+            reader.read();
+            int length = (reader.read() << 8) | reader.read();
+            skipFully(reader, length);
+        }
+    }
+
+    private static void skipFully(BufferedReader reader, long count) throws IOException {
+        while (count > 0) {
+            long skipped = reader.skip(count);
+            if (skipped <= 0)
+                throw new SocketException("Connection closed");
+            count -= skipped;
+        }
+    }
+
+    private String sdp() {
+        return "v=0\r\n" +
+                "o=- 0 0 IN IP4 127.0.0.1\r\n" +
+                "s=RtspLibrary loopback\r\n" +
+                "c=IN IP4 127.0.0.1\r\n" +
+                "t=0 0\r\n" +
+                "m=video 0 RTP/AVP " + PAYLOAD_TYPE + "\r\n" +
+                "a=rtpmap:" + PAYLOAD_TYPE + " H264/" + CLOCK_RATE + "\r\n" +
+                "a=fmtp:" + PAYLOAD_TYPE + " packetization-mode=1;profile-level-id=" + clip.getProfileLevelId() +
+                ";sprop-parameter-sets=" + clip.getParameterSets() + "\r\n" +
+                "a=control:track0\r\n";
+    }
+
+    private static void respond(OutputStream output, String status, String cSeq, String headers, String body) throws IOException {
+        byte[] content = body != null ? body.getBytes(StandardCharsets.ISO_8859_1) : new byte[0];
+        String response = "RTSP/1.0 " + status + "\r\n" +
+                "CSeq: " + cSeq + "\r\n" +
+                headers +
+                (content.length > 0 ? "Content-Length: " + content.length + "\r\n" : "") +
+                "\r\n";
+        synchronized (output) {
+            output.write(response.getBytes(StandardCharsets.ISO_8859_1));
+            output.write(content);
+            output.flush();
+        }
+    }
+
+    /**
+     * Sends the clip over and over, one RTP packet per interleaved frame on channel 0.
+     */
+    private void stream(Socket socket, OutputStream output) {
+        byte[] packet = new byte[4 + 12 + MAX_PAYLOAD + 2];
+        int sequence = 0;
+        long frame = 0;
+        long startNanos = System.nanoTime();
+        long frameNanos = TimeUnit.SECONDS.toNanos(1) / frameRate;
+        try {
+            while (!socket.isClosed() && !closed) {
+                for (List<byte[]> accessUnit : clip.getAccessUnits()) {
+                    if (paced) {
+                        long delayNanos = startNanos + frame * frameNanos - System.nanoTime();
+                        if (delayNanos > 0)
+                            TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    }
+                    int timestamp = (int) (frame * CLOCK_RATE / frameRate);
+                    for (int n = 0; n < accessUnit.size(); n++) {
+                        sequence = sendNal(output, packet, accessUnit.get(n), n == accessUnit.size() - 1, sequence, timestamp);
+                    }
+                    frame++;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Client went away
+        }
+    }
+
+    /**
+     * Single NAL unit packet if it fits, FU-A fragments otherwise.
+     * @return next sequence number
+     */
+    private static int sendNal(OutputStream output, byte[] packet, byte[] nal, boolean lastOfFrame,
+                               int sequence, int timestamp) throws IOException {
+        if (nal.length <= MAX_PAYLOAD) {
+            System.arraycopy(nal, 0, packet, 16, nal.length);
+            sendRtp(output, packet, nal.length, lastOfFrame, sequence, timestamp);
+            return (sequence + 1) & 0xffff;
+        }
+
+        byte indicator = (byte) ((nal[0] & 0xe0) | NAL_FU_A);
+        int type = nal[0] & 0x1f;
+        int offset = 1;
+        while (offset < nal.length) {
+            int length = Math.min(MAX_PAYLOAD - 2, nal.length - offset);
+            boolean first = offset == 1;
+            boolean last = offset + length == nal.length;
+            packet[16] = indicator;
+            packet[17] = (byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0) | type);
+            System.arraycopy(nal, offset, packet, 18, length);
+            sendRtp(output, packet, length + 2, lastOfFrame && last, sequence, timestamp);
+            sequence = (sequence + 1) & 0xffff;
+            offset += length;
+        }
+        return sequence;
+    }
+
+    private static void sendRtp(OutputStream output, byte[] packet, int payloadLength, boolean marker,
+                                int sequence, int timestamp) throws IOException {
+        int rtpLength = 12 + payloadLength;
+        // Interleaved frame header: '$', channel, length
+        packet[0] = '$';
+        packet[1] = 0;
+        packet[2] = (byte) (rtpLength >> 8);
+        packet[3] = (byte) rtpLength;
+        // RTP header, version 2, fixed SSRC
+        packet[4] = (byte) 0x80;
+        packet[5] = (byte) ((marker ? 0x80 : 0) | PAYLOAD_TYPE);
+        packet[6] = (byte) (sequence >> 8);
+        packet[7] = (byte) sequence;
+        packet[8] = (byte) (timestamp >> 24);
+        packet[9] = (byte) (timestamp >> 16);
+        packet[10] = (byte) (timestamp >> 8);
+        packet[11] = (byte) timestamp;
+        packet[12] = 0x12;
+        packet[13] = 0x34;
+        packet[14] = 0x56;
+        packet[15] = 0x78;
+        synchronized (output) {
+            output.write(packet, 0, 4 + rtpLength);
+        }
+    }
+}
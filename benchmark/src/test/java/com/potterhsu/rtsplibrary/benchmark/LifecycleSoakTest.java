@@ -0,0 +1,192 @@
+package com.potterhsu.rtsplibrary.benchmark;
+
+import com.potterhsu.rtsplibrary.NativeBufferCallback;
+import com.potterhsu.rtsplibrary.NativeCallback;
+import com.potterhsu.rtsplibrary.NativePacketCallback;
+import com.potterhsu.rtsplibrary.NativeYuvCallback;
+import com.potterhsu.rtsplibrary.RtspClient;
+import com.potterhsu.rtsplibrary.RtspOptions;
+import com.potterhsu.rtsplibrary.SharedSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Connects, plays a few frames and stops over and over against a {@link LoopbackRtspServer},
+ * cycling through every delivery mode, the pipeline, restarts of the same client and a
+ * {@link SharedSource}, and checks that the process neither grows its resident memory nor keeps
+ * threads once the allocators have warmed up.  Run with {@code ./gradlew :benchmark:test},
+ * {@code -PsoakIterations=} for a longer soak.
+ */
+public class LifecycleSoakTest {
+
+    private static final int FRAME_RATE = 30;
+    private static final int BUFFER_COUNT = 4;
+    private static final int FRAMES_PER_PLAY = 3;
+    // Each client is played this many times before it is disposed
+    private static final int PLAYS_PER_CLIENT = 3;
+    private static final int WARMUP_ITERATIONS = 60;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final long PAGE_SIZE = 4096;
+    private static final long MAX_RESIDENT_GROWTH = 16 * 1024 * 1024;
+    private static final int MAX_THREAD_GROWTH = 4;
+
+    private final Semaphore frames = new Semaphore(0);
+    private LoopbackRtspServer server;
+    private ExecutorService callbackExecutor;
+    private RtspOptions options;
+    private RtspClient client;
+    private SharedSource source;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LoopbackRtspServer(H264Clip.fromSystemProperty(), FRAME_RATE, false);
+        // A fixed pool, so callback threads don't count as leaked
+        callbackExecutor = Executors.newFixedThreadPool(2);
+        options = RtspOptions.lowestLatency().buildUpon()
+                .setTransport(RtspOptions.TRANSPORT_TCP)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (source != null)
+            source.release();
+        if (client != null)
+            client.dispose();
+        callbackExecutor.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void nativeMemoryStaysFlat() throws Exception {
+        int iterations = Integer.getInteger("rtsp.soak.iterations", 2000);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            iterate(i);
+        long baselineBytes = residentBytes();
+        int baselineThreads = threadCount();
+
+        for (int i = 0; i < iterations; i++) {
+            iterate(i);
+            if ((i + 1) % 500 == 0)
+                System.out.printf("%d iterations, resident %+d KB, threads %+d%n", i + 1,
+                        (residentBytes() - baselineBytes) / 1024, threadCount() - baselineThreads);
+        }
+
+        long growth = residentBytes() - baselineBytes;
+        int threadGrowth = threadCount() - baselineThreads;
+        assertTrue("Resident memory grew by " + growth / 1024 + " KB over " + iterations + " iterations",
+                growth < MAX_RESIDENT_GROWTH);
+        assertTrue("Thread count grew by " + threadGrowth, threadGrowth <= MAX_THREAD_GROWTH);
+    }
+
+    /**
+     * One connect / play / stop, a new client every {@link #PLAYS_PER_CLIENT} iterations.
+     */
+    private void iterate(int i) throws Exception {
+        int variant = i / PLAYS_PER_CLIENT % 6;
+        if (i % PLAYS_PER_CLIENT == 0) {
+            client = createClient(variant);
+            client.setCallbackExecutor(callbackExecutor);
+            client.setPipelined(variant == 1);
+            client.setGopCache(1024 * 1024, 2 * 1000000L);
+            if (variant == 5) {
+                source = new SharedSource();
+                source.getConnection().setCallbackExecutor(callbackExecutor);
+                source.subscribe(client);
+            }
+        }
+
+        RtspClient connection = source != null ? source.getConnection() : client;
+        connection.start(server.getUrl(), options).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!frames.tryAcquire(FRAMES_PER_PLAY, TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            fail("No frames in iteration " + i);
+        // Completes once the callbacks queued before ran
+        connection.stopAsync().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        frames.drainPermits();
+
+        if (i % PLAYS_PER_CLIENT == PLAYS_PER_CLIENT - 1) {
+            if (source != null) {
+                source.release();
+                source = null;
+            }
+            client.dispose();
+            client = null;
+        }
+    }
+
+    private RtspClient createClient(int variant) {
+        switch (variant) {
+            case 0:
+            case 1:
+            case 5:
+                return new RtspClient(new NativeYuvCallback() {
+                    @Override
+                    public void onFrame(ByteBuffer frame, int bufferIndex, int width, int height, int yStride, int uvStride) {
+                        client.releaseFrame(bufferIndex);
+                        frames.release();
+                    }
+                }, BUFFER_COUNT);
+            case 2:
+                return new RtspClient(new NativeBufferCallback() {
+                    @Override
+                    public void onFrame(ByteBuffer frame, int bufferIndex, int nChannel, int width, int height) {
+                        client.releaseFrame(bufferIndex);
+                        frames.release();
+                    }
+                }, BUFFER_COUNT);
+            case 3:
+                return new RtspClient(new NativeCallback() {
+                    @Override
+                    public void onFrame(byte[] frame, int nChannel, int width, int height) {
+                        frames.release();
+                    }
+                });
+            default:
+                return new RtspClient(new NativePacketCallback() {
+                    @Override
+                    public void onCodecConfig(ByteBuffer config, int size) {
+                    }
+
+                    @Override
+                    public void onPacket(ByteBuffer packet, int size, long ptsUs, long dtsUs, boolean keyFrame) {
+                        frames.release();
+                    }
+                });
+        }
+    }
+
+    private static long residentBytes() throws IOException {
+        System.gc();
+        // Second field is the resident set in pages
+        String statm = new String(Files.readAllBytes(Paths.get("/proc/self/statm")), StandardCharsets.US_ASCII);
+        return Long.parseLong(statm.trim().split(" ")[1]) * PAGE_SIZE;
+    }
+
+    /**
+     * Native threads included, unlike {@link Thread#activeCount()}.
+     */
+    private static int threadCount() throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII);
+        for (String line : lines) {
+            if (line.startsWith("Threads:"))
+                return Integer.parseInt(line.substring("Threads:".length()).trim());
+        }
+        throw new IOException("No thread count in /proc/self/status");
+    }
+}
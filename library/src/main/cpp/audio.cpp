@@ -0,0 +1,132 @@
+#include "log.h"
+
+#include "audio.h"
+
+extern "C" {
+#include <libavutil/channel_layout.h>
+}
+
+static const char *TAG = __FILE__;
+
+AudioDecoder *audioDecoderCreate(const AudioConfig &config, AVStream *stream) {
+    AVCodec *codec = avcodec_find_decoder(stream->codecpar->codec_id);
+    if (codec == NULL) {
+        LOGW("Cannot find audio decoder %s", avcodec_get_name(stream->codecpar->codec_id));
+        return NULL;
+    }
+
+    AVCodecContext *context = avcodec_alloc_context3(codec);
+    if (context == NULL || avcodec_parameters_to_context(context, stream->codecpar) < 0) {
+        LOGW("Cannot set up audio decoder %s", codec->name);
+        avcodec_free_context(&context);
+        return NULL;
+    }
+    // Lets the decoder work out best effort timestamps
+    context->pkt_timebase = stream->time_base;
+    if (avcodec_open2(context, codec, NULL) < 0) {
+        LOGW("Cannot open audio decoder %s", codec->name);
+        avcodec_free_context(&context);
+        return NULL;
+    }
+    AVFrame *frame = av_frame_alloc();
+    if (frame == NULL) {
+        avcodec_free_context(&context);
+        return NULL;
+    }
+    LOGI("Decoding audio %s, %d Hz, %d channel(s)", codec->name, context->sample_rate, context->channels);
+
+    AudioDecoder *decoder = new AudioDecoder;
+    decoder->config = config;
+    decoder->stream = stream;
+    decoder->codecContext = context;
+    decoder->frame = frame;
+    decoder->swrContext = NULL;
+    decoder->inputFormat = AV_SAMPLE_FMT_NONE;
+    decoder->inputSampleRate = 0;
+    decoder->inputChannelLayout = 0;
+    decoder->sampleRate = 0;
+    decoder->channelCount = 0;
+    decoder->bytesPerSample = config.encoding == AUDIO_ENCODING_PCM_FLOAT ? 4 : 2;
+    return decoder;
+}
+
+/**
+ * (Re)creates the resampler whenever the decoded format changes, which some AAC streams do
+ * after their first frame.
+ */
+static bool updateResampler(AudioDecoder *decoder, const AVFrame *frame) {
+    int channels = av_frame_get_channels(frame);
+    int64_t layout = frame->channel_layout != 0 ? (int64_t) frame->channel_layout :
+                     av_get_default_channel_layout(channels);
+    if (decoder->swrContext != NULL && frame->format == decoder->inputFormat &&
+        frame->sample_rate == decoder->inputSampleRate && layout == decoder->inputChannelLayout) {
+        return true;
+    }
+
+    const AudioConfig &config = decoder->config;
+    decoder->sampleRate = config.sampleRate > 0 ? config.sampleRate : frame->sample_rate;
+    decoder->channelCount = config.channelCount > 0 ? config.channelCount : channels;
+    AVSampleFormat outputFormat = config.encoding == AUDIO_ENCODING_PCM_FLOAT ? AV_SAMPLE_FMT_FLT : AV_SAMPLE_FMT_S16;
+    decoder->swrContext = swr_alloc_set_opts(decoder->swrContext,
+                                             av_get_default_channel_layout(decoder->channelCount), outputFormat,
+                                             decoder->sampleRate,
+                                             layout, (AVSampleFormat) frame->format, frame->sample_rate,
+                                             0, NULL);
+    if (decoder->swrContext == NULL || swr_init(decoder->swrContext) < 0) {
+        LOGE("Cannot convert audio from %s, %d Hz, %d channel(s)",
+             av_get_sample_fmt_name((AVSampleFormat) frame->format), frame->sample_rate, channels);
+        swr_free(&decoder->swrContext);
+        return false;
+    }
+    decoder->inputFormat = frame->format;
+    decoder->inputSampleRate = frame->sample_rate;
+    decoder->inputChannelLayout = layout;
+    return true;
+}
+
+static void deliverAudio(JNIEnv *env, AudioDecoder *decoder, const AVFrame *frame, DirectBuffer *buffer,
+                         jobject callback, jmethodID methodId) {
+    if (!updateResampler(decoder, frame)) {
+        return;
+    }
+
+    int64_t ptsUs = av_frame_get_best_effort_timestamp(frame);
+    if (ptsUs != AV_NOPTS_VALUE) {
+        ptsUs = av_rescale_q(ptsUs, decoder->stream->time_base, AV_TIME_BASE_Q);
+        // The first sample out is one the resampler held back from earlier frames
+        ptsUs -= swr_get_delay(decoder->swrContext, AV_TIME_BASE);
+    }
+
+    int maxSamples = swr_get_out_samples(decoder->swrContext, frame->nb_samples);
+    int frameBytes = decoder->channelCount * decoder->bytesPerSample;
+    if (maxSamples <= 0 || !directBufferReserve(env, buffer, (size_t) maxSamples * frameBytes)) {
+        return;
+    }
+    uint8_t *output = buffer->data;
+    int samples = swr_convert(decoder->swrContext, &output, maxSamples,
+                              (const uint8_t **) frame->extended_data, frame->nb_samples);
+    if (samples <= 0) {
+        return;
+    }
+    env->CallVoidMethod(callback, methodId, buffer->buffer, samples * frameBytes, decoder->sampleRate,
+                        decoder->channelCount, (jlong) ptsUs);
+}
+
+void audioDecode(JNIEnv *env, AudioDecoder *decoder, AVPacket *packet, DirectBuffer *buffer,
+                 jobject callback, jmethodID methodId) {
+    // A packet may hold several frames, or only part of one.
+    if (avcodec_send_packet(decoder->codecContext, packet) < 0) {
+        return;
+    }
+    while (avcodec_receive_frame(decoder->codecContext, decoder->frame) == 0) {
+        deliverAudio(env, decoder, decoder->frame, buffer, callback, methodId);
+        av_frame_unref(decoder->frame);
+    }
+}
+
+void audioDecoderDestroy(AudioDecoder *decoder) {
+    swr_free(&decoder->swrContext);
+    av_frame_free(&decoder->frame);
+    avcodec_free_context(&decoder->codecContext);
+    delete decoder;
+}
@@ -0,0 +1,62 @@
+#ifndef RTSPLIBRARY_AUDIO_H
+#define RTSPLIBRARY_AUDIO_H
+
+#include <jni.h>
+#include <stdint.h>
+
+extern "C" {
+#include <libavcodec/avcodec.h>
+#include <libavformat/avformat.h>
+#include <libswresample/swresample.h>
+}
+
+#include "direct_buffer.h"
+
+// Must match RtspClient.AUDIO_ENCODING_*
+enum AudioEncoding {
+    AUDIO_ENCODING_PCM_16BIT = 0,
+    AUDIO_ENCODING_PCM_FLOAT = 1
+};
+
+struct AudioConfig {
+    bool enabled;
+    int encoding;
+    // 0 keeps the stream's rate / channel count
+    int sampleRate;
+    int channelCount;
+};
+
+/**
+ * Decodes the audio stream and resamples it to the PCM format Java asked for.  Lives for one
+ * connection and is only used by the thread reading packets.
+ */
+struct AudioDecoder {
+    AudioConfig config;
+    AVStream *stream;
+    AVCodecContext *codecContext;
+    AVFrame *frame;
+    SwrContext *swrContext;
+    // Input format the resampler was set up for
+    int inputFormat;
+    int inputSampleRate;
+    int64_t inputChannelLayout;
+    // Output format, resolved from config and the stream
+    int sampleRate;
+    int channelCount;
+    int bytesPerSample;
+};
+
+/**
+ * @return NULL if there is no decoder for the stream's codec
+ */
+AudioDecoder *audioDecoderCreate(const AudioConfig &config, AVStream *stream);
+
+/**
+ * Decodes one packet and hands the PCM to onAudio(ByteBuffer, int, int, int, long) of callback.
+ */
+void audioDecode(JNIEnv *env, AudioDecoder *decoder, AVPacket *packet, DirectBuffer *buffer,
+                 jobject callback, jmethodID methodId);
+
+void audioDecoderDestroy(AudioDecoder *decoder);
+
+#endif //RTSPLIBRARY_AUDIO_H
@@ -0,0 +1,39 @@
+#include "direct_buffer.h"
+
+extern "C" {
+#include <libavutil/mem.h>
+}
+
+void directBufferInit(DirectBuffer *buffer) {
+    buffer->data = NULL;
+    buffer->capacity = 0;
+    buffer->buffer = NULL;
+}
+
+bool directBufferReserve(JNIEnv *env, DirectBuffer *buffer, size_t size) {
+    if (size <= buffer->capacity && buffer->buffer != NULL) {
+        return true;
+    }
+
+    // Leave some headroom so a slowly growing payload doesn't reallocate every time.
+    size_t capacity = size + size / 2;
+    directBufferFree(env, buffer);
+    buffer->data = (uint8_t *) av_malloc(capacity);
+    if (buffer->data == NULL) {
+        return false;
+    }
+    jobject byteBuffer = env->NewDirectByteBuffer(buffer->data, (jlong) capacity);
+    buffer->buffer = env->NewGlobalRef(byteBuffer);
+    env->DeleteLocalRef(byteBuffer);
+    buffer->capacity = capacity;
+    return true;
+}
+
+void directBufferFree(JNIEnv *env, DirectBuffer *buffer) {
+    if (buffer->buffer != NULL) {
+        env->DeleteGlobalRef(buffer->buffer);
+    }
+    av_freep(&buffer->data);
+    buffer->buffer = NULL;
+    buffer->capacity = 0;
+}
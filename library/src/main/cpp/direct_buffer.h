@@ -0,0 +1,28 @@
+#ifndef RTSPLIBRARY_DIRECT_BUFFER_H
+#define RTSPLIBRARY_DIRECT_BUFFER_H
+
+#include <jni.h>
+#include <stdint.h>
+#include <stddef.h>
+
+/**
+ * Native memory wrapped in a direct ByteBuffer that is handed to Java over and over again.
+ * It only ever grows, so once the largest payload has been seen nothing is allocated.
+ */
+struct DirectBuffer {
+    uint8_t *data;
+    size_t capacity;
+    jobject buffer;
+};
+
+void directBufferInit(DirectBuffer *buffer);
+
+/**
+ * Makes room for at least size bytes, replacing the ByteBuffer if the memory had to grow.
+ * @return false if the allocation failed
+ */
+bool directBufferReserve(JNIEnv *env, DirectBuffer *buffer, size_t size);
+
+void directBufferFree(JNIEnv *env, DirectBuffer *buffer);
+
+#endif //RTSPLIBRARY_DIRECT_BUFFER_H
@@ -0,0 +1,177 @@
+#include <string.h>
+
+#include "fanout.h"
+#include "motion.h"
+#include "playout.h"
+#include "snapshot.h"
+
+bool subscriberAdd(JNIEnv *env, Session *source, Session *subscriber) {
+    if (source == subscriber) {
+        return false;
+    }
+    {
+        std::lock_guard<std::mutex> lock(subscriber->lifecycleMutex);
+        if (subscriber->playing || subscriber->disposed) {
+            return false;
+        }
+        subscriber->playing = true;
+    }
+
+    // Set up as play() would, the source's threads take it from here.
+    subscriber->isStop = false;
+    loadPlayConfig(subscriber);
+    prepareFrameRing(env, subscriber);
+    subscriber->nextFrameDueUs = AV_NOPTS_VALUE;
+    motionDetectorReset(&subscriber->motionDetector);
+    subscriber->forwardedGeneration = -1;
+    subscriber->playout = subscriber->playoutMaxDelayUs > 0 ? playoutCreate(subscriber) : NULL;
+
+    Subscription *subscription = new Subscription;
+    subscription->session = subscriber;
+    subscription->ready = false;
+    std::lock_guard<std::mutex> lock(source->subscribersMutex);
+    source->subscribers.push_back(subscription);
+    source->subscriberCount = (int) source->subscribers.size();
+    return true;
+}
+
+bool subscriberRemove(Session *source, Session *subscriber) {
+    {
+        std::lock_guard<std::mutex> lock(source->subscribersMutex);
+        std::vector<Subscription *> &subscribers = source->subscribers;
+        for (std::vector<Subscription *>::iterator it = subscribers.begin(); it != subscribers.end(); ++it) {
+            if ((*it)->session == subscriber) {
+                delete *it;
+                subscribers.erase(it);
+                break;
+            }
+        }
+        source->subscriberCount = (int) subscribers.size();
+    }
+
+    // No more frames are pushed, so the playout stage can wind down as at the end of play()
+    if (subscriber->playout != NULL) {
+        playoutDestroy(subscriber->playout);
+        subscriber->playout = NULL;
+    }
+    // What closeStream() would free if the subscriber had played
+    if (subscriber->swsContext != NULL) {
+        sws_freeContext(subscriber->swsContext);
+        subscriber->swsContext = NULL;
+    }
+    av_bsf_free(&subscriber->bitstreamFilter);
+
+    std::lock_guard<std::mutex> lock(subscriber->lifecycleMutex);
+    subscriber->playing = false;
+    return subscriber->disposed;
+}
+
+void fanOutPacket(JNIEnv *env, Session *source, const AVStream *stream, const AVPacket *packet) {
+    std::lock_guard<std::mutex> lock(source->subscribersMutex);
+    for (size_t i = 0; i < source->subscribers.size(); i++) {
+        Session *subscriber = source->subscribers[i]->session;
+        if (subscriber->outputFormat != FORMAT_H264_ANNEXB || subscriber->isStop) {
+            continue;
+        }
+        bool newStream = subscriber->forwardedGeneration != source->streamGeneration;
+        subscriber->forwardedGeneration = source->streamGeneration;
+        // Catch up from the newest cached keyframe instead of waiting for the next one, the
+        // cache already ends with this packet.  Anything older would only be stale video.
+        const std::deque<AVPacket *> &cached = source->gopCache.packets;
+        size_t start = cached.size();
+        while (start > 0 && !(cached[start - 1]->flags & AV_PKT_FLAG_KEY)) {
+            start--;
+        }
+        if (newStream && start > 0) {
+            for (size_t j = start - 1; j < cached.size(); j++) {
+                forwardPacket(env, subscriber, stream, cached[j], j == start - 1);
+            }
+        } else {
+            forwardPacket(env, subscriber, stream, packet, newStream);
+        }
+    }
+}
+
+static bool sameOutput(Session *a, Session *b) {
+    if (a->outputFormat != b->outputFormat) {
+        return false;
+    }
+    const OutputSpec &specA = currentOutputSpec(a);
+    const OutputSpec &specB = currentOutputSpec(b);
+    return specA.width == specB.width && specA.height == specB.height &&
+           specA.cropX == specB.cropX && specA.cropY == specB.cropY &&
+           specA.cropWidth == specB.cropWidth && specA.cropHeight == specB.cropHeight &&
+           specA.scaler == specB.scaler;
+}
+
+/**
+ * Copies a frame another subscriber already converted into a slot of this subscriber's ring.
+ */
+static bool copyConverted(JNIEnv *env, const Subscription *from, Session *to, const AVFrame *frame,
+                          ConvertedFrame *converted) {
+    const ConvertedFrame &original = from->converted;
+    int chromaHeight = (original.height + 1) / 2;
+    size_t size = to->outputFormat == FORMAT_YUV420P ?
+                  (size_t) original.yStride * original.height + 2 * (size_t) original.uvStride * chromaHeight :
+                  (size_t) original.yStride * original.height;
+    int index = frameRingAcquire(env, to->frameRing, size);
+    if (index < 0) {
+        to->stats.count(COUNTER_DROPPED_FRAMES);
+        return false;
+    }
+    memcpy(to->frameRing->slots[index].data, from->session->frameRing->slots[original.index].data, size);
+
+    *converted = original;
+    converted->index = index;
+    converted->motionScore = motionScore(frame);
+    FrameSlot &slot = to->frameRing->slots[index];
+    slot.ptsUs = converted->ptsUs;
+    slot.receiveTimeUs = converted->receiveTimeUs;
+    slot.motionScore = converted->motionScore;
+    return true;
+}
+
+void fanOutFrame(JNIEnv *env, Session *source, AVFrame *frame) {
+    if (source->subscriberCount == 0) {
+        return;
+    }
+    std::lock_guard<std::mutex> lock(source->subscribersMutex);
+    std::vector<Subscription *> &subscribers = source->subscribers;
+    AVFrame *work = source->subscriberFrame;
+
+    // Convert for everyone before delivering anything: a delivered frame may be released, and
+    // its slot reused, before the next subscriber copied it.
+    for (size_t i = 0; i < subscribers.size(); i++) {
+        Subscription *subscription = subscribers[i];
+        Session *subscriber = subscription->session;
+        subscription->ready = false;
+        if (subscriber->outputFormat == FORMAT_H264_ANNEXB || subscriber->isStop ||
+            av_frame_ref(work, frame) < 0) {
+            continue;
+        }
+        subscriber->videoTimeBase = source->videoTimeBase;
+        subscriber->stats.ptsOffsetUs.store(source->stats.ptsOffsetUs.load(std::memory_order_relaxed),
+                                            std::memory_order_relaxed);
+        subscriber->stats.count(COUNTER_DECODED_FRAMES);
+
+        // Each subscriber gets a reference of its own, the motion gate tags it with its score.
+        if (holdLatestFrame(subscriber, work) && isFrameDue(subscriber, work) && isFrameChanged(subscriber, work)) {
+            const Subscription *same = NULL;
+            for (size_t j = 0; j < i && same == NULL; j++) {
+                if (subscribers[j]->ready && sameOutput(subscribers[j]->session, subscriber)) {
+                    same = subscribers[j];
+                }
+            }
+            subscription->ready = same != NULL ?
+                                  copyConverted(env, same, subscriber, work, &subscription->converted) :
+                                  convertFrame(env, subscriber, work, &subscription->converted);
+        }
+        av_frame_unref(work);
+    }
+
+    for (size_t i = 0; i < subscribers.size(); i++) {
+        if (subscribers[i]->ready) {
+            presentFrame(env, subscribers[i]->session, subscribers[i]->converted);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+#ifndef RTSPLIBRARY_FANOUT_H
+#define RTSPLIBRARY_FANOUT_H
+
+#include <jni.h>
+
+#include "player.h"
+
+/**
+ * One subscriber of a shared connection.  Subscribers are sessions of RtspClients that never
+ * play themselves: the session playing the connection hands them every video packet and decoded
+ * frame, and each keeps its own callback, output format, output spec, frame rate, motion gate and
+ * statistics.  Frames are decoded once, and subscribers with the same format and spec share one
+ * conversion, the others get a copy.
+ */
+struct Subscription {
+    Session *session;
+    // Only touched by the source's decoding thread while delivering a frame
+    bool ready;
+    ConvertedFrame converted;
+};
+
+/**
+ * Attaches a session that isn't playing to the source.  The subscriber counts as playing until
+ * removed, so it can't play on its own meanwhile.
+ * @return false if the subscriber is playing, disposed or already subscribed somewhere
+ */
+bool subscriberAdd(JNIEnv *env, Session *source, Session *subscriber);
+
+/**
+ * Detaches the subscriber, waiting for a delivery to it that is in progress.  Must not be called
+ * from the subscriber's callback while it runs on the source's thread or its playout stage.
+ * @return true if the subscriber was disposed meanwhile and has to be destroyed now
+ */
+bool subscriberRemove(Session *source, Session *subscriber);
+
+/**
+ * Hands a video packet to the FORMAT_H264_ANNEXB subscribers, from the thread reading packets.
+ */
+void fanOutPacket(JNIEnv *env, Session *source, const AVStream *stream, const AVPacket *packet);
+
+/**
+ * Converts a decoded frame for the frame subscribers and delivers it, from the decoding thread.
+ */
+void fanOutFrame(JNIEnv *env, Session *source, AVFrame *frame);
+
+#endif //RTSPLIBRARY_FANOUT_H
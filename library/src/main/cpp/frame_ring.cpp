@@ -0,0 +1,77 @@
+#include "frame_ring.h"
+#include "motion.h"
+
+extern "C" {
+#include <libavutil/avutil.h>
+#include <libavutil/mem.h>
+}
+
+FrameRing *frameRingCreate(int count) {
+    FrameRing *ring = new FrameRing;
+    ring->slots = new FrameSlot[count];
+    ring->count = count;
+    ring->next = 0;
+    for (int i = 0; i < count; i++) {
+        ring->slots[i].data = NULL;
+        ring->slots[i].capacity = 0;
+        ring->slots[i].buffer = NULL;
+        ring->slots[i].inUse = false;
+        ring->slots[i].ptsUs = AV_NOPTS_VALUE;
+        ring->slots[i].receiveTimeUs = AV_NOPTS_VALUE;
+        ring->slots[i].motionScore = MOTION_SCORE_UNKNOWN;
+    }
+    return ring;
+}
+
+int frameRingAcquire(JNIEnv *env, FrameRing *ring, size_t size) {
+    for (int n = 0; n < ring->count; n++) {
+        int index = (ring->next + n) % ring->count;
+        FrameSlot *slot = &ring->slots[index];
+        bool expected = false;
+        if (!slot->inUse.compare_exchange_strong(expected, true)) {
+            continue;
+        }
+
+        if (slot->capacity != size) {
+            if (slot->buffer != NULL) {
+                env->DeleteGlobalRef(slot->buffer);
+                slot->buffer = NULL;
+            }
+            av_freep(&slot->data);
+            slot->capacity = 0;
+            slot->data = (uint8_t *) av_malloc(size);
+            jobject buffer = slot->data != NULL ? env->NewDirectByteBuffer(slot->data, (jlong) size) : NULL;
+            if (buffer == NULL) {
+                // Out of memory: the caller drops the frame, the slot stays empty until next time
+                env->ExceptionClear();
+                av_freep(&slot->data);
+                slot->inUse = false;
+                return -1;
+            }
+            slot->buffer = env->NewGlobalRef(buffer);
+            env->DeleteLocalRef(buffer);
+            slot->capacity = size;
+        }
+
+        ring->next = (index + 1) % ring->count;
+        return index;
+    }
+    return -1;
+}
+
+void frameRingRelease(FrameRing *ring, int index) {
+    if (index >= 0 && index < ring->count) {
+        ring->slots[index].inUse = false;
+    }
+}
+
+void frameRingDestroy(JNIEnv *env, FrameRing *ring) {
+    for (int i = 0; i < ring->count; i++) {
+        if (ring->slots[i].buffer != NULL) {
+            env->DeleteGlobalRef(ring->slots[i].buffer);
+        }
+        av_free(ring->slots[i].data);
+    }
+    delete[] ring->slots;
+    delete ring;
+}
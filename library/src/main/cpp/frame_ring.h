@@ -0,0 +1,49 @@
+#ifndef RTSPLIBRARY_FRAME_RING_H
+#define RTSPLIBRARY_FRAME_RING_H
+
+#include <jni.h>
+#include <atomic>
+#include <stdint.h>
+#include <stddef.h>
+
+/**
+ * One native frame buffer, shared with Java through a direct ByteBuffer that wraps it.
+ * The ByteBuffer is only recreated when the frame size changes, so steady state playback
+ * doesn't allocate anything.
+ */
+struct FrameSlot {
+    uint8_t *data;
+    size_t capacity;
+    jobject buffer;
+    std::atomic<bool> inUse;
+    // Of the frame in the slot, for RtspClient.getFramePtsUs / getFrameReceiveTimeUs /
+    // getFrameMotionScore
+    int64_t ptsUs;
+    int64_t receiveTimeUs;
+    float motionScore;
+};
+
+/**
+ * Fixed size pool of frame buffers.  sws_scale writes straight into a free slot, the slot is
+ * handed to Java and stays busy until RtspClient.releaseFrame is called with its index.
+ */
+struct FrameRing {
+    FrameSlot *slots;
+    int count;
+    int next;
+};
+
+FrameRing *frameRingCreate(int count);
+
+/**
+ * Claims the next free slot, (re)allocating it if its size doesn't match.
+ * @return slot index, or -1 if every slot is still held by Java or the slot can't be allocated;
+ *         callers count the frame as dropped
+ */
+int frameRingAcquire(JNIEnv *env, FrameRing *ring, size_t size);
+
+void frameRingRelease(FrameRing *ring, int index);
+
+void frameRingDestroy(JNIEnv *env, FrameRing *ring);
+
+#endif //RTSPLIBRARY_FRAME_RING_H
@@ -0,0 +1,82 @@
+#include <string.h>
+
+#include "gop_cache.h"
+
+void gopCacheInit(GopCache *cache) {
+    cache->bytes = 0;
+    cache->parameters = NULL;
+    cache->timeBase = AV_TIME_BASE_Q;
+    cache->lastReceiveUs = 0;
+}
+
+static int64_t packetTime(const AVPacket *packet) {
+    return packet->dts != AV_NOPTS_VALUE ? packet->dts : packet->pts;
+}
+
+static int64_t cachedDurationUs(const GopCache *cache) {
+    int64_t first = packetTime(cache->packets.front());
+    int64_t last = packetTime(cache->packets.back());
+    if (first == AV_NOPTS_VALUE || last == AV_NOPTS_VALUE) {
+        return 0;
+    }
+    return av_rescale_q(last - first, cache->timeBase, AV_TIME_BASE_Q);
+}
+
+static void dropFront(GopCache *cache) {
+    AVPacket *packet = cache->packets.front();
+    cache->packets.pop_front();
+    cache->bytes -= packet->size;
+    av_packet_free(&packet);
+}
+
+void gopCacheAppend(GopCache *cache, const AVStream *stream, const AVPacket *packet, int64_t nowUs,
+                    int64_t maxBytes, int64_t maxDurationUs) {
+    bool keyFrame = (packet->flags & AV_PKT_FLAG_KEY) != 0;
+    if (keyFrame) {
+        gopCacheClear(cache);
+    }
+    if (cache->packets.empty()) {
+        if (!keyFrame) {
+            return;
+        }
+        if (cache->parameters == NULL) {
+            cache->parameters = avcodec_parameters_alloc();
+        }
+        avcodec_parameters_copy(cache->parameters, stream->codecpar);
+        cache->timeBase = stream->time_base;
+    }
+
+    AVPacket *copy = av_packet_alloc();
+    if (copy == NULL || av_packet_ref(copy, packet) < 0) {
+        av_packet_free(&copy);
+        gopCacheClear(cache);
+        return;
+    }
+    cache->packets.push_back(copy);
+    cache->bytes += copy->size;
+    cache->lastReceiveUs = nowUs;
+
+    if (cache->bytes > maxBytes || (maxDurationUs > 0 && cachedDurationUs(cache) > maxDurationUs)) {
+        gopCacheClear(cache);
+    }
+}
+
+bool gopCacheMatches(const GopCache *cache, const AVCodecParameters *parameters) {
+    const AVCodecParameters *cached = cache->parameters;
+    return cached != NULL && cached->codec_id == parameters->codec_id &&
+           cached->width == parameters->width && cached->height == parameters->height &&
+           cached->extradata_size == parameters->extradata_size &&
+           (cached->extradata_size == 0 ||
+            memcmp(cached->extradata, parameters->extradata, (size_t) cached->extradata_size) == 0);
+}
+
+void gopCacheClear(GopCache *cache) {
+    while (!cache->packets.empty()) {
+        dropFront(cache);
+    }
+}
+
+void gopCacheFree(GopCache *cache) {
+    gopCacheClear(cache);
+    avcodec_parameters_free(&cache->parameters);
+}
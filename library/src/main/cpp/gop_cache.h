@@ -0,0 +1,51 @@
+#ifndef RTSPLIBRARY_GOP_CACHE_H
+#define RTSPLIBRARY_GOP_CACHE_H
+
+#include <deque>
+#include <stdint.h>
+
+extern "C" {
+#include <libavformat/avformat.h>
+}
+
+/**
+ * The compressed video packets since the last keyframe of one connection.  Packets are kept by reference, so caching costs no copies.  A consumer joining
+ * mid-stream decodes from the cached keyframe instead of waiting for the camera's next one.
+ *
+ * Only touched by the thread reading packets, and by play() before it starts reading.
+ */
+struct GopCache {
+    // Always starts with a keyframe
+    std::deque<AVPacket *> packets;
+    int64_t bytes;
+    // Of the stream the packets came from
+    AVCodecParameters *parameters;
+    AVRational timeBase;
+    // av_gettime_relative() clock
+    int64_t lastReceiveUs;
+};
+
+void gopCacheInit(GopCache *cache);
+
+/**
+ * Adds a packet of the stream.  A keyframe replaces the previous GOP, only the newest one is
+ * worth decoding or forwarding.  A GOP that outgrows the limits empties the cache until the
+ * next keyframe.  Packets before the first keyframe are skipped.
+ * @param maxDurationUs 0 for no limit
+ */
+void gopCacheAppend(GopCache *cache, const AVStream *stream, const AVPacket *packet, int64_t nowUs,
+                    int64_t maxBytes, int64_t maxDurationUs);
+
+/**
+ * Whether the cached packets can be decoded by a decoder opened with these parameters.
+ */
+bool gopCacheMatches(const GopCache *cache, const AVCodecParameters *parameters);
+
+void gopCacheClear(GopCache *cache);
+
+/**
+ * Clears the cache and frees everything it holds.
+ */
+void gopCacheFree(GopCache *cache);
+
+#endif //RTSPLIBRARY_GOP_CACHE_H
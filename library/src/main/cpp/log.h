@@ -0,0 +1,37 @@
+#ifndef RTSPLIBRARY_LOG_H
+#define RTSPLIBRARY_LOG_H
+
+/**
+ * Logging to logcat on Android and to stderr in the host build.  The macros use the TAG every
+ * source file defines.
+ */
+#ifdef __ANDROID__
+
+#include <android/log.h>
+
+#define LOG_PRINT(priority, tag, ...) __android_log_print(ANDROID_LOG_##priority, tag, __VA_ARGS__)
+
+#else
+
+#include <stdarg.h>
+#include <stdio.h>
+
+static inline void logToStderr(const char *priority, const char *tag, const char *format, ...) {
+    va_list args;
+    va_start(args, format);
+    fprintf(stderr, "%s %s: ", priority, tag);
+    vfprintf(stderr, format, args);
+    fputc('\n', stderr);
+    va_end(args);
+}
+
+#define LOG_PRINT(priority, tag, ...) logToStderr(#priority, tag, __VA_ARGS__)
+
+#endif
+
+#define LOGE(...) LOG_PRINT(ERROR, TAG, __VA_ARGS__)
+#define LOGW(...) LOG_PRINT(WARN, TAG, __VA_ARGS__)
+#define LOGI(...) LOG_PRINT(INFO, TAG, __VA_ARGS__)
+#define LOGD(...) LOG_PRINT(DEBUG, TAG, __VA_ARGS__)
+
+#endif //RTSPLIBRARY_LOG_H
@@ -0,0 +1,103 @@
+#include <stdlib.h>
+#include <string.h>
+
+#include "motion.h"
+
+extern "C" {
+#include <libavutil/dict.h>
+#include <libavutil/pixdesc.h>
+}
+
+// Samples averaged per cell in each direction
+static const int CELL_SAMPLES = 8;
+// Frame metadata carrying the score from the decoding to the converting thread, in 1/10000
+static const char *SCORE_KEY = "rtsp.motion_score";
+static const int SCORE_SCALE = 10000;
+
+void motionDetectorReset(MotionDetector *detector) {
+    detector->hasReference = false;
+    detector->lastDeliveredUs = 0;
+}
+
+/**
+ * Averages a few luma samples of every grid cell.
+ */
+static void downsampleLuma(const AVFrame *frame, uint8_t *cells) {
+    const uint8_t *luma = frame->data[0];
+    int stride = frame->linesize[0];
+    for (int row = 0; row < MOTION_GRID_ROWS; row++) {
+        int top = row * frame->height / MOTION_GRID_ROWS;
+        int cellHeight = (row + 1) * frame->height / MOTION_GRID_ROWS - top;
+        for (int column = 0; column < MOTION_GRID_COLUMNS; column++) {
+            int left = column * frame->width / MOTION_GRID_COLUMNS;
+            int cellWidth = (column + 1) * frame->width / MOTION_GRID_COLUMNS - left;
+            int sum = 0;
+            for (int y = 0; y < CELL_SAMPLES; y++) {
+                const uint8_t *line = luma + (int64_t) (top + y * cellHeight / CELL_SAMPLES) * stride + left;
+                for (int x = 0; x < CELL_SAMPLES; x++) {
+                    sum += line[x * cellWidth / CELL_SAMPLES];
+                }
+            }
+            cells[row * MOTION_GRID_COLUMNS + column] = (uint8_t) (sum / (CELL_SAMPLES * CELL_SAMPLES));
+        }
+    }
+}
+
+bool motionDetect(MotionDetector *detector, AVFrame *frame, int64_t nowUs) {
+    const MotionConfig &config = detector->config;
+    // Needs 8 bit luma samples in the first plane, as every decoder of a camera stream delivers
+    const AVPixFmtDescriptor *desc = av_pix_fmt_desc_get((AVPixelFormat) frame->format);
+    if (desc == NULL || (desc->flags & (AV_PIX_FMT_FLAG_RGB | AV_PIX_FMT_FLAG_PAL)) ||
+        desc->comp[0].plane != 0 || desc->comp[0].step != 1 || desc->comp[0].depth != 8 ||
+        frame->width < MOTION_GRID_COLUMNS || frame->height < MOTION_GRID_ROWS) {
+        return true;
+    }
+
+    uint8_t cells[MOTION_GRID_CELLS];
+    downsampleLuma(frame, cells);
+
+    float score = 1;
+    if (detector->hasReference) {
+        int watched = 0;
+        int shift = 0;
+        for (int i = 0; i < MOTION_GRID_CELLS; i++) {
+            if (config.mask[i]) {
+                shift += cells[i] - detector->reference[i];
+                watched++;
+            }
+        }
+        if (watched > 0) {
+            shift /= watched;
+            int changed = 0;
+            for (int i = 0; i < MOTION_GRID_CELLS; i++) {
+                if (config.mask[i] && abs(cells[i] - detector->reference[i] - shift) > config.cellThreshold) {
+                    changed++;
+                }
+            }
+            score = (float) changed / watched;
+        } else {
+            score = 0;
+        }
+    }
+
+    bool heartbeat = config.heartbeatUs > 0 && nowUs - detector->lastDeliveredUs >= config.heartbeatUs;
+    if (detector->hasReference && score < config.minScore && !heartbeat) {
+        return false;
+    }
+
+    memcpy(detector->reference, cells, sizeof(cells));
+    detector->hasReference = true;
+    detector->lastDeliveredUs = nowUs;
+    AVDictionary *metadata = av_frame_get_metadata(frame);
+    av_dict_set_int(&metadata, SCORE_KEY, (int64_t) (score * SCORE_SCALE), 0);
+    av_frame_set_metadata(frame, metadata);
+    return true;
+}
+
+float motionScore(const AVFrame *frame) {
+    AVDictionaryEntry *entry = av_dict_get(av_frame_get_metadata(frame), SCORE_KEY, NULL, 0);
+    if (entry == NULL) {
+        return MOTION_SCORE_UNKNOWN;
+    }
+    return (float) strtol(entry->value, NULL, 10) / SCORE_SCALE;
+}
@@ -0,0 +1,58 @@
+#ifndef RTSPLIBRARY_MOTION_H
+#define RTSPLIBRARY_MOTION_H
+
+#include <stdint.h>
+
+extern "C" {
+#include <libavutil/frame.h>
+}
+
+// The luma plane is averaged down to a grid of this many cells
+const int MOTION_GRID_COLUMNS = 32;
+const int MOTION_GRID_ROWS = 18;
+const int MOTION_GRID_CELLS = MOTION_GRID_COLUMNS * MOTION_GRID_ROWS;
+
+// Motion score of a frame that wasn't analysed, see RtspClient.getFrameMotionScore
+const float MOTION_SCORE_UNKNOWN = -1;
+
+struct MotionConfig {
+    bool enabled;
+    // Change of a cell's average luma, after removing the change of the whole picture, that
+    // counts as motion
+    int cellThreshold;
+    // Fraction of the watched cells that have to change for a frame to be delivered
+    float minScore;
+    // A frame is delivered at least this often while the picture is still, 0 for never
+    int64_t heartbeatUs;
+    // Non-zero for every cell that is watched
+    uint8_t mask[MOTION_GRID_CELLS];
+};
+
+/**
+ * Compares every frame with the last delivered one on a coarse grid of the luma plane, cheap
+ * enough to run on each decoded frame.  Changes of the overall brightness, e.g. auto exposure,
+ * are not counted as motion.  Only touched by the decoding thread.
+ */
+struct MotionDetector {
+    MotionConfig config;
+    int configVersion;
+    bool hasReference;
+    uint8_t reference[MOTION_GRID_CELLS];
+    int64_t lastDeliveredUs;
+};
+
+void motionDetectorReset(MotionDetector *detector);
+
+/**
+ * Scores the frame against the last delivered one and tags it with the score.
+ * @return whether the frame changed enough or the heartbeat is due, in which case it becomes the
+ *         new reference
+ */
+bool motionDetect(MotionDetector *detector, AVFrame *frame, int64_t nowUs);
+
+/**
+ * @return the score motionDetect() tagged the frame with or MOTION_SCORE_UNKNOWN
+ */
+float motionScore(const AVFrame *frame);
+
+#endif //RTSPLIBRARY_MOTION_H
@@ -1,6 +1,8 @@
 #include <jni.h>
 #include <string>
-#include <android/log.h>
+#include <string.h>
+#include <mutex>
+#include "log.h"
 
 extern "C" {
 #include <libavcodec/avcodec.h>
@@ -8,234 +10,732 @@ extern "C" {
 #include <libavformat/avio.h>
 #include <libavcodec/avcodec.h>
 #include <libswscale/swscale.h>
+#include <libavutil/time.h>
 }
 
-const char *TAG = __FILE__;
+#include "fanout.h"
+#include "session.h"
+#include "player.h"
+#include "playout.h"
+#include "snapshot.h"
+#include "spsc_queue.h"
+
+static const char *TAG = __FILE__;
+
+jfieldID gNativeHandleFieldId;
+static jmethodID gStateMethodId;
+
+jint play(JNIEnv *env, jobject client, Session *session, jstring endpoint, jobjectArray options);
+jint playOnce(JNIEnv *env, jobject client, Session *session, jstring endpoint, jobjectArray options);
+jint playFrames(JNIEnv *env, Session *session);
+void destroySession(JNIEnv *env, Session *session);
+
+/**
+ * Before FFmpeg 4 avcodec_open2 is only thread safe with a lock manager, which we need since
+ * every session opens its decoder on its own thread.
+ */
+static int lockManager(void **mutex, enum AVLockOp op) {
+    switch (op) {
+        case AV_LOCK_CREATE:
+            *mutex = new std::mutex();
+            return 0;
+        case AV_LOCK_OBTAIN:
+            static_cast<std::mutex *>(*mutex)->lock();
+            return 0;
+        case AV_LOCK_RELEASE:
+            static_cast<std::mutex *>(*mutex)->unlock();
+            return 0;
+        case AV_LOCK_DESTROY:
+            delete static_cast<std::mutex *>(*mutex);
+            *mutex = NULL;
+            return 0;
+    }
+    return 1;
+}
+
+JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *) {
+    JNIEnv *env;
+    if (vm->GetEnv((void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+
+    gJavaVM = vm;
+    jclass clientClass = env->FindClass("com/potterhsu/rtsplibrary/RtspClient");
+    gNativeHandleFieldId = env->GetFieldID(clientClass, "nativeHandle", "J");
+    gStateMethodId = env->GetMethodID(clientClass, "onNativeStateChanged", "(I)V");
+    gBufferClearMethodId = env->GetMethodID(env->FindClass("java/nio/Buffer"), "clear", "()Ljava/nio/Buffer;");
 
-jobject gCallback;
-jmethodID gCallbackMethodId;
-bool isStop = false;
+    // Process wide FFmpeg setup, done once instead of on every play()
+    av_lockmgr_register(lockManager);
+    av_register_all();
+    avformat_network_init();
+
+    return JNI_VERSION_1_6;
+}
 
-void callback(JNIEnv *env, uint8_t *buf, int channel, int width, int height);
+static Session *getSession(JNIEnv *env, jobject thiz) {
+    return reinterpret_cast<Session *>(env->GetLongField(thiz, gNativeHandleFieldId));
+}
+
+/**
+ * Reports a lifecycle change to RtspClient, which only queues it for the state listener.
+ * RtspClient reports STATE_CLOSED itself once play() returned.
+ */
+static void notifyState(JNIEnv *env, jobject client, Session *session, int state) {
+    session->state = state;
+    env->CallVoidMethod(client, gStateMethodId, state);
+}
 
 extern "C"
 jint
 Java_com_potterhsu_rtsplibrary_RtspClient_initialize(
         JNIEnv *env,
-        jobject,
-        jobject callback) {
-    gCallback = env->NewGlobalRef(callback);
-    jclass clz = env->GetObjectClass(gCallback);
-    if (clz == NULL) {
+        jobject thiz,
+        jobject callback,
+        jobject audioCallback,
+        jint outputFormat,
+        jint bufferCount) {
+    jclass clz = env->GetObjectClass(callback);
+    jclass audioClz = env->GetObjectClass(audioCallback);
+    if (clz == NULL || audioClz == NULL) {
         return JNI_ERR;
+    }
+
+    Session *session = new Session(outputFormat, bufferCount);
+    session->callback = env->NewGlobalRef(callback);
+    session->audioCallback = env->NewGlobalRef(audioCallback);
+    session->audioMethodId = env->GetMethodID(audioClz, "onAudio", "(Ljava/nio/ByteBuffer;IIIJ)V");
+
+    if (outputFormat == FORMAT_H264_ANNEXB) {
+        // NativePacketCallback, compressed packets go through packetBuffer
+        session->callbackMethodId = env->GetMethodID(clz, "onPacket", "(Ljava/nio/ByteBuffer;IJJZ)V");
+        session->codecConfigMethodId = env->GetMethodID(clz, "onCodecConfig", "(Ljava/nio/ByteBuffer;I)V");
+        if (session->codecConfigMethodId == NULL) {
+            destroySession(env, session);
+            return JNI_ERR;
+        }
+    } else if (bufferCount > 0) {
+        // Pooled delivery, NativeBufferCallback for RGB or NativeYuvCallback for YUV
+        if (outputFormat == FORMAT_YUV420P) {
+            session->callbackMethodId = env->GetMethodID(clz, "onFrame", "(Ljava/nio/ByteBuffer;IIIII)V");
+        } else {
+            session->callbackMethodId = env->GetMethodID(clz, "onFrame", "(Ljava/nio/ByteBuffer;IIII)V");
+        }
+        session->frameRing = frameRingCreate(bufferCount);
     } else {
-        gCallbackMethodId = env->GetMethodID(clz, "onFrame", "([BIII)V");
-        return JNI_OK;
+        session->callbackMethodId = env->GetMethodID(clz, "onFrame", "([BIII)V");
     }
+
+    if (session->callbackMethodId == NULL || session->audioMethodId == NULL) {
+        destroySession(env, session);
+        return JNI_ERR;
+    }
+
+    env->SetLongField(thiz, gNativeHandleFieldId, reinterpret_cast<jlong>(session));
+    return JNI_OK;
 }
 
 extern "C"
 jint
 Java_com_potterhsu_rtsplibrary_RtspClient_play(
         JNIEnv *env,
-        jobject,
+        jobject thiz,
         jstring endpoint,
-        jint minporti,  // Negative values will be ignored
-        jint maxporti   // Negative values will be ignored, values less than minPortI + 2 will be ignored
+        jobjectArray options,
+        jlong stallTimeoutUs,
+        jboolean reconnect,
+        jlong reconnectDelayMs,
+        jlong maxReconnectDelayMs
 ) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL) {
+        LOGE("RtspClient is not initialized or already disposed");
+        return JNI_ERR;
+    }
 
-    SwsContext *img_convert_ctx;
-    AVFormatContext* context = avformat_alloc_context();
-    AVCodecContext* ccontext = avcodec_alloc_context3(NULL);
-    int video_stream_index = -1;
-    int audio_stream_index = -1;
+    {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        if (session->playing || session->disposed) {
+            LOGE("RtspClient is already playing");
+            return JNI_ERR;
+        }
+        session->playing = true;
+        session->isStop = false;
+    }
+    session->stallTimeoutUs = stallTimeoutUs;
+    session->reconnect = reconnect;
+    session->reconnectDelayMs = reconnectDelayMs;
+    session->maxReconnectDelayMs = maxReconnectDelayMs;
+
+    jint result = play(env, thiz, session, endpoint, options);
+    session->state = STATE_CLOSED;
+
+    bool disposed;
+    {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        session->playing = false;
+        disposed = session->disposed;
+    }
+    if (disposed) {
+        // dispose() was called while we were playing and left the cleanup to us.
+        destroySession(env, session);
+    }
+    return result;
+}
 
-    av_register_all();
-    avformat_network_init();
+/**
+ * Body of RtspClient.play(), plays until stopped and with RtspOptions.setReconnect also
+ * reconnects, backing off exponentially while the endpoint stays unreachable.
+ */
+jint play(JNIEnv *env, jobject client, Session *session, jstring endpoint, jobjectArray options) {
+    int64_t delayMs = session->reconnectDelayMs;
+    while (true) {
+        int64_t packets = session->stats.counters[COUNTER_PACKETS];
+        jint result = playOnce(env, client, session, endpoint, options);
+        bool stalled = !session->isStop && session->state == STATE_PLAYING && session->ioTimedOut;
+        closeStream(session);
+        if (stalled) {
+            notifyState(env, client, session, STATE_STALLED);
+        }
+        if (session->isStop || !session->reconnect) {
+            return result;
+        }
 
-    int minport = 5000;
-    int maxport = 65000;
+        // Start backing off from scratch once a connection delivered anything.
+        if (session->stats.counters[COUNTER_PACKETS] != packets) {
+            delayMs = session->reconnectDelayMs;
+        }
+        LOGI("Reconnecting in %lld ms", (long long) delayMs);
+        notifyState(env, client, session, STATE_RECONNECTING);
+        for (int64_t waitedMs = 0; waitedMs < delayMs && !session->isStop; waitedMs += 10) {
+            av_usleep(10000);
+        }
+        if (session->isStop) {
+            return JNI_OK;
+        }
+        delayMs = FFMIN(delayMs * 2, session->maxReconnectDelayMs);
+        session->stats.count(COUNTER_RECONNECTS);
+    }
+}
 
-    if (minporti >= 0) {
-        minport = minporti;
+/**
+ * One connection.  Contexts live in the session and are freed by closeStream().
+ */
+jint playOnce(JNIEnv *env, jobject client, Session *session, jstring endpoint, jobjectArray options) {
+    notifyState(env, client, session, STATE_CONNECTING);
+    if (openStream(env, session, endpoint, options) != JNI_OK) {
+        return JNI_ERR;
+    }
+    session->ioTimedOut = false;
+    notifyState(env, client, session, STATE_PLAYING);
+    // Decided by openStream() once, setDecoding() may have changed the flag since
+    bool decoding = session->codecContext != NULL;
+    if (session->outputFormat == FORMAT_H264_ANNEXB || !decoding) {
+        // Nothing decodes the previous connection's packets, the cache starts over with this one
+        gopCacheClear(&session->gopCache);
+    }
+    if (session->outputFormat == FORMAT_H264_ANNEXB) {
+        return playPackets(env, session);
     }
+    if (!decoding) {
+        return playWithoutDecoding(session);
+    }
+    loadPlayConfig(session);
+    prepareFrameRing(env, session);
+    playFromGopCache(env, session);
+
+    session->playout = session->playoutMaxDelayUs > 0 ? playoutCreate(session) : NULL;
+    jint result = playFrames(env, session);
+    if (session->playout != NULL) {
+        playoutDestroy(session->playout);
+        session->playout = NULL;
+    }
+    return result;
+}
 
-    if (maxporti >= 0) {
-        maxport = maxporti;
+/**
+ * Decodes and delivers on whichever threads the session is configured for.  The stream must
+ * already be open.
+ */
+jint playFrames(JNIEnv *env, Session *session) {
+    // Held for the whole connection, StreamManager.remove() may drop the session's reference.
+    DecodeScheduler *scheduler;
+    {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        scheduler = session->scheduler;
+        if (scheduler != NULL) {
+            schedulerRetain(scheduler);
+        }
+    }
+    if (scheduler != NULL) {
+        jint result = playScheduled(session, scheduler);
+        schedulerRelease(scheduler);
+        return result;
     }
 
-    //make sure we at least have enough ports in the range.
-    if (maxport < (minport + 2)) {
-        maxport = minport + 2;
+    if (session->activePipelined) {
+        return playPipelined(env, session);
     }
 
-    char minportstring[16];
-    char maxportstring[16];
-    snprintf(minportstring, sizeof(minportstring), "%d", minport);
-    snprintf(maxportstring, sizeof(maxportstring), "%d", maxport);
+    AVPacket packet;
+    AVFrame *frame = av_frame_alloc();
+    ConvertedFrame converted;
 
+    while (!session->isStop) {
+        av_init_packet(&packet);
+        packet.data = NULL;
+        packet.size = 0;
 
-    AVDictionary *options = NULL;
+        int result = readPacket(session, &packet);
+        if (result == READ_END) {
+            break;
+        }
 
-    /*
-    Change options to trade off compression efficiency against encoding speed.
-    If you specify a preset, the changes it makes will be applied before all other parameters are applied.
-    You should generally set this option to the slowest you can bear.
-    Values available: ultrafast, superfast, veryfast, faster, fast, medium, slow, slower, veryslow, placebo.
-    */
-    // av_dict_set(&opts, "preset", "superfast", 0); // Encoding option
+        if (result == READ_VIDEO && decodePacket(session, &packet, frame)) {
+            do {
+                fanOutFrame(env, session, frame);
+                if (holdLatestFrame(session, frame) && isFrameDue(session, frame) && isFrameChanged(session, frame) &&
+                    convertFrame(env, session, frame, &converted)) {
+                    presentFrame(env, session, converted);
+                }
+                av_frame_unref(frame);
+            } while (receiveFrame(session, frame));
+        }
+        av_packet_unref(&packet);
+    }
 
-    /*
-     Tune options to further optimize them for your input content. If you specify a tuning,
-     the changes will be applied after --preset but before all other parameters.
-     If your source content matches one of the available tunings you can use this, otherwise leave unset.
-     Values available: film, animation, grain, stillimage, psnr, ssim, fastdecode, zerolatency.
-     */
-    // av_dict_set(&opts, "tune", "zerolatency", 0); // Encoding option
+    av_frame_free(&frame);
 
-    av_dict_set(&options, "min_port", minportstring, 0);
-    av_dict_set(&options, "max_port", maxportstring, 0);
+    return session->isStop ? JNI_OK : JNI_ERR;
+}
 
-    /**
-    // Other options we feasibly could set.  No experimentation has been done to determine if
-    // These are relevant / help?  (added by SSEIFERT on 01/30/2019)
-    av_dict_set(&options, "analyzeduration", "0", 0);
-    av_dict_set(&options, "flush_packets", "1", 0);
-    av_dict_set(&options, "fflags", "nobuffer", 0);
-    av_dict_set(&options, "sync", "1", 0);
-     */
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_stop(
+        JNIEnv *env,
+        jobject thiz) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        session->isStop = true;
+    }
+}
 
-    //av_dict_set(&option, "rtsp_transport", "tcp", 0); // DISABLED BY SSEIFERT 01/30/2019
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureDecoder(
+        JNIEnv *env,
+        jobject thiz,
+        jint threadCount,
+        jint threadType) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        session->decoderThreadCount = threadCount;
+        session->decoderThreadType = threadType;
+    }
+}
 
-    // Open RTSP
-    const char *rtspUrl= env->GetStringUTFChars(endpoint, JNI_FALSE);
-    if (int err = avformat_open_input(&context, rtspUrl, NULL, &options) != 0) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "Cannot open input %s, error code: %d", rtspUrl, err);
-        return JNI_ERR;
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configurePipeline(
+        JNIEnv *env,
+        jobject thiz,
+        jboolean pipelined) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        session->pipelined.store(pipelined, std::memory_order_relaxed);
     }
-    env->ReleaseStringUTFChars(endpoint, rtspUrl);
+}
 
-    av_dict_free(&options);
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureQueue(
+        JNIEnv *env,
+        jobject thiz,
+        jint queue,
+        jint capacity,
+        jint dropPolicy) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL && queue >= 0 && queue < QUEUE_COUNT) {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        session->queues[queue].capacity = capacity;
+        session->queues[queue].dropPolicy = dropPolicy;
+    }
+}
 
-    if (avformat_find_stream_info(context, NULL) < 0){
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "Cannot find stream info");
-        return JNI_ERR;
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureOutput(
+        JNIEnv *env,
+        jobject thiz,
+        jint width,
+        jint height,
+        jint cropX,
+        jint cropY,
+        jint cropWidth,
+        jint cropHeight,
+        jint scaler) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL) {
+        return;
     }
 
-    // Search video * audio stream
-    for (int i = 0; i < context->nb_streams; i++) {
-        switch (context->streams[i]->codec->codec_type) {
-            case AVMEDIA_TYPE_VIDEO:
-                video_stream_index = i;
-                break;
-            case AVMEDIA_TYPE_AUDIO:
-                audio_stream_index = i;
-                break;
-        }
+    std::lock_guard<std::mutex> lock(session->outputSpecMutex);
+    OutputSpec &spec = session->outputSpec;
+    spec.width = width;
+    spec.height = height;
+    spec.cropX = cropX;
+    spec.cropY = cropY;
+    spec.cropWidth = cropWidth;
+    spec.cropHeight = cropHeight;
+    spec.scaler = scaler;
+    session->outputSpecVersion++;
+}
+
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureDecodeRate(
+        JNIEnv *env,
+        jobject thiz,
+        jint decodeMode,
+        jlong frameIntervalUs) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        session->decodeMode = decodeMode;
+        session->frameIntervalUs = frameIntervalUs;
     }
+}
 
-    if (video_stream_index == -1) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "Video stream not found");
-        return JNI_ERR;
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configurePlayout(
+        JNIEnv *env,
+        jobject thiz,
+        jlong delayUs,
+        jlong maxDelayUs) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        // Applies right away, turning the playout stage on or off only with the next connection
+        session->playoutDelayUs = delayUs;
+        session->playoutMaxDelayUs = maxDelayUs;
     }
+}
 
-    AVPacket packet;
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureGopCache(
+        JNIEnv *env,
+        jobject thiz,
+        jlong maxBytes,
+        jlong maxDurationUs) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        // Picked up with the next packet, which also trims or empties the cache
+        session->gopCacheMaxDurationUs.store(maxDurationUs, std::memory_order_relaxed);
+        session->gopCacheMaxBytes.store(maxBytes, std::memory_order_relaxed);
+    }
+}
 
-    // Open output file
-    AVFormatContext *oc = avformat_alloc_context();
-    AVStream *stream = NULL;
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureDecoding(
+        JNIEnv *env,
+        jobject thiz,
+        jboolean decoding) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        session->decoding.store(decoding, std::memory_order_relaxed);
+    }
+}
 
-    // Start reading packets from stream and write them to file
-    av_read_play(context);
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureAudio(
+        JNIEnv *env,
+        jobject thiz,
+        jboolean enabled,
+        jint encoding,
+        jint sampleRate,
+        jint channelCount) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL) {
+        return;
+    }
+    std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+    session->audioConfig.enabled = enabled;
+    session->audioConfig.encoding = encoding;
+    session->audioConfig.sampleRate = sampleRate;
+    session->audioConfig.channelCount = channelCount;
+}
 
-    AVCodec *codec = NULL;
-    codec = avcodec_find_decoder(AV_CODEC_ID_H264);
-    if (!codec) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "Cannot find decoder H264");
-        return JNI_ERR;
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureScheduler(
+        JNIEnv *env,
+        jobject thiz,
+        jlong schedulerHandle,
+        jint priority) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL) {
+        return;
+    }
+    DecodeScheduler *scheduler = reinterpret_cast<DecodeScheduler *>(schedulerHandle);
+    DecodeScheduler *previous;
+    {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        previous = session->scheduler;
+        if (scheduler != NULL && scheduler != previous) {
+            schedulerRetain(scheduler);
+        }
+        session->scheduler = scheduler;
     }
+    session->schedulerPriority = priority;
+    if (previous != NULL && previous != scheduler) {
+        schedulerRelease(previous);
+    }
+}
 
-    avcodec_get_context_defaults3(ccontext, codec);
-    avcodec_copy_context(ccontext, context->streams[video_stream_index]->codec);
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureRecording(
+        JNIEnv *env,
+        jobject thiz,
+        jstring directory,
+        jstring filePrefix,
+        jint container,
+        jlong segmentDurationUs,
+        jlong segmentSizeBytes) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL) {
+        return;
+    }
 
-    if (avcodec_open2(ccontext, codec, NULL) < 0) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "Cannot open codec");
-        return JNI_ERR;
+    RecordingConfig *recording = NULL;
+    if (directory != NULL) {
+        recording = new RecordingConfig;
+        const char *directoryChars = env->GetStringUTFChars(directory, JNI_FALSE);
+        const char *filePrefixChars = env->GetStringUTFChars(filePrefix, JNI_FALSE);
+        recording->directory = directoryChars;
+        recording->filePrefix = filePrefixChars;
+        env->ReleaseStringUTFChars(directory, directoryChars);
+        env->ReleaseStringUTFChars(filePrefix, filePrefixChars);
+        recording->container = container;
+        recording->segmentDurationUs = segmentDurationUs;
+        recording->segmentSizeBytes = segmentSizeBytes;
     }
 
-    img_convert_ctx = sws_getContext(ccontext->width, ccontext->height, ccontext->pix_fmt, ccontext->width, ccontext->height,
-                                     AV_PIX_FMT_RGB24, SWS_BICUBIC, NULL, NULL, NULL);
+    std::lock_guard<std::mutex> lock(session->recordingMutex);
+    delete session->recording;
+    session->recording = recording;
+    session->recordingChanged = true;
+}
 
-    size_t size = (size_t) avpicture_get_size(AV_PIX_FMT_YUV420P, ccontext->width, ccontext->height);
-    uint8_t *picture_buf = (uint8_t*)(av_malloc(size));
-    AVFrame *pic = av_frame_alloc();
-    AVFrame *picrgb = av_frame_alloc();
-    size_t size2 = (size_t) avpicture_get_size(AV_PIX_FMT_RGB24, ccontext->width, ccontext->height);
-    uint8_t *picture_buf2 = (uint8_t*)(av_malloc(size2));
-    avpicture_fill( (AVPicture*) pic, picture_buf, AV_PIX_FMT_YUV420P, ccontext->width, ccontext->height );
-    avpicture_fill( (AVPicture*) picrgb, picture_buf2, AV_PIX_FMT_RGB24, ccontext->width, ccontext->height );
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_readStats(
+        JNIEnv *env,
+        jobject thiz,
+        jlongArray values) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL || env->GetArrayLength(values) < STATS_SNAPSHOT_SIZE) {
+        return;
+    }
 
-    isStop = false;
-    while (!isStop) {
-        av_init_packet(&packet);
+    jlong snapshot[STATS_SNAPSHOT_SIZE];
+    statsSnapshot(&session->stats, reinterpret_cast<int64_t *>(snapshot));
+    env->SetLongArrayRegion(values, 0, STATS_SNAPSHOT_SIZE, snapshot);
+}
 
-        if (av_read_frame(context, &packet) > 0) {
-            break;
-        }
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_releaseFrame(
+        JNIEnv *env,
+        jobject thiz,
+        jint index) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL && session->pooled) {
+        frameRingRelease(session->frameRing, index);
+    }
+}
 
-        if (packet.stream_index == video_stream_index) { // Packet is video
-            if (stream == NULL) {
-                stream = avformat_new_stream(oc, context->streams[video_stream_index]->codec->codec);
-                avcodec_copy_context(stream->codec, context->streams[video_stream_index]->codec);
-                stream->sample_aspect_ratio = context->streams[video_stream_index]->codec->sample_aspect_ratio;
-            }
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureLatestFrame(
+        JNIEnv *env,
+        jobject thiz,
+        jboolean latestFrameOnly) {
+    Session *session = getSession(env, thiz);
+    if (session != NULL) {
+        session->latestFrameOnly = latestFrameOnly;
+    }
+}
+
+extern "C"
+jint
+Java_com_potterhsu_rtsplibrary_RtspClient_grabLatestFrame(
+        JNIEnv *env,
+        jobject thiz,
+        jobject buffer,
+        jint format,
+        jint width,
+        jint height) {
+    Session *session = getSession(env, thiz);
+    uint8_t *dst = static_cast<uint8_t *>(env->GetDirectBufferAddress(buffer));
+    if (session == NULL || dst == NULL) {
+        return 0;
+    }
+    int64_t size = grabLatestFrame(session, dst, env->GetDirectBufferCapacity(buffer), format, width, height);
+    return (jint) FFMAX(FFMIN(size, INT32_MAX), -INT32_MAX);
+}
 
-            int check = 0;
-            packet.stream_index = stream->id;
-            avcodec_decode_video2(ccontext, pic, &check, &packet);
-            sws_scale(img_convert_ctx, (const uint8_t * const *)pic->data, pic->linesize, 0, ccontext->height, picrgb->data, picrgb->linesize);
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_RtspClient_configureMotion(
+        JNIEnv *env,
+        jobject thiz,
+        jboolean enabled,
+        jint cellThreshold,
+        jfloat minScore,
+        jlong heartbeatUs,
+        jbooleanArray mask,
+        jint maskColumns,
+        jint maskRows) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL) {
+        return;
+    }
 
-            callback(env, picture_buf2, 3, ccontext->width, ccontext->height);
-        } else if (packet.stream_index == audio_stream_index) {
-            // Do audio related things!
+    MotionConfig config;
+    config.enabled = enabled;
+    config.cellThreshold = cellThreshold;
+    config.minScore = minScore;
+    config.heartbeatUs = heartbeatUs;
+    memset(config.mask, 1, sizeof(config.mask));
+    if (mask != NULL && maskColumns > 0 && maskRows > 0) {
+        // Each grid cell takes the mask value at its centre
+        jboolean *values = env->GetBooleanArrayElements(mask, NULL);
+        for (int row = 0; row < MOTION_GRID_ROWS; row++) {
+            int maskRow = (2 * row + 1) * maskRows / (2 * MOTION_GRID_ROWS);
+            for (int column = 0; column < MOTION_GRID_COLUMNS; column++) {
+                int maskColumn = (2 * column + 1) * maskColumns / (2 * MOTION_GRID_COLUMNS);
+                config.mask[row * MOTION_GRID_COLUMNS + column] = values[maskRow * maskColumns + maskColumn];
+            }
         }
+        env->ReleaseBooleanArrayElements(mask, values, JNI_ABORT);
+    }
+
+    std::lock_guard<std::mutex> lock(session->motionMutex);
+    session->motionConfig = config;
+    session->motionConfigVersion++;
+}
+
+extern "C"
+jfloat
+Java_com_potterhsu_rtsplibrary_RtspClient_frameMotionScore(
+        JNIEnv *env,
+        jobject thiz,
+        jint index) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL || !session->pooled || index < 0 || index >= session->frameRing->count) {
+        return MOTION_SCORE_UNKNOWN;
     }
+    return session->frameRing->slots[index].motionScore;
+}
 
-    av_free_packet(&packet);
-    av_free(pic);
-    av_free(picrgb);
-    av_free(picture_buf);
-    av_free(picture_buf2);
+extern "C"
+jlong
+Java_com_potterhsu_rtsplibrary_RtspClient_framePtsUs(
+        JNIEnv *env,
+        jobject thiz,
+        jint index) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL || !session->pooled || index < 0 || index >= session->frameRing->count) {
+        return AV_NOPTS_VALUE;
+    }
+    return session->frameRing->slots[index].ptsUs;
+}
 
-    av_read_pause(context);
-    avio_close(oc->pb);
-    avformat_free_context(oc);
-    avformat_close_input(&context);
+extern "C"
+jlong
+Java_com_potterhsu_rtsplibrary_RtspClient_frameReceiveTimeUs(
+        JNIEnv *env,
+        jobject thiz,
+        jint index) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL || !session->pooled || index < 0 || index >= session->frameRing->count) {
+        return AV_NOPTS_VALUE;
+    }
+    return session->frameRing->slots[index].receiveTimeUs;
+}
 
-    return isStop ? JNI_OK : JNI_ERR;
+extern "C"
+jboolean
+Java_com_potterhsu_rtsplibrary_RtspClient_addSubscriber(
+        JNIEnv *env,
+        jobject thiz,
+        jobject subscriber) {
+    Session *session = getSession(env, thiz);
+    Session *subscriberSession = getSession(env, subscriber);
+    if (session == NULL || subscriberSession == NULL) {
+        return JNI_FALSE;
+    }
+    return subscriberAdd(env, session, subscriberSession);
 }
 
 extern "C"
 void
-Java_com_potterhsu_rtsplibrary_RtspClient_stop(
+Java_com_potterhsu_rtsplibrary_RtspClient_removeSubscriber(
         JNIEnv *env,
-        jobject) {
-    isStop = true;
+        jobject thiz,
+        jobject subscriber) {
+    Session *session = getSession(env, thiz);
+    Session *subscriberSession = getSession(env, subscriber);
+    if (session == NULL || subscriberSession == NULL) {
+        return;
+    }
+    if (subscriberRemove(session, subscriberSession)) {
+        destroySession(env, subscriberSession);
+    }
 }
 
 extern "C"
 void
-Java_com_potterhsu_rtsplibrary_RtspClient_dispose(
+Java_com_potterhsu_rtsplibrary_RtspClient_destroy(
         JNIEnv *env,
-        jobject) {
-    env->DeleteGlobalRef(gCallback);
+        jobject thiz) {
+    Session *session = getSession(env, thiz);
+    if (session == NULL) {
+        return;
+    }
+    env->SetLongField(thiz, gNativeHandleFieldId, 0);
+
+    bool playing;
+    {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        session->disposed = true;
+        session->isStop = true;
+        playing = session->playing;
+    }
+    if (!playing) {
+        destroySession(env, session);
+    }
 }
 
-void callback(JNIEnv *env, uint8_t *buf, int nChannel, int width, int height) {
-    int len = nChannel * width * height;
-    jbyteArray gByteArray = env->NewByteArray(len);
-    env->SetByteArrayRegion(gByteArray, 0, len, (jbyte *) buf);
-    env->CallVoidMethod(gCallback, gCallbackMethodId, gByteArray, nChannel, width, height);
-    env->DeleteLocalRef(gByteArray);
+void destroySession(JNIEnv *env, Session *session) {
+    // Subscribers left behind stop receiving, any already disposed go with us
+    while (!session->subscribers.empty()) {
+        Session *subscriber = session->subscribers.back()->session;
+        if (subscriberRemove(session, subscriber)) {
+            destroySession(env, subscriber);
+        }
+    }
+    // What needs the JNIEnv, the destructor frees the rest
+    if (session->frameRing != NULL) {
+        frameRingDestroy(env, session->frameRing);
+    }
+    directBufferFree(env, &session->packetBuffer);
+    directBufferFree(env, &session->audioBuffer);
+    env->DeleteGlobalRef(session->callback);
+    env->DeleteGlobalRef(session->audioCallback);
+    delete session;
 }
-
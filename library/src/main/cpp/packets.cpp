@@ -0,0 +1,138 @@
+#include "log.h"
+
+#include "player.h"
+
+extern "C" {
+#include <libavutil/time.h>
+}
+
+static const char *TAG = __FILE__;
+
+/**
+ * RTSP usually carries SPS / PPS as Annex-B already (sprop-parameter-sets), other sources may
+ * hand out avcC, which is converted with h264_mp4toannexb.
+ */
+static bool isAnnexB(const uint8_t *data, int size) {
+    return size >= 3 && data[0] == 0 && data[1] == 0 &&
+           (data[2] == 1 || (size >= 4 && data[2] == 0 && data[3] == 1));
+}
+
+static int openBitstreamFilter(Session *session, const AVStream *stream) {
+    AVCodecParameters *parameters = stream->codecpar;
+    if (parameters->extradata_size == 0 || isAnnexB(parameters->extradata, parameters->extradata_size)) {
+        return 0;
+    }
+
+    const AVBitStreamFilter *filter = av_bsf_get_by_name("h264_mp4toannexb");
+    if (filter == NULL || av_bsf_alloc(filter, &session->bitstreamFilter) < 0) {
+        return -1;
+    }
+    avcodec_parameters_copy(session->bitstreamFilter->par_in, parameters);
+    session->bitstreamFilter->time_base_in = stream->time_base;
+    return av_bsf_init(session->bitstreamFilter);
+}
+
+/**
+ * Hands SPS / PPS to Java.  Streams without them in the SDP only carry them in-band, in which
+ * case there is nothing to send.
+ */
+static void deliverCodecConfig(JNIEnv *env, Session *session, const AVStream *stream) {
+    AVCodecParameters *parameters = session->bitstreamFilter != NULL ?
+            session->bitstreamFilter->par_out : stream->codecpar;
+    int size = parameters->extradata_size;
+    if (size == 0 || !directBufferReserve(env, &session->packetBuffer, (size_t) size)) {
+        return;
+    }
+
+    memcpy(session->packetBuffer.data, parameters->extradata, (size_t) size);
+    env->DeleteLocalRef(env->CallObjectMethod(session->packetBuffer.buffer, gBufferClearMethodId));
+    env->CallVoidMethod(session->callback, session->codecConfigMethodId, session->packetBuffer.buffer, size);
+}
+
+static jlong toMicroseconds(int64_t timestamp, AVRational timeBase) {
+    // AV_NOPTS_VALUE is Long.MIN_VALUE, which is RtspClient.NO_TIMESTAMP
+    return timestamp == AV_NOPTS_VALUE ? AV_NOPTS_VALUE : av_rescale_q(timestamp, timeBase, AV_TIME_BASE_Q);
+}
+
+static void deliverPacket(JNIEnv *env, Session *session, AVRational timeBase, const AVPacket *packet) {
+    if (!directBufferReserve(env, &session->packetBuffer, (size_t) packet->size)) {
+        LOGE("Cannot allocate %d bytes for a packet", packet->size);
+        return;
+    }
+
+    int64_t ptsUs = toMicroseconds(packet->pts, timeBase);
+    int64_t startUs = av_gettime_relative();
+    statsFrameDelivered(&session->stats, ptsUs, startUs);
+
+    memcpy(session->packetBuffer.data, packet->data, (size_t) packet->size);
+    env->DeleteLocalRef(env->CallObjectMethod(session->packetBuffer.buffer, gBufferClearMethodId));
+    env->CallVoidMethod(session->callback, session->callbackMethodId, session->packetBuffer.buffer,
+                        packet->size, ptsUs, toMicroseconds(packet->dts, timeBase),
+                        (jboolean) ((packet->flags & AV_PKT_FLAG_KEY) != 0));
+    session->stats.stages[STAGE_CALLBACK].record(av_gettime_relative() - startUs);
+}
+
+/**
+ * Converts the packet to Annex-B if needed and delivers it.  Takes over the packet's reference.
+ */
+static void filterAndDeliver(JNIEnv *env, Session *session, AVRational timeBase, AVPacket *packet) {
+    if (session->bitstreamFilter == NULL) {
+        deliverPacket(env, session, timeBase, packet);
+        av_packet_unref(packet);
+        return;
+    }
+    // The filter takes over the packet's reference and may hand back more than one.
+    if (av_bsf_send_packet(session->bitstreamFilter, packet) == 0) {
+        while (av_bsf_receive_packet(session->bitstreamFilter, packet) == 0) {
+            deliverPacket(env, session, timeBase, packet);
+            av_packet_unref(packet);
+        }
+    }
+    av_packet_unref(packet);
+}
+
+void forwardPacket(JNIEnv *env, Session *session, const AVStream *stream, const AVPacket *packet, bool newStream) {
+    if (newStream) {
+        av_bsf_free(&session->bitstreamFilter);
+        if (openBitstreamFilter(session, stream) < 0) {
+            LOGE("Cannot open h264_mp4toannexb");
+            av_bsf_free(&session->bitstreamFilter);
+        }
+        deliverCodecConfig(env, session, stream);
+    }
+
+    AVPacket copy;
+    av_init_packet(&copy);
+    if (av_packet_ref(&copy, packet) == 0) {
+        filterAndDeliver(env, session, stream->time_base, &copy);
+    }
+}
+
+jint playPackets(JNIEnv *env, Session *session) {
+    AVStream *stream = session->formatContext->streams[session->videoStreamIndex];
+    if (openBitstreamFilter(session, stream) < 0) {
+        LOGE("Cannot open h264_mp4toannexb");
+        return JNI_ERR;
+    }
+    deliverCodecConfig(env, session, stream);
+
+    AVPacket packet;
+    av_init_packet(&packet);
+    packet.data = NULL;
+    packet.size = 0;
+
+    while (!session->isStop) {
+        int result = readPacket(session, &packet);
+        if (result == READ_END) {
+            break;
+        }
+
+        if (result == READ_VIDEO) {
+            filterAndDeliver(env, session, stream->time_base, &packet);
+        } else {
+            av_packet_unref(&packet);
+        }
+    }
+
+    return session->isStop ? JNI_OK : JNI_ERR;
+}
@@ -0,0 +1,239 @@
+#include <thread>
+#include "log.h"
+
+#include "fanout.h"
+#include "player.h"
+#include "playout.h"
+#include "snapshot.h"
+#include "spsc_queue.h"
+
+static const char *TAG = __FILE__;
+
+/**
+ * Queues between the stages of a pipelined play().  Packets and frames are preallocated and
+ * cycle through the free queues, so the pipeline doesn't allocate once it's running.
+ */
+struct Pipeline {
+    Session *session;
+
+    SpscQueue<AVPacket *> freePackets;
+    StageChannel<AVPacket *> packets;
+
+    SpscQueue<AVFrame *> freeFrames;
+    StageChannel<AVFrame *> frames;
+
+    StageChannel<ConvertedFrame> converted;
+
+    Pipeline(Session *session);
+    ~Pipeline();
+};
+
+static void discardPacket(AVPacket *packet, void *opaque) {
+    av_packet_unref(packet);
+    static_cast<Pipeline *>(opaque)->freePackets.push(packet);
+}
+
+static void discardFrame(AVFrame *frame, void *opaque) {
+    av_frame_unref(frame);
+    static_cast<Pipeline *>(opaque)->freeFrames.push(frame);
+}
+
+static void discardConverted(ConvertedFrame converted, void *opaque) {
+    frameRingRelease(static_cast<Pipeline *>(opaque)->session->frameRing, converted.index);
+}
+
+// One item per queue slot, plus one held by the producer and one by the consumer
+Pipeline::Pipeline(Session *session)
+        : session(session),
+          freePackets((size_t) session->activeQueues[QUEUE_PACKETS].capacity + 2),
+          packets((size_t) session->activeQueues[QUEUE_PACKETS].capacity,
+                  session->activeQueues[QUEUE_PACKETS].dropPolicy, discardPacket, this,
+                  &session->stats.counters[COUNTER_DROPPED_PACKETS]),
+          freeFrames((size_t) session->activeQueues[QUEUE_FRAMES].capacity + 2),
+          frames((size_t) session->activeQueues[QUEUE_FRAMES].capacity,
+                 session->activeQueues[QUEUE_FRAMES].dropPolicy, discardFrame, this,
+                 &session->stats.counters[COUNTER_DROPPED_FRAMES]),
+          converted((size_t) session->activeQueues[QUEUE_CONVERTED].capacity,
+                    session->activeQueues[QUEUE_CONVERTED].dropPolicy, discardConverted, this,
+                    &session->stats.counters[COUNTER_DROPPED_FRAMES]) {
+    for (size_t i = 0; i < freePackets.capacity(); i++) {
+        freePackets.push(av_packet_alloc());
+    }
+    for (size_t i = 0; i < freeFrames.capacity(); i++) {
+        freeFrames.push(av_frame_alloc());
+    }
+}
+
+Pipeline::~Pipeline() {
+    packets.drain();
+    frames.drain();
+    converted.drain();
+
+    AVPacket *packet;
+    while (freePackets.pop(packet)) {
+        av_packet_free(&packet);
+    }
+    AVFrame *frame;
+    while (freeFrames.pop(frame)) {
+        av_frame_free(&frame);
+    }
+}
+
+template <typename T>
+static T *takeFree(SpscQueue<T *> &queue, const std::atomic<bool> &stop) {
+    T *item = NULL;
+    Backoff backoff;
+    while (!queue.pop(item)) {
+        if (stop) {
+            return NULL;
+        }
+        backoff.pause();
+    }
+    return item;
+}
+
+/**
+ * Network thread, only reads packets so a slow consumer never holds up the RTP receive path
+ * unless the packet queue policy says so.
+ */
+static void demuxStage(Pipeline *pipeline) {
+    Session *session = pipeline->session;
+    // Audio is delivered from here
+    attachCurrentThread();
+    AVPacket *packet = takeFree(pipeline->freePackets, session->isStop);
+    AVPacket *oldest;
+    bool evicted;
+
+    while (packet != NULL && !session->isStop) {
+        int result = readPacket(session, packet);
+        if (result == READ_END) {
+            break;
+        }
+        if (result == READ_VIDEO &&
+            pipeline->packets.put(packet, isDisposablePacket(packet), session->isStop, oldest, &evicted)) {
+            if (evicted) {
+                // Reused right away, this thread couldn't hand it back to freePackets anyway
+                av_packet_unref(oldest);
+                packet = oldest;
+            } else {
+                packet = takeFree(pipeline->freePackets, session->isStop);
+            }
+        } else {
+            av_packet_unref(packet);
+        }
+    }
+
+    // This thread is the consumer of freePackets, so it can't hand the packet back.
+    av_packet_free(&packet);
+    pipeline->packets.close();
+    detachCurrentThread();
+}
+
+static void decodeStage(Pipeline *pipeline) {
+    Session *session = pipeline->session;
+    // Subscribers of a shared connection get their frames converted and delivered from here
+    JNIEnv *env = attachCurrentThread();
+    AVFrame *frame = takeFree(pipeline->freeFrames, session->isStop);
+    AVFrame *oldest;
+    bool evicted;
+    AVPacket *packet;
+    bool flushed;
+    // After packets were dropped, references are missing until the next keyframe.
+    bool awaitKeyframe = false;
+
+    while (frame != NULL && pipeline->packets.take(packet, &flushed, session->isStop)) {
+        awaitKeyframe |= flushed;
+        if (awaitKeyframe && !(packet->flags & AV_PKT_FLAG_KEY)) {
+            discardPacket(packet, pipeline);
+            continue;
+        }
+        awaitKeyframe = false;
+
+        bool decoded = decodePacket(session, packet, frame);
+        discardPacket(packet, pipeline);
+        while (decoded) {
+            fanOutFrame(env, session, frame);
+            if (!holdLatestFrame(session, frame) || !isFrameDue(session, frame) || !isFrameChanged(session, frame)) {
+                av_frame_unref(frame);
+            } else if (pipeline->frames.put(frame, true, session->isStop, oldest, &evicted)) {
+                // Decoded frames are never referenced downstream, so they may always be dropped.
+                if (evicted) {
+                    av_frame_unref(oldest);
+                    frame = oldest;
+                } else {
+                    frame = takeFree(pipeline->freeFrames, session->isStop);
+                    if (frame == NULL) {
+                        break;
+                    }
+                }
+            } else {
+                av_frame_unref(frame);
+            }
+            decoded = receiveFrame(session, frame);
+        }
+    }
+
+    av_frame_free(&frame);
+    pipeline->frames.close();
+    detachCurrentThread();
+}
+
+static void convertStage(Pipeline *pipeline) {
+    Session *session = pipeline->session;
+    // Growing the frame ring creates direct ByteBuffers
+    JNIEnv *env = attachCurrentThread();
+    AVFrame *frame;
+    bool flushed;
+    ConvertedFrame converted;
+    ConvertedFrame oldest;
+    bool evicted;
+
+    while (pipeline->frames.take(frame, &flushed, session->isStop)) {
+        bool ok = convertFrame(env, session, frame, &converted);
+        discardFrame(frame, pipeline);
+        if (!ok) {
+            continue;
+        }
+        if (!pipeline->converted.put(converted, true, session->isStop, oldest, &evicted)) {
+            frameRingRelease(session->frameRing, converted.index);
+        } else if (evicted) {
+            frameRingRelease(session->frameRing, oldest.index);
+        }
+    }
+
+    pipeline->converted.close();
+    detachCurrentThread();
+}
+
+jint playPipelined(JNIEnv *env, Session *session) {
+    Pipeline *pipeline = new Pipeline(session);
+
+    std::thread demux(demuxStage, pipeline);
+    std::thread decode(decodeStage, pipeline);
+    std::thread convert(convertStage, pipeline);
+
+    // Deliver (or hand to the playout stage) on the calling thread, it is already attached to
+    // the JVM.
+    ConvertedFrame converted;
+    bool flushed;
+    while (pipeline->converted.take(converted, &flushed, session->isStop)) {
+        session->stats.counters[COUNTER_QUEUE_DEPTH].store(
+                (int64_t) (pipeline->packets.size() + pipeline->frames.size() + pipeline->converted.size()),
+                std::memory_order_relaxed);
+        presentFrame(env, session, converted);
+    }
+
+    // Either stop() was called or the stream ended, in which case the other stages wind down
+    // on their own as their input channels close.
+    demux.join();
+    decode.join();
+    convert.join();
+    session->stats.counters[COUNTER_QUEUE_DEPTH].store(0, std::memory_order_relaxed);
+
+    LOGI("Pipeline dropped %ld packets, %ld frames, %ld converted frames",
+         pipeline->packets.droppedCount(), pipeline->frames.droppedCount(),
+         pipeline->converted.droppedCount());
+    delete pipeline;
+
+    return session->isStop ? JNI_OK : JNI_ERR;
+}
@@ -0,0 +1,723 @@
+#include "log.h"
+
+#include "fanout.h"
+#include "player.h"
+#include "snapshot.h"
+
+extern "C" {
+#include <libavutil/imgutils.h>
+#include <libavutil/pixdesc.h>
+#include <libavutil/time.h>
+}
+
+static const char *TAG = __FILE__;
+
+// How long closing may take to tell the server
+static const int64_t CLOSE_TIMEOUT_US = 500000;
+
+JavaVM *gJavaVM = NULL;
+jmethodID gBufferClearMethodId;
+
+static size_t copyYuvPlanes(AVFrame *frame, int height, uint8_t *dst);
+
+static int interruptCallback(void *opaque) {
+    Session *session = static_cast<Session *>(opaque);
+    if (session->isStop && !session->closingStream) {
+        return 1;
+    }
+    if (session->ioDeadlineUs != AV_NOPTS_VALUE && av_gettime_relative() > session->ioDeadlineUs) {
+        session->ioTimedOut = true;
+        return 1;
+    }
+    return 0;
+}
+
+/**
+ * Blocking I/O from now on gives up after timeoutUs, 0 for never.
+ */
+static void setIoTimeout(Session *session, int64_t timeoutUs) {
+    session->ioDeadlineUs = timeoutUs > 0 ? av_gettime_relative() + timeoutUs : AV_NOPTS_VALUE;
+}
+
+/**
+ * On a reconnect to the same endpoint, takes the codec parameters probed last time instead of
+ * running avformat_find_stream_info, which would read several frames first.  Only done while the
+ * SDP still announces the same codec and parameter sets.
+ */
+static bool restoreStreamInfo(Session *session, const std::string &url) {
+    AVCodecParameters *cached = session->cachedParameters;
+    if (cached == NULL || url != session->cachedEndpoint) {
+        return false;
+    }
+
+    AVFormatContext *context = session->formatContext;
+    AVStream *video = NULL;
+    for (unsigned int i = 0; i < context->nb_streams; i++) {
+        if (context->streams[i]->codecpar->codec_type == AVMEDIA_TYPE_VIDEO) {
+            video = context->streams[i];
+            break;
+        }
+    }
+    if (video == NULL || video->codecpar->codec_id != cached->codec_id) {
+        return false;
+    }
+    AVCodecParameters *announced = video->codecpar;
+    if (announced->extradata_size > 0 &&
+        (announced->extradata_size != cached->extradata_size ||
+         memcmp(announced->extradata, cached->extradata, (size_t) announced->extradata_size) != 0)) {
+        return false;
+    }
+
+    avcodec_parameters_copy(video->codecpar, cached);
+    LOGI("Reusing stream info of the last connection");
+    return true;
+}
+
+static void cacheStreamInfo(Session *session, const std::string &url) {
+    AVFormatContext *context = session->formatContext;
+    for (unsigned int i = 0; i < context->nb_streams; i++) {
+        if (context->streams[i]->codecpar->codec_type == AVMEDIA_TYPE_VIDEO) {
+            if (session->cachedParameters == NULL) {
+                session->cachedParameters = avcodec_parameters_alloc();
+            }
+            avcodec_parameters_copy(session->cachedParameters, context->streams[i]->codecpar);
+            session->cachedEndpoint = url;
+            return;
+        }
+    }
+}
+
+JNIEnv *attachCurrentThread() {
+    JNIEnv *env = NULL;
+#ifdef __ANDROID__
+    gJavaVM->AttachCurrentThread(&env, NULL);
+#else
+    gJavaVM->AttachCurrentThread((void **) &env, NULL);
+#endif
+    return env;
+}
+
+void detachCurrentThread() {
+    gJavaVM->DetachCurrentThread();
+}
+
+jint openStream(JNIEnv *env, Session *session, jstring endpoint, jobjectArray optionArray) {
+
+    AVFormatContext *&context = session->formatContext;
+    AVCodecContext *&ccontext = session->codecContext;
+    context = avformat_alloc_context();
+    // Lets stop() and the stall timeout break out of blocking network I/O
+    context->interrupt_callback.callback = interruptCallback;
+    context->interrupt_callback.opaque = session;
+    ccontext = NULL;
+    int &video_stream_index = session->videoStreamIndex;
+    int &audio_stream_index = session->audioStreamIndex;
+    video_stream_index = -1;
+    audio_stream_index = -1;
+    // Timestamps start over with every connection
+    session->stats.ptsOffsetUs = AV_NOPTS_VALUE;
+
+    // Key / value pairs from RtspOptions
+    AVDictionary *options = NULL;
+    jsize optionCount = env->GetArrayLength(optionArray);
+    for (jsize i = 0; i + 1 < optionCount; i += 2) {
+        jstring key = (jstring) env->GetObjectArrayElement(optionArray, i);
+        jstring value = (jstring) env->GetObjectArrayElement(optionArray, i + 1);
+        const char *keyChars = env->GetStringUTFChars(key, JNI_FALSE);
+        const char *valueChars = env->GetStringUTFChars(value, JNI_FALSE);
+        av_dict_set(&options, keyChars, valueChars, 0);
+        env->ReleaseStringUTFChars(key, keyChars);
+        env->ReleaseStringUTFChars(value, valueChars);
+        env->DeleteLocalRef(key);
+        env->DeleteLocalRef(value);
+    }
+
+    // Open RTSP
+    const char *rtspUrl = env->GetStringUTFChars(endpoint, JNI_FALSE);
+    std::string url = rtspUrl;
+    env->ReleaseStringUTFChars(endpoint, rtspUrl);
+    setIoTimeout(session, session->stallTimeoutUs);
+    int err = avformat_open_input(&context, url.c_str(), NULL, &options);
+    if (err == 0) {
+        // Whatever is left wasn't understood by the demuxer
+        AVDictionaryEntry *unused = NULL;
+        while ((unused = av_dict_get(options, "", unused, AV_DICT_IGNORE_SUFFIX)) != NULL) {
+            LOGW("Unused option %s=%s", unused->key, unused->value);
+        }
+    }
+    av_dict_free(&options);
+    if (err != 0) {
+        // The context is freed on failure, everything else is left to closeStream().
+        LOGE("Cannot open input %s, error code: %d", url.c_str(), err);
+        return JNI_ERR;
+    }
+
+    // Probing reads up to max_analyze_duration of the stream on top of waiting for it.
+    int64_t analyzeDurationUs = context->max_analyze_duration > 0 ? context->max_analyze_duration : 5 * AV_TIME_BASE;
+    if (!restoreStreamInfo(session, url)) {
+        setIoTimeout(session, session->stallTimeoutUs + analyzeDurationUs);
+        if (avformat_find_stream_info(context, NULL) < 0){
+            LOGE("Cannot find stream info");
+            return JNI_ERR;
+        }
+        cacheStreamInfo(session, url);
+    }
+
+    // Search video * audio stream
+    for (unsigned int i = 0; i < context->nb_streams; i++) {
+        switch (context->streams[i]->codecpar->codec_type) {
+            case AVMEDIA_TYPE_VIDEO:
+                video_stream_index = (int) i;
+                break;
+            case AVMEDIA_TYPE_AUDIO:
+                audio_stream_index = (int) i;
+                break;
+            default:
+                break;
+        }
+    }
+
+    if (video_stream_index == -1) {
+        LOGE("Video stream not found");
+        return JNI_ERR;
+    }
+    session->videoTimeBase = context->streams[video_stream_index]->time_base;
+    session->streamGeneration++;
+
+    // Start reading packets from stream and write them to file
+    av_read_play(context);
+
+    AudioConfig audioConfig;
+    {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        audioConfig = session->audioConfig;
+    }
+    if (audioConfig.enabled && audio_stream_index != -1) {
+        // Without a decoder the video still plays
+        session->audioDecoder = audioDecoderCreate(audioConfig, context->streams[audio_stream_index]);
+    }
+
+    // Packets are handed on as they are, there is nothing to decode.
+    if (session->outputFormat == FORMAT_H264_ANNEXB) {
+        if (context->streams[video_stream_index]->codecpar->codec_id != AV_CODEC_ID_H264) {
+            LOGE("Packet output needs an H264 stream");
+            return JNI_ERR;
+        }
+        return JNI_OK;
+    }
+    if (!session->decoding.load(std::memory_order_relaxed)) {
+        return JNI_OK;
+    }
+
+    AVCodec *codec = NULL;
+    codec = avcodec_find_decoder(AV_CODEC_ID_H264);
+    if (!codec) {
+        LOGE("Cannot find decoder H264");
+        return JNI_ERR;
+    }
+
+    ccontext = avcodec_alloc_context3(codec);
+    if (ccontext == NULL ||
+        avcodec_parameters_to_context(ccontext, context->streams[video_stream_index]->codecpar) < 0) {
+        LOGE("Cannot allocate codec context");
+        return JNI_ERR;
+    }
+
+    {
+        std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+        ccontext->thread_count = session->decoderThreadCount;
+        ccontext->thread_type = session->decoderThreadType;
+    }
+
+    if (avcodec_open2(ccontext, codec, NULL) < 0) {
+        LOGE("Cannot open codec");
+        return JNI_ERR;
+    }
+    LOGI("Decoding with %d thread(s), %s threading",
+         ccontext->thread_count,
+         ccontext->active_thread_type == FF_THREAD_FRAME ? "frame" :
+         ccontext->active_thread_type == FF_THREAD_SLICE ? "slice" : "no");
+
+    session->nextFrameDueUs = AV_NOPTS_VALUE;
+    motionDetectorReset(&session->motionDetector);
+
+    // The scaler is set up by convertFrame() once the first frame shows the real geometry.
+    return JNI_OK;
+}
+
+// Frames the playout stage can hold for byte[] callbacks, pooled callbacks are limited by the pool
+static const int PLAYOUT_FRAMES = 8;
+
+void loadPlayConfig(Session *session) {
+    session->activePipelined = session->pipelined.load(std::memory_order_relaxed);
+    std::lock_guard<std::mutex> lock(session->lifecycleMutex);
+    for (int i = 0; i < QUEUE_COUNT; i++) {
+        session->activeQueues[i] = session->queues[i];
+    }
+}
+
+void prepareFrameRing(JNIEnv *env, Session *session) {
+    if (session->pooled) {
+        return;
+    }
+
+    // One slot per queued frame plus the ones being converted and delivered
+    int count = session->activePipelined ? session->activeQueues[QUEUE_CONVERTED].capacity + 2 : 1;
+    if (session->playoutMaxDelayUs > 0) {
+        // And the ones the playout stage holds back
+        count += PLAYOUT_FRAMES;
+    }
+    if (session->frameRing != NULL && session->frameRing->count != count) {
+        frameRingDestroy(env, session->frameRing);
+        session->frameRing = NULL;
+    }
+    if (session->frameRing == NULL) {
+        session->frameRing = frameRingCreate(count);
+    }
+}
+
+/**
+ * Picks up a recording started or stopped from Java, the current segment is finished either way.
+ */
+static void updateRecorder(Session *session) {
+    std::lock_guard<std::mutex> lock(session->recordingMutex);
+    session->recordingChanged = false;
+    if (session->recorder != NULL) {
+        recorderDestroy(session->recorder);
+        session->recorder = NULL;
+    }
+    if (session->recording != NULL) {
+        session->recorder = recorderCreate(*session->recording);
+    }
+}
+
+int readPacket(Session *session, AVPacket *packet) {
+    AVFormatContext *context = session->formatContext;
+    int video_stream_index = session->videoStreamIndex;
+
+    int64_t startUs = av_gettime_relative();
+    setIoTimeout(session, session->stallTimeoutUs);
+    if (av_read_frame(context, packet) < 0) {
+        if (!session->isStop) {
+            LOGW("Stream ended or stalled for %lld ms", (long long) (av_gettime_relative() - startUs) / 1000);
+        }
+        return READ_END;
+    }
+    int64_t nowUs = av_gettime_relative();
+    session->stats.stages[STAGE_READ].record(nowUs - startUs);
+
+    if (session->recordingChanged) {
+        updateRecorder(session);
+    }
+
+    if (packet->stream_index == video_stream_index) { // Packet is video
+        AVStream *stream = context->streams[video_stream_index];
+        statsPacketReceived(&session->stats, packet->size, (packet->flags & AV_PKT_FLAG_CORRUPT) != 0,
+                            packet->pts == AV_NOPTS_VALUE ? AV_NOPTS_VALUE :
+                            av_rescale_q(packet->pts, stream->time_base, AV_TIME_BASE_Q), nowUs);
+        if (session->recorder != NULL) {
+            recorderWrite(session->recorder, stream, packet);
+        }
+        // RTSP has no byte positions, so pos carries the receive time instead.  Decoders copy
+        // it to AVFrame.pkt_pos, which keeps it with the right frame through reordering and
+        // frame threading.
+        packet->pos = nowUs;
+        int64_t gopCacheMaxBytes = session->gopCacheMaxBytes.load(std::memory_order_relaxed);
+        if (gopCacheMaxBytes > 0) {
+            gopCacheAppend(&session->gopCache, stream, packet, nowUs, gopCacheMaxBytes,
+                           session->gopCacheMaxDurationUs.load(std::memory_order_relaxed));
+        } else if (!session->gopCache.packets.empty()) {
+            gopCacheClear(&session->gopCache);
+        }
+        if (session->subscriberCount > 0) {
+            JNIEnv *env = NULL;
+            gJavaVM->GetEnv((void **) &env, JNI_VERSION_1_6);
+            fanOutPacket(env, session, stream, packet);
+        }
+        return READ_VIDEO;
+    } else if (packet->stream_index == session->audioStreamIndex && session->audioDecoder != NULL) {
+        JNIEnv *env = NULL;
+        gJavaVM->GetEnv((void **) &env, JNI_VERSION_1_6);
+        audioDecode(env, session->audioDecoder, packet, &session->audioBuffer,
+                    session->audioCallback, session->audioMethodId);
+    }
+    return READ_OTHER;
+}
+
+jint playWithoutDecoding(Session *session) {
+    AVPacket packet;
+    av_init_packet(&packet);
+    packet.data = NULL;
+    packet.size = 0;
+
+    // readPacket() does the recording
+    while (!session->isStop && readPacket(session, &packet) != READ_END) {
+        av_packet_unref(&packet);
+    }
+
+    return session->isStop ? JNI_OK : JNI_ERR;
+}
+
+bool decodePacket(Session *session, AVPacket *packet, AVFrame *frame) {
+    AVCodecContext *ccontext = session->codecContext;
+    // The decoder still parses what it skips, but that's a fraction of decoding it.
+    int decodeMode = session->decodeMode;
+    AVDiscard skipFrame = decodeMode == DECODE_KEYFRAMES ? AVDISCARD_NONKEY :
+                          decodeMode == DECODE_REFERENCE_FRAMES ? AVDISCARD_NONREF : AVDISCARD_DEFAULT;
+    if (ccontext->skip_frame != skipFrame) {
+        ccontext->skip_frame = skipFrame;
+    }
+    if (session->awaitKeyframe) {
+        if (!(packet->flags & AV_PKT_FLAG_KEY)) {
+            session->stats.count(COUNTER_DROPPED_PACKETS);
+            return false;
+        }
+        session->awaitKeyframe = false;
+    }
+
+    // Callers drain every frame before sending the next packet, so the decoder always takes it.
+    int64_t startUs = av_gettime_relative();
+    bool received = false;
+    if (avcodec_send_packet(ccontext, packet) < 0) {
+        session->stats.count(COUNTER_DECODER_ERRORS);
+    } else {
+        received = receiveFrame(session, frame);
+    }
+    session->stats.stages[STAGE_DECODE].record(av_gettime_relative() - startUs);
+    return received;
+}
+
+bool receiveFrame(Session *session, AVFrame *frame) {
+    int err = avcodec_receive_frame(session->codecContext, frame);
+    if (err == 0) {
+        session->stats.count(COUNTER_DECODED_FRAMES);
+        return true;
+    }
+    if (err != AVERROR(EAGAIN) && err != AVERROR_EOF) {
+        session->stats.count(COUNTER_DECODER_ERRORS);
+    }
+    return false;
+}
+
+void playFromGopCache(JNIEnv *env, Session *session) {
+    GopCache *cache = &session->gopCache;
+    AVStream *stream = session->formatContext->streams[session->videoStreamIndex];
+    session->awaitKeyframe = false;
+    // Only a restart within the cached duration is brief enough for the picture to be current
+    if (cache->packets.empty() ||
+        av_gettime_relative() - cache->lastReceiveUs > session->gopCacheMaxDurationUs.load(std::memory_order_relaxed) ||
+        !gopCacheMatches(cache, stream->codecpar)) {
+        gopCacheClear(cache);
+        return;
+    }
+
+    // Decode as fast as the decoder goes, only the newest picture is worth showing.
+    int64_t startUs = av_gettime_relative();
+    AVFrame *frame = av_frame_alloc();
+    AVFrame *latest = av_frame_alloc();
+    for (size_t i = 0; i < cache->packets.size() && !session->isStop; i++) {
+        if (decodePacket(session, cache->packets[i], frame)) {
+            do {
+                av_frame_unref(latest);
+                av_frame_move_ref(latest, frame);
+            } while (receiveFrame(session, frame));
+        }
+    }
+    // Frame threading holds pictures back, the newest cached one only comes out on draining.
+    if (avcodec_send_packet(session->codecContext, NULL) == 0) {
+        while (receiveFrame(session, frame)) {
+            av_frame_unref(latest);
+            av_frame_move_ref(latest, frame);
+        }
+    }
+    // The live packets don't continue the cached ones, they start over from a keyframe on a
+    // decoder without the cache's references.
+    avcodec_flush_buffers(session->codecContext);
+    session->awaitKeyframe = true;
+    LOGI("Decoded %d cached packets in %lld ms", (int) cache->packets.size(),
+         (long long) (av_gettime_relative() - startUs) / 1000);
+    gopCacheClear(cache);
+
+    if (latest->buf[0] != NULL) {
+        fanOutFrame(env, session, latest);
+        ConvertedFrame converted;
+        if (holdLatestFrame(session, latest) && convertFrame(env, session, latest, &converted)) {
+            deliverFrame(env, session, converted);
+        }
+    }
+    av_frame_free(&frame);
+    av_frame_free(&latest);
+}
+
+int64_t frameTimeUs(Session *session, const AVFrame *frame) {
+    int64_t timestamp = av_frame_get_best_effort_timestamp(frame);
+    if (timestamp == AV_NOPTS_VALUE) {
+        return AV_NOPTS_VALUE;
+    }
+    return av_rescale_q(timestamp, session->videoTimeBase, AV_TIME_BASE_Q);
+}
+
+bool isFrameDue(Session *session, const AVFrame *frame) {
+    int64_t intervalUs = session->frameIntervalUs;
+    if (intervalUs <= 0) {
+        return true;
+    }
+
+    // Stream time where there is one, so bursts after a network hiccup are thinned out as well
+    int64_t nowUs = frameTimeUs(session, frame);
+    if (nowUs == AV_NOPTS_VALUE) {
+        nowUs = av_gettime_relative();
+    }
+
+    int64_t &nextDueUs = session->nextFrameDueUs;
+    // Start over when time jumps back or far ahead, e.g. after the interval was shortened
+    if (nextDueUs == AV_NOPTS_VALUE || nowUs < nextDueUs - intervalUs || nowUs >= nextDueUs + intervalUs) {
+        nextDueUs = nowUs + intervalUs;
+        return true;
+    }
+    if (nowUs < nextDueUs) {
+        return false;
+    }
+    nextDueUs += intervalUs;
+    return true;
+}
+
+bool isFrameChanged(Session *session, AVFrame *frame) {
+    MotionDetector *detector = &session->motionDetector;
+    if (session->motionConfigVersion != detector->configVersion) {
+        std::lock_guard<std::mutex> lock(session->motionMutex);
+        detector->config = session->motionConfig;
+        detector->configVersion = session->motionConfigVersion;
+    }
+    if (!detector->config.enabled) {
+        return true;
+    }
+    return motionDetect(detector, frame, av_gettime_relative());
+}
+
+bool convertFrame(JNIEnv *env, Session *session, AVFrame *frame, ConvertedFrame *converted) {
+    FrameRing *frameRing = session->frameRing;
+    const OutputSpec &spec = currentOutputSpec(session);
+    AVPixelFormat srcFormat = (AVPixelFormat) frame->format;
+    const AVPixFmtDescriptor *desc = av_pix_fmt_desc_get(srcFormat);
+    int cropX, cropY, cropWidth, cropHeight;
+    cropRect(spec, frame, desc, &cropX, &cropY, &cropWidth, &cropHeight);
+    int width, height;
+    outputSize(spec, cropWidth, cropHeight, &width, &height);
+    int index;
+    int64_t startUs = av_gettime_relative();
+
+    // The decoder already hands out YUV420P for H264, in which case the planes are passed on
+    // untouched unless they have to be cropped or scaled.
+    bool passthrough = session->outputFormat == FORMAT_YUV420P &&
+            (srcFormat == AV_PIX_FMT_YUV420P || srcFormat == AV_PIX_FMT_YUVJ420P) &&
+            cropWidth == frame->width && cropHeight == frame->height &&
+            width == cropWidth && height == cropHeight;
+
+    // If Java still holds every buffer the frame is dropped rather than stalling the network
+    // reads.
+    if (passthrough) {
+        index = frameRingAcquire(env, frameRing, copyYuvPlanes(frame, height, NULL));
+        if (index < 0) {
+            session->stats.count(COUNTER_DROPPED_FRAMES);
+            return false;
+        }
+        copyYuvPlanes(frame, height, frameRing->slots[index].data);
+        converted->yStride = frame->linesize[0];
+        converted->uvStride = frame->linesize[1];
+    } else {
+        // Only rebuilt when the geometry, format or scaler changes
+        AVPixelFormat dstFormat = session->outputFormat == FORMAT_YUV420P ? AV_PIX_FMT_YUV420P : AV_PIX_FMT_RGB24;
+        session->swsContext = sws_getCachedContext(session->swsContext, cropWidth, cropHeight, srcFormat,
+                                                   width, height, dstFormat, spec.scaler, NULL, NULL, NULL);
+        if (session->swsContext == NULL) {
+            return false;
+        }
+
+        // Convert straight into a pooled buffer.
+        index = frameRingAcquire(env, frameRing, (size_t) av_image_get_buffer_size(dstFormat, width, height, 1));
+        if (index < 0) {
+            session->stats.count(COUNTER_DROPPED_FRAMES);
+            return false;
+        }
+        const uint8_t *srcData[4];
+        cropPlanes(frame, desc, cropX, cropY, srcData);
+        uint8_t *dstData[4];
+        int dstLinesize[4];
+        av_image_fill_arrays(dstData, dstLinesize, frameRing->slots[index].data, dstFormat, width, height, 1);
+        sws_scale(session->swsContext, srcData, frame->linesize, 0, cropHeight, dstData, dstLinesize);
+        converted->yStride = dstLinesize[0];
+        converted->uvStride = dstLinesize[1];
+    }
+
+    session->stats.stages[STAGE_SCALE].record(av_gettime_relative() - startUs);
+
+    converted->index = index;
+    converted->width = width;
+    converted->height = height;
+    converted->ptsUs = frameTimeUs(session, frame);
+    int64_t receiveTimeUs = av_frame_get_pkt_pos(frame);
+    converted->receiveTimeUs = receiveTimeUs >= 0 ? receiveTimeUs : AV_NOPTS_VALUE;
+    converted->motionScore = motionScore(frame);
+    frameRing->slots[index].ptsUs = converted->ptsUs;
+    frameRing->slots[index].receiveTimeUs = converted->receiveTimeUs;
+    frameRing->slots[index].motionScore = converted->motionScore;
+    return true;
+}
+
+void deliverFrame(JNIEnv *env, Session *session, const ConvertedFrame &converted) {
+    FrameSlot *slot = &session->frameRing->slots[converted.index];
+    int64_t startUs = av_gettime_relative();
+    statsFrameDelivered(&session->stats, converted.ptsUs, startUs);
+
+    if (!session->pooled) {
+        int len = 3 * converted.width * converted.height;
+        jbyteArray gByteArray = env->NewByteArray(len);
+        env->SetByteArrayRegion(gByteArray, 0, len, (jbyte *) slot->data);
+        frameRingRelease(session->frameRing, converted.index);
+        env->CallVoidMethod(session->callback, session->callbackMethodId, gByteArray, 3, converted.width, converted.height);
+        env->DeleteLocalRef(gByteArray);
+        session->stats.stages[STAGE_CALLBACK].record(av_gettime_relative() - startUs);
+        return;
+    }
+
+    // Consumers may have moved position / limit the last time they had this buffer.
+    env->DeleteLocalRef(env->CallObjectMethod(slot->buffer, gBufferClearMethodId));
+    if (session->outputFormat == FORMAT_YUV420P) {
+        env->CallVoidMethod(session->callback, session->callbackMethodId, slot->buffer, converted.index,
+                            converted.width, converted.height, converted.yStride, converted.uvStride);
+    } else {
+        env->CallVoidMethod(session->callback, session->callbackMethodId, slot->buffer, converted.index,
+                            3, converted.width, converted.height);
+    }
+    session->stats.stages[STAGE_CALLBACK].record(av_gettime_relative() - startUs);
+}
+
+bool isDisposablePacket(const AVPacket *packet) {
+    // Walk the Annex-B NAL units, the access unit is disposable if every slice has nal_ref_idc 0.
+    const uint8_t *data = packet->data;
+    int size = packet->size;
+    bool sawSlice = false;
+    for (int i = 0; i + 3 < size; i++) {
+        if (data[i] != 0 || data[i + 1] != 0 || data[i + 2] != 1) {
+            continue;
+        }
+        uint8_t header = data[i + 3];
+        int type = header & 0x1f;
+        int refIdc = (header >> 5) & 0x3;
+        if (type == 1 || type == 5) {
+            if (refIdc != 0) {
+                return false;
+            }
+            sawSlice = true;
+        }
+        i += 3;
+    }
+    return sawSlice;
+}
+
+void closeStream(Session *session) {
+    // Give PAUSE / TEARDOWN a moment even after stop(), but don't hang on a dead connection.
+    session->closingStream = true;
+    setIoTimeout(session, CLOSE_TIMEOUT_US);
+    if (session->formatContext != NULL) {
+        av_read_pause(session->formatContext);
+    }
+    if (session->recorder != NULL) {
+        recorderDestroy(session->recorder);
+        session->recorder = NULL;
+    }
+    // Recording carries on with a fresh segment on the next play()
+    session->recordingChanged = true;
+    if (session->bitstreamFilter != NULL) {
+        av_bsf_free(&session->bitstreamFilter);
+    }
+    if (session->swsContext != NULL) {
+        sws_freeContext(session->swsContext);
+        session->swsContext = NULL;
+    }
+    if (session->codecContext != NULL) {
+        avcodec_free_context(&session->codecContext);
+    }
+    if (session->audioDecoder != NULL) {
+        audioDecoderDestroy(session->audioDecoder);
+        session->audioDecoder = NULL;
+    }
+    if (session->formatContext != NULL) {
+        avformat_close_input(&session->formatContext);
+    }
+    session->closingStream = false;
+}
+
+/**
+ * Packs the Y, U and V planes of a YUV420P frame back to back, keeping the decoder's strides.
+ * Both chroma planes are written with the stride of the U plane.
+ * @param dst destination or NULL to only compute the size
+ * @return number of bytes needed
+ */
+static size_t copyYuvPlanes(AVFrame *frame, int height, uint8_t *dst) {
+    int chromaHeight = (height + 1) / 2;
+    size_t ySize = (size_t) frame->linesize[0] * height;
+    size_t uvSize = (size_t) frame->linesize[1] * chromaHeight;
+    if (dst != NULL) {
+        int chromaWidth = FFMIN(frame->linesize[1], frame->linesize[2]);
+        memcpy(dst, frame->data[0], ySize);
+        av_image_copy_plane(dst + ySize, frame->linesize[1], frame->data[1], frame->linesize[1],
+                            chromaWidth, chromaHeight);
+        av_image_copy_plane(dst + ySize + uvSize, frame->linesize[1], frame->data[2], frame->linesize[2],
+                            chromaWidth, chromaHeight);
+    }
+    return ySize + 2 * uvSize;
+}
+
+const OutputSpec &currentOutputSpec(Session *session) {
+    if (session->outputSpecVersion != session->activeOutputSpecVersion) {
+        std::lock_guard<std::mutex> lock(session->outputSpecMutex);
+        session->activeOutputSpec = session->outputSpec;
+        session->activeOutputSpecVersion = session->outputSpecVersion;
+    }
+    return session->activeOutputSpec;
+}
+
+void cropRect(const OutputSpec &spec, const AVFrame *frame, const AVPixFmtDescriptor *desc,
+              int *x, int *y, int *width, int *height) {
+    if (spec.cropWidth <= 0 || spec.cropHeight <= 0) {
+        *x = 0;
+        *y = 0;
+        *width = frame->width;
+        *height = frame->height;
+        return;
+    }
+    *x = FFMIN(spec.cropX, frame->width - 1) & ~((1 << desc->log2_chroma_w) - 1);
+    *y = FFMIN(spec.cropY, frame->height - 1) & ~((1 << desc->log2_chroma_h) - 1);
+    *width = FFMIN(spec.cropWidth, frame->width - *x);
+    *height = FFMIN(spec.cropHeight, frame->height - *y);
+}
+
+void outputSize(const OutputSpec &spec, int srcWidth, int srcHeight, int *width, int *height) {
+    if (spec.width <= 0 && spec.height <= 0) {
+        *width = srcWidth;
+        *height = srcHeight;
+    } else if (spec.width <= 0) {
+        *width = FFMAX(1, (int) av_rescale(spec.height, srcWidth, srcHeight));
+        *height = spec.height;
+    } else if (spec.height <= 0) {
+        *width = spec.width;
+        *height = FFMAX(1, (int) av_rescale(spec.width, srcHeight, srcWidth));
+    } else {
+        *width = spec.width;
+        *height = spec.height;
+    }
+}
+
+void cropPlanes(const AVFrame *frame, const AVPixFmtDescriptor *desc, int x, int y, const uint8_t *data[4]) {
+    int pixelSteps[4];
+    av_image_fill_max_pixsteps(pixelSteps, NULL, desc);
+    for (int i = 0; i < 4; i++) {
+        bool chroma = i == 1 || i == 2;
+        int planeX = chroma ? x >> desc->log2_chroma_w : x;
+        int planeY = chroma ? y >> desc->log2_chroma_h : y;
+        data[i] = frame->data[i] == NULL ? NULL :
+                  frame->data[i] + planeY * frame->linesize[i] + planeX * pixelSteps[i];
+    }
+}
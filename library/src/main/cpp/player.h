@@ -0,0 +1,177 @@
+#ifndef RTSPLIBRARY_PLAYER_H
+#define RTSPLIBRARY_PLAYER_H
+
+#include <jni.h>
+
+extern "C" {
+#include <libavutil/pixdesc.h>
+}
+
+#include "session.h"
+
+/**
+ * A frame converted into a slot of the session's frame ring, ready to be handed to Java.
+ */
+struct ConvertedFrame {
+    int index;
+    int width;
+    int height;
+    int yStride;
+    int uvStride;
+    // Presentation time in microseconds or AV_NOPTS_VALUE
+    int64_t ptsUs;
+    // When the packet the frame was decoded from arrived, av_gettime_relative() clock, or
+    // AV_NOPTS_VALUE
+    int64_t receiveTimeUs;
+    // Against the last delivered frame, MOTION_SCORE_UNKNOWN without motion detection
+    float motionScore;
+};
+
+// Result of readPacket()
+enum ReadResult {
+    READ_VIDEO = 0,
+    READ_OTHER = 1,
+    READ_END = -1
+};
+
+extern JavaVM *gJavaVM;
+extern jmethodID gBufferClearMethodId;
+
+JNIEnv *attachCurrentThread();
+void detachCurrentThread();
+
+/**
+ * Opens the endpoint, finds the video stream and opens the decoder unless packets are
+ * delivered compressed or decoding is off.  Everything it allocates lives in the session, so
+ * closeStream() has to follow whether it succeeded or not.
+ */
+jint openStream(JNIEnv *env, Session *session, jstring endpoint, jobjectArray optionArray);
+
+/**
+ * Copies the settings Java may change meanwhile that stay fixed for a whole connection.  Before
+ * the playback threads start, on the thread starting them.
+ */
+void loadPlayConfig(Session *session);
+
+/**
+ * Makes sure the frame ring can hold everything in flight, only needed for the byte[] callback
+ * where the ring is internal.
+ */
+void prepareFrameRing(JNIEnv *env, Session *session);
+
+/**
+ * Reads the next packet, hands video packets to the recorder and decodes audio packets.  Audio
+ * is delivered from the calling thread, which has to be attached to the JVM.
+ * @return READ_VIDEO, READ_OTHER for packets of any other stream or READ_END
+ */
+int readPacket(Session *session, AVPacket *packet);
+
+/**
+ * Only reads (and records) packets until stopped.  The stream must already be open.
+ */
+jint playWithoutDecoding(Session *session);
+
+/**
+ * Sends the packet to the decoder and receives the first frame it has ready.  Any further frames
+ * have to be taken with receiveFrame() before the next packet.
+ * @return true if the decoder produced a frame, which the caller has to unref
+ */
+bool decodePacket(Session *session, AVPacket *packet, AVFrame *frame);
+
+/**
+ * @return true if the decoder had another frame ready, which the caller has to unref
+ */
+bool receiveFrame(Session *session, AVFrame *frame);
+
+/**
+ * Decodes the packets a previous connection left in the GOP cache, faster than real time, and
+ * delivers the newest picture, so a restart after a brief stop shows one before the camera's
+ * next keyframe.  The decoder is drained and flushed afterwards, and decodePacket() skips the
+ * live packets up to the next keyframe.  Empties the cache either way.  Before the playback
+ * loop starts.
+ */
+void playFromGopCache(JNIEnv *env, Session *session);
+
+/**
+ * @return best effort timestamp of the frame in microseconds or AV_NOPTS_VALUE
+ */
+int64_t frameTimeUs(Session *session, const AVFrame *frame);
+
+/**
+ * Whether the decoded frame should be converted and delivered under the target frame rate.
+ * Frames that aren't due are dropped before sws_scale.
+ */
+bool isFrameDue(Session *session, const AVFrame *frame);
+
+/**
+ * Whether the frame differs enough from the last delivered one under the session's motion
+ * settings, always true while motion detection is off.  Run after isFrameDue() so frames the
+ * target frame rate drops are never analysed.
+ */
+bool isFrameChanged(Session *session, AVFrame *frame);
+
+/**
+ * Takes a copy of the output settings whenever Java changed them, the lock is only taken then.
+ * Only for the thread converting the session's frames.
+ */
+const OutputSpec &currentOutputSpec(Session *session);
+
+/**
+ * Clamps the crop rectangle to the frame, the whole frame if none is set.  The origin is aligned
+ * to the chroma grid so every plane starts on a whole sample.
+ */
+void cropRect(const OutputSpec &spec, const AVFrame *frame, const AVPixFmtDescriptor *desc,
+              int *x, int *y, int *width, int *height);
+
+/**
+ * Output size for a source of srcWidth x srcHeight, a missing dimension keeps the aspect ratio.
+ */
+void outputSize(const OutputSpec &spec, int srcWidth, int srcHeight, int *width, int *height);
+
+/**
+ * Points each plane of the frame at the top left corner of the crop rectangle.
+ */
+void cropPlanes(const AVFrame *frame, const AVPixFmtDescriptor *desc, int x, int y, const uint8_t *data[4]);
+
+/**
+ * Converts (or copies) a decoded frame into a free slot of the frame ring.
+ * @return false if the frame was dropped because no slot was free
+ */
+bool convertFrame(JNIEnv *env, Session *session, AVFrame *frame, ConvertedFrame *converted);
+
+/**
+ * Hands a converted frame to the Java callback.
+ */
+void deliverFrame(JNIEnv *env, Session *session, const ConvertedFrame &converted);
+
+/**
+ * Whether no other frame references this H264 access unit, so it can be dropped without
+ * corrupting the picture.
+ */
+bool isDisposablePacket(const AVPacket *packet);
+
+/**
+ * Frees whatever openStream() and the playback loop left in the session.
+ */
+void closeStream(Session *session);
+
+/**
+ * Plays with demux, decode and convert each on their own thread, delivering on the calling
+ * thread.  The stream must already be open.
+ */
+jint playPipelined(JNIEnv *env, Session *session);
+
+/**
+ * Plays FORMAT_H264_ANNEXB, handing every video packet to the Java callback without decoding.
+ * The stream must already be open.
+ */
+jint playPackets(JNIEnv *env, Session *session);
+
+/**
+ * Delivers a packet of another session's stream to a FORMAT_H264_ANNEXB session, which never
+ * plays itself.  The packet keeps its reference.
+ * @param newStream true for the first packet of a connection, sends the codec config first
+ */
+void forwardPacket(JNIEnv *env, Session *session, const AVStream *stream, const AVPacket *packet, bool newStream);
+
+#endif //RTSPLIBRARY_PLAYER_H
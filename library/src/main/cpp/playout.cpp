@@ -0,0 +1,164 @@
+#include "log.h"
+
+#include "playout.h"
+
+extern "C" {
+#include <libavutil/time.h>
+}
+
+static const char *TAG = __FILE__;
+
+// A frame this late is dropped rather than shown
+static const int64_t LATE_TOLERANCE_US = 15000;
+// Transit minimum and headroom are tracked over windows of this length
+static const int64_t WINDOW_US = 2000000;
+// Frames further ahead than the maximum delay plus this mean the PTS jumped
+static const int64_t DISCONTINUITY_US = 1000000;
+
+Playout::Playout(Session *session)
+        : session(session), frames((size_t) session->frameRing->count + 1), closing(false),
+          transitUs(AV_NOPTS_VALUE), windowTransitUs(AV_NOPTS_VALUE), windowStartUs(AV_NOPTS_VALUE),
+          headroomUs(INT64_MAX), delayUs(0), configuredDelayUs(-1) {
+}
+
+/**
+ * Starts a new window: the transit minimum becomes the smaller of this and the last window,
+ * and an adaptive delay shrinks by half the headroom every frame had to spare.
+ */
+static void rollWindow(Playout *playout, int64_t nowUs, int64_t minDelayUs, bool adaptive) {
+    if (adaptive && playout->headroomUs != INT64_MAX && playout->headroomUs > LATE_TOLERANCE_US) {
+        playout->delayUs = FFMAX(minDelayUs, playout->delayUs - playout->headroomUs / 2);
+    }
+    playout->transitUs = playout->windowTransitUs;
+    playout->windowTransitUs = AV_NOPTS_VALUE;
+    playout->windowStartUs = nowUs;
+    playout->headroomUs = INT64_MAX;
+}
+
+/**
+ * @return local time the frame is due or AV_NOPTS_VALUE to show it right away
+ */
+static int64_t dueTimeUs(Playout *playout, const ConvertedFrame &converted, int64_t nowUs) {
+    Session *session = playout->session;
+    int64_t minDelayUs = session->playoutDelayUs;
+    int64_t maxDelayUs = session->playoutMaxDelayUs;
+    bool adaptive = maxDelayUs > minDelayUs;
+    if (minDelayUs != playout->configuredDelayUs) {
+        playout->configuredDelayUs = minDelayUs;
+        playout->delayUs = minDelayUs;
+    }
+    playout->delayUs = FFMIN(FFMAX(playout->delayUs, minDelayUs), FFMAX(maxDelayUs, minDelayUs));
+
+    if (converted.ptsUs == AV_NOPTS_VALUE || converted.receiveTimeUs == AV_NOPTS_VALUE) {
+        return AV_NOPTS_VALUE;
+    }
+    if (playout->windowStartUs == AV_NOPTS_VALUE || nowUs - playout->windowStartUs >= WINDOW_US) {
+        rollWindow(playout, nowUs, minDelayUs, adaptive);
+    }
+    int64_t transitUs = converted.receiveTimeUs - converted.ptsUs;
+    if (playout->windowTransitUs == AV_NOPTS_VALUE || transitUs < playout->windowTransitUs) {
+        playout->windowTransitUs = transitUs;
+    }
+    if (playout->transitUs == AV_NOPTS_VALUE || transitUs < playout->transitUs) {
+        playout->transitUs = transitUs;
+    }
+
+    int64_t dueUs = converted.ptsUs + playout->transitUs + playout->delayUs;
+    if (dueUs - nowUs > FFMAX(maxDelayUs, minDelayUs) + DISCONTINUITY_US) {
+        // The PTS jumped backwards (or the sender restarted), start over from this frame.
+        LOGI("Playout clock reset");
+        playout->transitUs = transitUs;
+        playout->windowTransitUs = transitUs;
+        dueUs = converted.ptsUs + transitUs + playout->delayUs;
+    }
+
+    int64_t headroomUs = dueUs - nowUs;
+    if (headroomUs < -LATE_TOLERANCE_US && adaptive) {
+        // Grow by the lateness, the next frames probably come in just as late.
+        playout->delayUs = FFMIN(maxDelayUs, playout->delayUs - headroomUs);
+    } else if (headroomUs < playout->headroomUs) {
+        playout->headroomUs = headroomUs;
+    }
+    return dueUs;
+}
+
+static void playoutLoop(Playout *playout) {
+    Session *session = playout->session;
+    JNIEnv *env = attachCurrentThread();
+    ConvertedFrame converted;
+
+    std::unique_lock<std::mutex> lock(playout->mutex);
+    while (true) {
+        if (!playout->frames.pop(converted)) {
+            if (playout->closing) {
+                break;
+            }
+            playout->wake.wait(lock);
+            continue;
+        }
+
+        int64_t nowUs = av_gettime_relative();
+        int64_t dueUs = dueTimeUs(playout, converted, nowUs);
+        if (dueUs != AV_NOPTS_VALUE && nowUs > dueUs + LATE_TOLERANCE_US) {
+            session->stats.count(COUNTER_DROPPED_FRAMES);
+            frameRingRelease(session->frameRing, converted.index);
+            continue;
+        }
+        if (dueUs != AV_NOPTS_VALUE && dueUs > nowUs) {
+            playout->wake.wait_for(lock, std::chrono::microseconds(dueUs - nowUs),
+                                   [playout] { return playout->closing; });
+            if (playout->closing) {
+                frameRingRelease(session->frameRing, converted.index);
+                break;
+            }
+        }
+        session->stats.counters[COUNTER_PLAYOUT_DELAY].store(playout->delayUs, std::memory_order_relaxed);
+
+        lock.unlock();
+        deliverFrame(env, session, converted);
+        lock.lock();
+    }
+    lock.unlock();
+
+    while (playout->frames.pop(converted)) {
+        frameRingRelease(session->frameRing, converted.index);
+    }
+    detachCurrentThread();
+}
+
+Playout *playoutCreate(Session *session) {
+    Playout *playout = new Playout(session);
+    playout->thread = std::thread(playoutLoop, playout);
+    return playout;
+}
+
+void playoutPush(Playout *playout, const ConvertedFrame &converted) {
+    Session *session = playout->session;
+    if (!playout->frames.push(converted)) {
+        // Can't happen while the queue has room for the whole frame ring, but stay safe.
+        session->stats.count(COUNTER_DROPPED_FRAMES);
+        frameRingRelease(session->frameRing, converted.index);
+        return;
+    }
+    std::lock_guard<std::mutex> lock(playout->mutex);
+    playout->wake.notify_one();
+}
+
+void playoutDestroy(Playout *playout) {
+    {
+        std::lock_guard<std::mutex> lock(playout->mutex);
+        playout->closing = true;
+    }
+    playout->wake.notify_one();
+    playout->thread.join();
+    playout->session->stats.counters[COUNTER_PLAYOUT_DELAY].store(0, std::memory_order_relaxed);
+    delete playout;
+}
+
+void presentFrame(JNIEnv *env, Session *session, const ConvertedFrame &converted) {
+    if (session->playout != NULL) {
+        playoutPush(session->playout, converted);
+    } else {
+        deliverFrame(env, session, converted);
+    }
+}
@@ -0,0 +1,61 @@
+#ifndef RTSPLIBRARY_PLAYOUT_H
+#define RTSPLIBRARY_PLAYOUT_H
+
+#include <jni.h>
+#include <condition_variable>
+#include <mutex>
+#include <stdint.h>
+#include <thread>
+
+#include "player.h"
+#include "spsc_queue.h"
+
+/**
+ * Playout stage between conversion and the callback: holds every frame until its PTS plus the
+ * target delay on the local clock, so network jitter doesn't turn into judder, and drops
+ * frames that are already late instead of queueing them.  With a maximum delay above the
+ * target the delay adapts: it grows by however late frames come in and shrinks back once
+ * every frame has had headroom for a while.
+ *
+ * Runs on a thread of its own for one connection, which is the one delivering frames.
+ */
+struct Playout {
+    Session *session;
+    SpscQueue<ConvertedFrame> frames;
+    std::mutex mutex;
+    std::condition_variable wake;
+    bool closing;
+    std::thread thread;
+
+    // Only touched by the playout thread
+    // Smallest receive time minus PTS, i.e. the transit time of the fastest frame, over the
+    // current and the previous window, so clock drift doesn't accumulate.
+    int64_t transitUs;
+    int64_t windowTransitUs;
+    int64_t windowStartUs;
+    // Smallest headroom any frame had in the current window
+    int64_t headroomUs;
+    int64_t delayUs;
+    int64_t configuredDelayUs;
+
+    explicit Playout(Session *session);
+};
+
+Playout *playoutCreate(Session *session);
+
+/**
+ * Queues a converted frame, called by whichever thread would otherwise deliver it.
+ */
+void playoutPush(Playout *playout, const ConvertedFrame &converted);
+
+/**
+ * Stops the thread and releases frames that were never delivered.
+ */
+void playoutDestroy(Playout *playout);
+
+/**
+ * Delivers through the session's playout stage if there is one, right away otherwise.
+ */
+void presentFrame(JNIEnv *env, Session *session, const ConvertedFrame &converted);
+
+#endif //RTSPLIBRARY_PLAYOUT_H
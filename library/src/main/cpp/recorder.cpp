@@ -0,0 +1,273 @@
+#include <time.h>
+#include "log.h"
+
+#include "recorder.h"
+
+static const char *TAG = __FILE__;
+
+// Packets waiting for the disk beyond this are dropped up to the next keyframe
+static const int64_t MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+static void writerLoop(Recorder *recorder);
+
+Recorder *recorderCreate(const RecordingConfig &config) {
+    Recorder *recorder = new Recorder;
+    recorder->config = config;
+    recorder->parameters = NULL;
+    recorder->timeBase = AV_TIME_BASE_Q;
+    recorder->frameDuration = 1;
+    recorder->queuedBytes = 0;
+    recorder->stopping = false;
+    recorder->failed = false;
+    recorder->awaitKeyframe = true;
+    recorder->output = NULL;
+    recorder->stream = NULL;
+    recorder->packet = av_packet_alloc();
+    recorder->segmentStart = AV_NOPTS_VALUE;
+    recorder->lastDts = AV_NOPTS_VALUE;
+    recorder->segmentIndex = 0;
+    recorder->writer = std::thread(writerLoop, recorder);
+    return recorder;
+}
+
+static void closeSegment(Recorder *recorder) {
+    if (recorder->output == NULL) {
+        return;
+    }
+    av_write_trailer(recorder->output);
+    LOGI("Closed segment %s, %lld bytes", recorder->output->filename,
+         (long long) avio_tell(recorder->output->pb));
+    avio_closep(&recorder->output->pb);
+    avformat_free_context(recorder->output);
+    recorder->output = NULL;
+    recorder->stream = NULL;
+}
+
+/**
+ * <directory>/<prefix>-<local start time>-<index>.<extension>, the index keeps segments shorter
+ * than a second apart.
+ */
+static std::string segmentFileName(Recorder *recorder) {
+    char startTime[32];
+    time_t now = time(NULL);
+    struct tm local;
+    localtime_r(&now, &local);
+    strftime(startTime, sizeof(startTime), "%Y%m%d-%H%M%S", &local);
+
+    char index[16];
+    snprintf(index, sizeof(index), "%d", recorder->segmentIndex++);
+
+    const RecordingConfig &config = recorder->config;
+    return config.directory + "/" + config.filePrefix + "-" + startTime + "-" + index +
+           (config.container == CONTAINER_MKV ? ".mkv" : ".mp4");
+}
+
+static bool openSegment(Recorder *recorder) {
+    // Without SPS / PPS the files would have no avcC and couldn't be played.
+    if (recorder->parameters->extradata_size == 0) {
+        LOGE("The stream announces no parameter sets, cannot record it");
+        return false;
+    }
+
+    std::string fileName = segmentFileName(recorder);
+    const char *formatName = recorder->config.container == CONTAINER_MKV ? "matroska" : "mp4";
+
+    AVFormatContext *output = NULL;
+    if (avformat_alloc_output_context2(&output, NULL, formatName, fileName.c_str()) < 0) {
+        LOGE("Cannot create %s muxer", formatName);
+        return false;
+    }
+
+    AVStream *stream = avformat_new_stream(output, NULL);
+    if (stream == NULL || avcodec_parameters_copy(stream->codecpar, recorder->parameters) < 0) {
+        avformat_free_context(output);
+        return false;
+    }
+    // The RTP codec tag means nothing to the container
+    stream->codecpar->codec_tag = 0;
+    stream->time_base = recorder->timeBase;
+
+    if (avio_open(&output->pb, fileName.c_str(), AVIO_FLAG_WRITE) < 0) {
+        LOGE("Cannot open %s", fileName.c_str());
+        avformat_free_context(output);
+        return false;
+    }
+    if (avformat_write_header(output, NULL) < 0) {
+        LOGE("Cannot write header of %s", fileName.c_str());
+        avio_closep(&output->pb);
+        avformat_free_context(output);
+        return false;
+    }
+
+    recorder->output = output;
+    recorder->stream = stream;
+    LOGI("Recording to %s", fileName.c_str());
+    return true;
+}
+
+static bool isSegmentFull(Recorder *recorder, int64_t dts) {
+    const RecordingConfig &config = recorder->config;
+    if (config.segmentDurationUs > 0 &&
+        av_rescale_q(dts - recorder->segmentStart, recorder->timeBase, AV_TIME_BASE_Q) >= config.segmentDurationUs) {
+        return true;
+    }
+    return config.segmentSizeBytes > 0 && avio_tell(recorder->output->pb) >= config.segmentSizeBytes;
+}
+
+/**
+ * RTP carries no dts, so it is derived as a muxer would: the smallest of the last
+ * {@code video_delay + 1} pts values, which stays below the pts of every frame still to come.
+ * Reordering deeper than the stream announces would still go backwards, that only nudges the
+ * dts (and pts) forward rather than dropping the packet.
+ */
+static int64_t nextDts(Recorder *recorder, const AVPacket *packet, int64_t pts) {
+    int delay = FFMIN(FFMAX(recorder->parameters->video_delay, 0), MAX_REORDER_DELAY);
+    int64_t dts = packet->dts;
+    if (dts == AV_NOPTS_VALUE) {
+        int64_t *window = recorder->ptsWindow;
+        if (recorder->lastDts == AV_NOPTS_VALUE) {
+            for (int i = 0; i <= delay; i++) {
+                window[i] = pts + (i - delay - 1) * recorder->frameDuration;
+            }
+        }
+        window[0] = pts;
+        for (int i = 1; i <= delay && window[i] < window[i - 1]; i++) {
+            FFSWAP(int64_t, window[i], window[i - 1]);
+        }
+        dts = window[0];
+    }
+    if (recorder->lastDts != AV_NOPTS_VALUE && dts <= recorder->lastDts) {
+        dts = recorder->lastDts + 1;
+    }
+    return dts;
+}
+
+static void writePacket(Recorder *recorder, const AVPacket *packet) {
+    // RTP timestamps go missing until the first RTCP sender report, nothing to mux without them.
+    int64_t pts = packet->pts != AV_NOPTS_VALUE ? packet->pts : packet->dts;
+    if (pts == AV_NOPTS_VALUE || recorder->failed) {
+        return;
+    }
+    bool keyFrame = (packet->flags & AV_PKT_FLAG_KEY) != 0;
+    if (recorder->output == NULL && !keyFrame) {
+        return;
+    }
+    int64_t dts = nextDts(recorder, packet, pts);
+
+    if (keyFrame) {
+        if (recorder->output != NULL && isSegmentFull(recorder, dts)) {
+            closeSegment(recorder);
+        }
+        if (recorder->output == NULL) {
+            if (!openSegment(recorder)) {
+                recorder->failed = true;
+                return;
+            }
+            recorder->segmentStart = dts;
+        }
+    }
+    recorder->lastDts = dts;
+
+    AVPacket *out = recorder->packet;
+    if (av_packet_ref(out, packet) < 0) {
+        return;
+    }
+    out->stream_index = 0;
+    out->pts = FFMAX(pts, dts) - recorder->segmentStart;
+    out->dts = dts - recorder->segmentStart;
+    av_packet_rescale_ts(out, recorder->timeBase, recorder->stream->time_base);
+    if (av_write_frame(recorder->output, out) < 0) {
+        LOGW("Cannot write packet to %s", recorder->output->filename);
+    }
+    av_packet_unref(out);
+}
+
+static void writerLoop(Recorder *recorder) {
+    std::unique_lock<std::mutex> lock(recorder->mutex);
+    while (true) {
+        while (recorder->packets.empty() && !recorder->stopping) {
+            recorder->packetsAvailable.wait(lock);
+        }
+        if (recorder->packets.empty()) {
+            break;
+        }
+        AVPacket *packet = recorder->packets.front();
+        recorder->packets.pop_front();
+        recorder->queuedBytes -= packet->size;
+        lock.unlock();
+
+        writePacket(recorder, packet);
+        av_packet_unref(packet);
+
+        lock.lock();
+        recorder->freePackets.push_back(packet);
+    }
+    lock.unlock();
+    closeSegment(recorder);
+}
+
+void recorderWrite(Recorder *recorder, const AVStream *input, const AVPacket *packet) {
+    if (recorder->failed) {
+        return;
+    }
+    if (recorder->parameters == NULL) {
+        // Copied once, so the writer never touches the demuxer's stream
+        AVCodecParameters *parameters = avcodec_parameters_alloc();
+        if (parameters == NULL || avcodec_parameters_copy(parameters, input->codecpar) < 0) {
+            avcodec_parameters_free(&parameters);
+            return;
+        }
+        AVRational frameRate = input->avg_frame_rate.num > 0 ? input->avg_frame_rate : input->r_frame_rate;
+        std::lock_guard<std::mutex> lock(recorder->mutex);
+        recorder->parameters = parameters;
+        recorder->timeBase = input->time_base;
+        if (frameRate.num > 0 && frameRate.den > 0) {
+            recorder->frameDuration = FFMAX(av_rescale_q(1, av_inv_q(frameRate), input->time_base), 1);
+        }
+    }
+    if (recorder->awaitKeyframe && !(packet->flags & AV_PKT_FLAG_KEY)) {
+        return;
+    }
+
+    {
+        std::lock_guard<std::mutex> lock(recorder->mutex);
+        if (recorder->queuedBytes + packet->size > MAX_QUEUED_BYTES) {
+            if (!recorder->awaitKeyframe) {
+                LOGW("Disk too slow, recording skips to the next keyframe");
+            }
+            recorder->awaitKeyframe = true;
+            return;
+        }
+        AVPacket *copy;
+        if (recorder->freePackets.empty()) {
+            copy = av_packet_alloc();
+        } else {
+            copy = recorder->freePackets.back();
+            recorder->freePackets.pop_back();
+        }
+        if (copy == NULL || av_packet_ref(copy, packet) < 0) {
+            av_packet_free(&copy);
+            return;
+        }
+        recorder->awaitKeyframe = false;
+        recorder->packets.push_back(copy);
+        recorder->queuedBytes += copy->size;
+    }
+    recorder->packetsAvailable.notify_one();
+}
+
+void recorderDestroy(Recorder *recorder) {
+    {
+        std::lock_guard<std::mutex> lock(recorder->mutex);
+        recorder->stopping = true;
+    }
+    recorder->packetsAvailable.notify_one();
+    recorder->writer.join();
+
+    for (AVPacket *packet : recorder->freePackets) {
+        av_packet_free(&packet);
+    }
+    av_packet_free(&recorder->packet);
+    avcodec_parameters_free(&recorder->parameters);
+    delete recorder;
+}
@@ -0,0 +1,86 @@
+#ifndef RTSPLIBRARY_RECORDER_H
+#define RTSPLIBRARY_RECORDER_H
+
+#include <atomic>
+#include <condition_variable>
+#include <deque>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+
+extern "C" {
+#include <libavformat/avformat.h>
+}
+
+// Must match RecordingOptions.CONTAINER_*
+enum RecordingContainer {
+    CONTAINER_MP4 = 0,
+    CONTAINER_MKV = 1
+};
+
+struct RecordingConfig {
+    std::string directory;
+    std::string filePrefix;
+    int container;
+    // 0 for no limit
+    int64_t segmentDurationUs;
+    int64_t segmentSizeBytes;
+};
+
+/**
+ * Remuxes the video packets of a stream into rolling segments.  Packets are copied by reference
+ * and written as they are, so recording costs hardly any CPU.  A new segment only starts at a
+ * keyframe, so every file plays on its own.
+ *
+ * The files are written on a thread of the recorder's own, so a slow disk never holds up the
+ * network reads.  If the disk falls too far behind, packets are dropped up to the next keyframe.
+ */
+struct Recorder {
+    RecordingConfig config;
+    // Of the input stream, taken from its first packet.  Read by the writer.
+    AVCodecParameters *parameters;
+    AVRational timeBase;
+    // In the input time base, estimated from the frame rate
+    int64_t frameDuration;
+
+    // Hands packets to the writer
+    std::mutex mutex;
+    std::condition_variable packetsAvailable;
+    std::deque<AVPacket *> packets;
+    std::vector<AVPacket *> freePackets;
+    int64_t queuedBytes;
+    bool stopping;
+    // Set by the writer when a segment couldn't be opened, so we don't retry on every keyframe
+    std::atomic<bool> failed;
+    std::thread writer;
+
+    // Only touched by the thread reading packets
+    bool awaitKeyframe;
+
+    // Only touched by the writer
+    AVFormatContext *output;
+    AVStream *stream;
+    AVPacket *packet;
+    // Generated dts of the segment's first packet, in the input time base
+    int64_t segmentStart;
+    int64_t lastDts;
+    // Most recent pts values, smallest first, see nextDts().  MAX_REORDER_DELAY is libavformat's.
+    int64_t ptsWindow[MAX_REORDER_DELAY + 1];
+    int segmentIndex;
+};
+
+Recorder *recorderCreate(const RecordingConfig &config);
+
+/**
+ * Queues a packet of the input stream for the writer, which starts a new segment first if this
+ * is a keyframe and the current segment is full.  Packets before the first keyframe are skipped.
+ */
+void recorderWrite(Recorder *recorder, const AVStream *input, const AVPacket *packet);
+
+/**
+ * Writes what is still queued, finishes the current segment and stops the writer.
+ */
+void recorderDestroy(Recorder *recorder);
+
+#endif //RTSPLIBRARY_RECORDER_H
@@ -0,0 +1,207 @@
+#include "fanout.h"
+#include "player.h"
+#include "playout.h"
+#include "snapshot.h"
+#include "scheduler.h"
+
+/**
+ * Highest priority stream with packets waiting that no other worker is decoding, the one
+ * served longest ago among equals.  Called with the scheduler locked.
+ */
+static ScheduledStream *nextStream(DecodeScheduler *scheduler) {
+    ScheduledStream *next = NULL;
+    int nextPriority = 0;
+    for (ScheduledStream *stream : scheduler->streams) {
+        if (stream->busy || stream->packets.empty()) {
+            continue;
+        }
+        int priority = stream->session->schedulerPriority;
+        if (next == NULL || priority > nextPriority ||
+            (priority == nextPriority && stream->lastServed < next->lastServed)) {
+            next = stream;
+            nextPriority = priority;
+        }
+    }
+    return next;
+}
+
+static void workerLoop(DecodeScheduler *scheduler) {
+    // Converting grows the frame ring, and frames are delivered from here
+    JNIEnv *env = attachCurrentThread();
+    AVFrame *frame = av_frame_alloc();
+    ConvertedFrame converted;
+
+    std::unique_lock<std::mutex> lock(scheduler->mutex);
+    while (!scheduler->shutdown) {
+        ScheduledStream *stream = nextStream(scheduler);
+        if (stream == NULL) {
+            scheduler->workAvailable.wait(lock);
+            continue;
+        }
+        AVPacket *packet = stream->packets.front();
+        stream->packets.pop_front();
+        stream->session->stats.counters[COUNTER_QUEUE_DEPTH].store((int64_t) stream->packets.size(),
+                                                                   std::memory_order_relaxed);
+        stream->busy = true;
+        stream->lastServed = ++scheduler->servedCount;
+        lock.unlock();
+
+        // The busy flag hands the session's decoder and frame ring to this worker alone.
+        Session *session = stream->session;
+        if (!session->isStop && decodePacket(session, packet, frame)) {
+            do {
+                fanOutFrame(env, session, frame);
+                if (holdLatestFrame(session, frame) && isFrameDue(session, frame) && isFrameChanged(session, frame) &&
+                    convertFrame(env, session, frame, &converted)) {
+                    presentFrame(env, session, converted);
+                }
+                av_frame_unref(frame);
+            } while (receiveFrame(session, frame));
+        }
+        av_packet_unref(packet);
+
+        lock.lock();
+        stream->freePackets.push_back(packet);
+        stream->busy = false;
+        scheduler->streamIdle.notify_all();
+    }
+    lock.unlock();
+
+    av_frame_free(&frame);
+    detachCurrentThread();
+}
+
+DecodeScheduler *schedulerCreate(int workerCount) {
+    DecodeScheduler *scheduler = new DecodeScheduler();
+    scheduler->references = 1;
+    scheduler->servedCount = 0;
+    scheduler->shutdown = false;
+    for (int i = 0; i < workerCount; i++) {
+        scheduler->workers.push_back(std::thread(workerLoop, scheduler));
+    }
+    return scheduler;
+}
+
+void schedulerRetain(DecodeScheduler *scheduler) {
+    scheduler->references++;
+}
+
+void schedulerRelease(DecodeScheduler *scheduler) {
+    if (--scheduler->references > 0) {
+        return;
+    }
+    {
+        std::lock_guard<std::mutex> lock(scheduler->mutex);
+        scheduler->shutdown = true;
+    }
+    scheduler->workAvailable.notify_all();
+    for (std::thread &worker : scheduler->workers) {
+        worker.join();
+    }
+    delete scheduler;
+}
+
+/**
+ * Drops every queued packet once the stream fell a whole queue behind.  Called with the
+ * scheduler locked.
+ */
+static void dropQueuedPackets(ScheduledStream *stream) {
+    Session *session = stream->session;
+    session->stats.count(COUNTER_DROPPED_PACKETS, (int64_t) stream->packets.size());
+    for (AVPacket *packet : stream->packets) {
+        av_packet_unref(packet);
+        stream->freePackets.push_back(packet);
+    }
+    stream->packets.clear();
+    stream->awaitKeyframe = true;
+}
+
+jint playScheduled(Session *session, DecodeScheduler *scheduler) {
+    ScheduledStream stream;
+    stream.session = session;
+    stream.busy = false;
+    stream.awaitKeyframe = false;
+    stream.lastServed = 0;
+    size_t capacity = (size_t) session->activeQueues[QUEUE_PACKETS].capacity;
+    {
+        std::lock_guard<std::mutex> lock(scheduler->mutex);
+        scheduler->streams.push_back(&stream);
+    }
+
+    AVPacket *packet = av_packet_alloc();
+    while (!session->isStop) {
+        int result = readPacket(session, packet);
+        if (result == READ_END) {
+            break;
+        }
+        if (result != READ_VIDEO) {
+            av_packet_unref(packet);
+            continue;
+        }
+
+        {
+            std::lock_guard<std::mutex> lock(scheduler->mutex);
+            if (stream.packets.size() >= capacity) {
+                dropQueuedPackets(&stream);
+            }
+            if (stream.awaitKeyframe && !(packet->flags & AV_PKT_FLAG_KEY)) {
+                session->stats.count(COUNTER_DROPPED_PACKETS);
+                av_packet_unref(packet);
+                continue;
+            }
+            stream.awaitKeyframe = false;
+            stream.packets.push_back(packet);
+            session->stats.counters[COUNTER_QUEUE_DEPTH].store((int64_t) stream.packets.size(),
+                                                               std::memory_order_relaxed);
+            if (stream.freePackets.empty()) {
+                packet = av_packet_alloc();
+            } else {
+                packet = stream.freePackets.back();
+                stream.freePackets.pop_back();
+            }
+        }
+        scheduler->workAvailable.notify_one();
+    }
+    av_packet_free(&packet);
+
+    // Wait for a worker still decoding this stream before closeStream() frees the decoder.
+    {
+        std::unique_lock<std::mutex> lock(scheduler->mutex);
+        for (size_t i = 0; i < scheduler->streams.size(); i++) {
+            if (scheduler->streams[i] == &stream) {
+                scheduler->streams.erase(scheduler->streams.begin() + i);
+                break;
+            }
+        }
+        while (stream.busy) {
+            scheduler->streamIdle.wait(lock);
+        }
+    }
+    for (AVPacket *queued : stream.packets) {
+        av_packet_free(&queued);
+    }
+    for (AVPacket *free : stream.freePackets) {
+        av_packet_free(&free);
+    }
+    session->stats.counters[COUNTER_QUEUE_DEPTH].store(0, std::memory_order_relaxed);
+
+    return session->isStop ? JNI_OK : JNI_ERR;
+}
+
+extern "C"
+jlong
+Java_com_potterhsu_rtsplibrary_StreamManager_createScheduler(
+        JNIEnv *env,
+        jclass clazz,
+        jint workerCount) {
+    return reinterpret_cast<jlong>(schedulerCreate(workerCount));
+}
+
+extern "C"
+void
+Java_com_potterhsu_rtsplibrary_StreamManager_releaseScheduler(
+        JNIEnv *env,
+        jclass clazz,
+        jlong handle) {
+    schedulerRelease(reinterpret_cast<DecodeScheduler *>(handle));
+}
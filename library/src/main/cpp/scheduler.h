@@ -0,0 +1,61 @@
+#ifndef RTSPLIBRARY_SCHEDULER_H
+#define RTSPLIBRARY_SCHEDULER_H
+
+#include <jni.h>
+#include <atomic>
+#include <condition_variable>
+#include <deque>
+#include <mutex>
+#include <stdint.h>
+#include <thread>
+#include <vector>
+
+struct AVPacket;
+struct Session;
+
+/**
+ * A session playing on a DecodeScheduler, for the duration of one connection.  Its network
+ * thread queues packets and the workers take turns decoding them.
+ */
+struct ScheduledStream {
+    Session *session;
+    std::deque<AVPacket *> packets;
+    std::vector<AVPacket *> freePackets;
+    // A worker is decoding this stream, which keeps the others off its decoder
+    bool busy;
+    // Packets were dropped, so everything up to the next keyframe is useless
+    bool awaitKeyframe;
+    // Round robin among streams of the same priority
+    uint64_t lastServed;
+};
+
+/**
+ * Fixed pool of worker threads decoding, converting and delivering frames for many sessions,
+ * always serving the highest priority stream with packets waiting first.  Lower priority
+ * streams fall behind and drop to their next keyframe instead of taking cores from the
+ * focused ones.
+ *
+ * Reference counted, the StreamManager and every session attached to it hold a reference.
+ */
+struct DecodeScheduler {
+    std::mutex mutex;
+    std::condition_variable workAvailable;
+    std::condition_variable streamIdle;
+    std::vector<std::thread> workers;
+    std::vector<ScheduledStream *> streams;
+    std::atomic<int> references;
+    uint64_t servedCount;
+    bool shutdown;
+};
+
+DecodeScheduler *schedulerCreate(int workerCount);
+void schedulerRetain(DecodeScheduler *scheduler);
+void schedulerRelease(DecodeScheduler *scheduler);
+
+/**
+ * Demuxes on the calling thread until stopped or the stream ends, while the scheduler's
+ * workers decode and deliver.  The stream must already be open.
+ */
+jint playScheduled(Session *session, DecodeScheduler *scheduler);
+
+#endif //RTSPLIBRARY_SCHEDULER_H
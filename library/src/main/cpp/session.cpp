@@ -0,0 +1,96 @@
+#include "session.h"
+#include "snapshot.h"
+#include "spsc_queue.h"
+
+Session::Session(int outputFormat, int bufferCount) {
+    callback = NULL;
+    callbackMethodId = NULL;
+    codecConfigMethodId = NULL;
+    this->outputFormat = outputFormat;
+    pooled = bufferCount > 0;
+    frameRing = NULL;
+    directBufferInit(&packetBuffer);
+    audioCallback = NULL;
+    audioMethodId = NULL;
+    directBufferInit(&audioBuffer);
+    isStop = false;
+    statsReset(&stats);
+    decoderThreadCount = 1;
+    decoderThreadType = FF_THREAD_SLICE;
+    pipelined = false;
+    decoding = true;
+    // Absorb network bursts without losing packets, but only ever show the newest frame.
+    queues[QUEUE_PACKETS].capacity = 128;
+    queues[QUEUE_PACKETS].dropPolicy = DROP_POLICY_BLOCK;
+    queues[QUEUE_FRAMES].capacity = 4;
+    queues[QUEUE_FRAMES].dropPolicy = DROP_POLICY_DROP_OLDEST;
+    queues[QUEUE_CONVERTED].capacity = 2;
+    queues[QUEUE_CONVERTED].dropPolicy = DROP_POLICY_DROP_OLDEST;
+    audioConfig.enabled = false;
+    decodeMode = DECODE_ALL;
+    frameIntervalUs = 0;
+    playoutDelayUs = 0;
+    playoutMaxDelayUs = 0;
+    motionConfig.enabled = false;
+    motionConfigVersion = 0;
+    latestFrame = av_frame_alloc();
+    latestFrameOnly = false;
+    grabSwsContext = NULL;
+    outputSpec = OutputSpec();
+    outputSpec.scaler = SWS_BICUBIC;
+    outputSpecVersion = 1;
+    recording = NULL;
+    recordingChanged = false;
+    cachedParameters = NULL;
+    gopCacheInit(&gopCache);
+    gopCacheMaxBytes = 0;
+    gopCacheMaxDurationUs = 0;
+    awaitKeyframe = false;
+    playing = false;
+    disposed = false;
+    scheduler = NULL;
+    schedulerPriority = 0;
+    subscriberCount = 0;
+    subscriberFrame = av_frame_alloc();
+    forwardedGeneration = -1;
+    stallTimeoutUs = 0;
+    reconnect = false;
+    reconnectDelayMs = 0;
+    maxReconnectDelayMs = 0;
+    ioDeadlineUs = AV_NOPTS_VALUE;
+    ioTimedOut = false;
+    closingStream = false;
+    state = STATE_CLOSED;
+    formatContext = NULL;
+    codecContext = NULL;
+    swsContext = NULL;
+    bitstreamFilter = NULL;
+    recorder = NULL;
+    audioDecoder = NULL;
+    videoStreamIndex = -1;
+    audioStreamIndex = -1;
+    videoTimeBase = AV_TIME_BASE_Q;
+    streamGeneration = 0;
+    activeOutputSpecVersion = 0;
+    activePipelined = false;
+    for (int i = 0; i < QUEUE_COUNT; i++) {
+        activeQueues[i] = queues[i];
+    }
+    nextFrameDueUs = AV_NOPTS_VALUE;
+    motionDetector.config.enabled = false;
+    motionDetector.configVersion = 0;
+    motionDetectorReset(&motionDetector);
+    playout = NULL;
+}
+
+Session::~Session() {
+    // Everything of a connection is gone already, closeStream() runs after each one.
+    if (scheduler != NULL) {
+        schedulerRelease(scheduler);
+    }
+    releaseLatestFrame(this);
+    av_frame_free(&subscriberFrame);
+    gopCacheFree(&gopCache);
+    delete recording;
+    avcodec_parameters_free(&cachedParameters);
+}
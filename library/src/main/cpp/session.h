@@ -0,0 +1,247 @@
+#ifndef RTSPLIBRARY_SESSION_H
+#define RTSPLIBRARY_SESSION_H
+
+#include <jni.h>
+#include <atomic>
+#include <mutex>
+#include <string>
+#include <vector>
+
+extern "C" {
+#include <libavcodec/avcodec.h>
+#include <libavformat/avformat.h>
+#include <libswscale/swscale.h>
+}
+
+#include "audio.h"
+#include "direct_buffer.h"
+#include "frame_ring.h"
+#include "gop_cache.h"
+#include "motion.h"
+#include "recorder.h"
+#include "scheduler.h"
+#include "stats.h"
+
+struct Playout;
+struct Subscription;
+
+// Must match RtspClient.FORMAT_*
+enum OutputFormat {
+    FORMAT_RGB24 = 0,
+    FORMAT_YUV420P = 1,
+    FORMAT_H264_ANNEXB = 2,
+    // Only for RtspClient.grabLatest
+    FORMAT_JPEG = 3
+};
+
+// Must match RtspClient.QUEUE_*
+enum PipelineQueue {
+    QUEUE_PACKETS = 0,
+    QUEUE_FRAMES = 1,
+    QUEUE_CONVERTED = 2,
+    QUEUE_COUNT = 3
+};
+
+/**
+ * Size, crop and scaler of converted frames.  0 width / height keep the source size (or its
+ * aspect ratio if only one is set), a crop of 0 x 0 shows the whole frame.
+ */
+struct OutputSpec {
+    int width;
+    int height;
+    int cropX;
+    int cropY;
+    int cropWidth;
+    int cropHeight;
+    // SWS_* flags, same values as RtspClient.SCALER_*
+    int scaler;
+};
+
+// Must match RtspClient.DECODE_*
+enum DecodeMode {
+    DECODE_ALL = 0,
+    DECODE_REFERENCE_FRAMES = 1,
+    DECODE_KEYFRAMES = 2
+};
+
+// Must match RtspClient.STATE_*
+enum SessionState {
+    STATE_CLOSED = 0,
+    STATE_CONNECTING = 1,
+    STATE_PLAYING = 2,
+    STATE_STALLED = 3,
+    STATE_RECONNECTING = 4
+};
+
+struct QueueConfig {
+    int capacity;
+    int dropPolicy;
+};
+
+/**
+ * Everything one RtspClient needs natively.  The pointer is kept in RtspClient.nativeHandle so
+ * any number of clients can play at the same time, each on its own thread.
+ */
+struct Session {
+    jobject callback;
+    jmethodID callbackMethodId;
+    // NativePacketCallback.onCodecConfig, only for FORMAT_H264_ANNEXB
+    jmethodID codecConfigMethodId;
+    int outputFormat;
+    // false for the byte[] callback, in which case frameRing is only used internally
+    bool pooled;
+    FrameRing *frameRing;
+    // Reused for every packet of FORMAT_H264_ANNEXB
+    DirectBuffer packetBuffer;
+    // RtspClient's audio dispatcher, there even while audio is off, and its onAudio
+    jobject audioCallback;
+    jmethodID audioMethodId;
+    // Reused for the PCM of every audio frame
+    DirectBuffer audioBuffer;
+
+    std::atomic<bool> isStop;
+
+    // Read by RtspClient.getStats() at any time
+    Stats stats;
+
+    // Applied to the decoder on the next play(), guarded by lifecycleMutex
+    int decoderThreadCount;
+    int decoderThreadType;
+
+    // Applied on the next play()
+    std::atomic<bool> pipelined;
+    // false to only record, the callback then gets nothing.  Read once by openStream(), the
+    // connection decodes iff it opened codecContext.
+    std::atomic<bool> decoding;
+    // Guarded by lifecycleMutex
+    QueueConfig queues[QUEUE_COUNT];
+    // Guarded by lifecycleMutex
+    AudioConfig audioConfig;
+
+    // Changed from Java at any time, picked up with the next packet / frame
+    std::atomic<int> decodeMode;
+    // Minimum time between delivered frames, 0 delivers every frame
+    std::atomic<int64_t> frameIntervalUs;
+    // Playout stage delay, off while the maximum is 0.  Adapts between the two if they differ.
+    std::atomic<int64_t> playoutDelayUs;
+    std::atomic<int64_t> playoutMaxDelayUs;
+
+    // Set from Java at any time, the decoding thread takes a copy whenever motionConfigVersion
+    // moves on.
+    std::mutex motionMutex;
+    MotionConfig motionConfig;
+    std::atomic<int> motionConfigVersion;
+
+    // Newest decoded frame, for RtspClient.grabLatest.  Kept until dispose().
+    std::mutex latestFrameMutex;
+    AVFrame *latestFrame;
+    // Only keep the newest frame, nothing is converted or delivered.  Changed from Java at any
+    // time.
+    std::atomic<bool> latestFrameOnly;
+    // Held by grabLatest, which has a scaler of its own
+    std::mutex grabMutex;
+    SwsContext *grabSwsContext;
+
+    // Set from Java at any time, the converting thread takes a copy whenever outputSpecVersion
+    // moves on.
+    std::mutex outputSpecMutex;
+    OutputSpec outputSpec;
+    std::atomic<int> outputSpecVersion;
+
+    // Set from Java at any time, picked up by the thread reading packets once recordingChanged
+    // is raised.  NULL when not recording.
+    std::mutex recordingMutex;
+    RecordingConfig *recording;
+    std::atomic<bool> recordingChanged;
+
+    // Codec parameters probed on the last connection, reused when reconnecting to the same
+    // endpoint.  Survive across play() calls.
+    AVCodecParameters *cachedParameters;
+    std::string cachedEndpoint;
+
+    // Video packets since the last keyframe, survive across play() calls so a restart can show
+    // a picture right away.  Limits are set from Java, 0 bytes turns the cache off; each is
+    // read once per packet, a packet seeing one new and one old limit only trims differently.
+    GopCache gopCache;
+    std::atomic<int64_t> gopCacheMaxBytes;
+    std::atomic<int64_t> gopCacheMaxDurationUs;
+    // Set once the decoder was flushed after decoding the cache, so it skips the live packets
+    // up to the next keyframe.  Written by play() before the decoding threads start, then only
+    // by whichever thread decodes.
+    bool awaitKeyframe;
+
+    // Guards playing / disposed, dispose() during play() leaves the cleanup to play().
+    std::mutex lifecycleMutex;
+    bool playing;
+    bool disposed;
+    // StreamManager to decode on instead of the play() thread, also guarded by lifecycleMutex
+    DecodeScheduler *scheduler;
+    std::atomic<int> schedulerPriority;
+
+    // SharedSource sessions fed by this session's connection, see fanout.h.  The count lets
+    // the playback threads skip the lock while there are none.
+    std::mutex subscribersMutex;
+    std::vector<Subscription *> subscribers;
+    std::atomic<int> subscriberCount;
+    // Scratch reference to each decoded frame for the subscribers
+    AVFrame *subscriberFrame;
+    // Of a subscriber: streamGeneration of the source its codec config was sent for
+    int forwardedGeneration;
+
+    // Set by each play() from RtspOptions
+    int64_t stallTimeoutUs;
+    bool reconnect;
+    int64_t reconnectDelayMs;
+    int64_t maxReconnectDelayMs;
+
+    // Only touched by the threads inside play()
+    // Blocking network I/O is interrupted after this time, AV_NOPTS_VALUE for never
+    int64_t ioDeadlineUs;
+    // Set once the deadline interrupted I/O, tells a stall apart from the stream ending
+    bool ioTimedOut;
+    bool closingStream;
+    // Last state reported to RtspClient
+    int state;
+    AVFormatContext *formatContext;
+    AVCodecContext *codecContext;
+    SwsContext *swsContext;
+    // avcC to Annex-B conversion, NULL if the stream already is Annex-B
+    AVBSFContext *bitstreamFilter;
+    Recorder *recorder;
+    // NULL unless audio is on and the stream has an audio track we can decode
+    AudioDecoder *audioDecoder;
+    int videoStreamIndex;
+    int audioStreamIndex;
+    // Of the video stream, also set for subscribers from their source
+    AVRational videoTimeBase;
+    // Counts connections, read by subscribers on the source's threads
+    int streamGeneration;
+    // Copy of outputSpec used by the converting thread
+    OutputSpec activeOutputSpec;
+    int activeOutputSpecVersion;
+    // Copies of pipelined and queues for the current connection, see loadPlayConfig()
+    bool activePipelined;
+    QueueConfig activeQueues[QUEUE_COUNT];
+    // When the next frame may be delivered under frameIntervalUs, AV_NOPTS_VALUE to take the next
+    int64_t nextFrameDueUs;
+    MotionDetector motionDetector;
+    // Playout stage of the current connection, NULL if off
+    Playout *playout;
+
+    /**
+     * Everything starts out at its default, turned off or NULL.
+     * @param bufferCount size of the frame pool, 0 for the byte[] callback
+     */
+    Session(int outputFormat, int bufferCount);
+
+    /**
+     * Frees what the session owns across connections.  JNI references and the frame ring's
+     * buffers need a JNIEnv and are released by destroySession() first.
+     */
+    ~Session();
+
+    Session(const Session &) = delete;
+    Session &operator=(const Session &) = delete;
+};
+
+#endif //RTSPLIBRARY_SESSION_H
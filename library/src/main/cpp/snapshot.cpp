@@ -0,0 +1,161 @@
+#include <string.h>
+#include "log.h"
+
+#include "player.h"
+#include "snapshot.h"
+
+extern "C" {
+#include <libavutil/imgutils.h>
+#include <libavutil/pixdesc.h>
+}
+
+static const char *TAG = __FILE__;
+
+// MJPEG quantiser, 2 (best) to 31 (smallest)
+static const int JPEG_QSCALE = 3;
+
+bool holdLatestFrame(Session *session, const AVFrame *frame) {
+    {
+        std::lock_guard<std::mutex> lock(session->latestFrameMutex);
+        av_frame_unref(session->latestFrame);
+        if (av_frame_ref(session->latestFrame, frame) < 0) {
+            av_frame_unref(session->latestFrame);
+        }
+    }
+    return !session->latestFrameOnly;
+}
+
+/**
+ * Encodes a YUVJ420P picture as a baseline JPEG.
+ * @return 0 on success or a negative AVERROR
+ */
+static int encodeJpeg(AVFrame *picture, AVPacket *packet) {
+    AVCodec *codec = avcodec_find_encoder(AV_CODEC_ID_MJPEG);
+    if (codec == NULL) {
+        LOGW("FFmpeg was built without the MJPEG encoder");
+        return AVERROR_ENCODER_NOT_FOUND;
+    }
+    AVCodecContext *context = avcodec_alloc_context3(codec);
+    if (context == NULL) {
+        return AVERROR(ENOMEM);
+    }
+    context->width = picture->width;
+    context->height = picture->height;
+    context->pix_fmt = AV_PIX_FMT_YUVJ420P;
+    context->time_base = av_make_q(1, 25);
+    context->flags |= AV_CODEC_FLAG_QSCALE;
+    context->global_quality = FF_QP2LAMBDA * JPEG_QSCALE;
+    picture->quality = context->global_quality;
+    picture->pts = 0;
+
+    int err = avcodec_open2(context, codec, NULL);
+    if (err >= 0) {
+        err = avcodec_send_frame(context, picture);
+    }
+    if (err >= 0) {
+        err = avcodec_receive_packet(context, packet);
+    }
+    avcodec_free_context(&context);
+    return err < 0 ? err : 0;
+}
+
+/**
+ * Scales into dst, which has to hold the whole picture, or encodes a JPEG and copies it there
+ * if it fits.
+ */
+static int64_t convertLatest(Session *session, AVFrame *frame, const OutputSpec &spec, int format,
+                             uint8_t *dst, int64_t capacity) {
+    AVPixelFormat srcFormat = (AVPixelFormat) frame->format;
+    const AVPixFmtDescriptor *desc = av_pix_fmt_desc_get(srcFormat);
+    if (desc == NULL) {
+        return 0;
+    }
+    int cropX, cropY, cropWidth, cropHeight;
+    cropRect(spec, frame, desc, &cropX, &cropY, &cropWidth, &cropHeight);
+    int width, height;
+    outputSize(spec, cropWidth, cropHeight, &width, &height);
+
+    AVPixelFormat dstFormat = format == FORMAT_RGB24 ? AV_PIX_FMT_RGB24 :
+                              format == FORMAT_YUV420P ? AV_PIX_FMT_YUV420P : AV_PIX_FMT_YUVJ420P;
+    if (format != FORMAT_JPEG) {
+        int64_t size = av_image_get_buffer_size(dstFormat, width, height, 1);
+        if (size > capacity) {
+            return -size;
+        }
+    }
+
+    session->grabSwsContext = sws_getCachedContext(session->grabSwsContext, cropWidth, cropHeight, srcFormat,
+                                                   width, height, dstFormat, spec.scaler, NULL, NULL, NULL);
+    if (session->grabSwsContext == NULL) {
+        return 0;
+    }
+    const uint8_t *srcData[4];
+    cropPlanes(frame, desc, cropX, cropY, srcData);
+
+    if (format != FORMAT_JPEG) {
+        uint8_t *dstData[4];
+        int dstLinesize[4];
+        av_image_fill_arrays(dstData, dstLinesize, dst, dstFormat, width, height, 1);
+        sws_scale(session->grabSwsContext, srcData, frame->linesize, 0, cropHeight, dstData, dstLinesize);
+        return av_image_get_buffer_size(dstFormat, width, height, 1);
+    }
+
+    AVFrame *picture = av_frame_alloc();
+    picture->format = dstFormat;
+    picture->width = width;
+    picture->height = height;
+    int64_t result = 0;
+    AVPacket packet;
+    av_init_packet(&packet);
+    packet.data = NULL;
+    packet.size = 0;
+    if (av_frame_get_buffer(picture, 32) >= 0) {
+        sws_scale(session->grabSwsContext, srcData, frame->linesize, 0, cropHeight, picture->data, picture->linesize);
+        int err = encodeJpeg(picture, &packet);
+        if (err < 0) {
+            LOGW("Cannot encode the snapshot, error code: %d", err);
+        } else if (packet.size > capacity) {
+            result = -packet.size;
+        } else {
+            memcpy(dst, packet.data, (size_t) packet.size);
+            result = packet.size;
+        }
+    }
+    av_packet_unref(&packet);
+    av_frame_free(&picture);
+    return result;
+}
+
+int64_t grabLatestFrame(Session *session, uint8_t *dst, int64_t capacity, int format, int width, int height) {
+    // Take a reference so the decoding thread can move on to the next frame meanwhile.
+    AVFrame *frame = av_frame_alloc();
+    {
+        std::lock_guard<std::mutex> lock(session->latestFrameMutex);
+        if (session->latestFrame->buf[0] == NULL || av_frame_ref(frame, session->latestFrame) < 0) {
+            av_frame_free(&frame);
+            return 0;
+        }
+    }
+
+    OutputSpec spec;
+    {
+        std::lock_guard<std::mutex> lock(session->outputSpecMutex);
+        spec = session->outputSpec;
+    }
+    spec.width = width;
+    spec.height = height;
+
+    int64_t result;
+    {
+        std::lock_guard<std::mutex> lock(session->grabMutex);
+        result = convertLatest(session, frame, spec, format, dst, capacity);
+    }
+    av_frame_free(&frame);
+    return result;
+}
+
+void releaseLatestFrame(Session *session) {
+    av_frame_free(&session->latestFrame);
+    sws_freeContext(session->grabSwsContext);
+    session->grabSwsContext = NULL;
+}
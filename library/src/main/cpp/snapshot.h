@@ -0,0 +1,30 @@
+#ifndef RTSPLIBRARY_SNAPSHOT_H
+#define RTSPLIBRARY_SNAPSHOT_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include "session.h"
+
+/**
+ * Keeps a reference to the newest decoded frame for grabLatestFrame(), which only costs a
+ * reference count since decoded frames are refcounted.
+ * @return false in latest frame mode, where the frame is neither converted nor delivered
+ */
+bool holdLatestFrame(Session *session, const AVFrame *frame);
+
+/**
+ * Converts the newest decoded frame on the calling thread, using the session's crop and scaler.
+ * @param format FORMAT_RGB24, FORMAT_YUV420P or FORMAT_JPEG
+ * @param width output width, 0 keeps the source size or aspect ratio like OutputSpec
+ * @return bytes written to dst, 0 if there is no frame yet or it couldn't be converted, minus
+ *         the size needed if capacity is too small
+ */
+int64_t grabLatestFrame(Session *session, uint8_t *dst, int64_t capacity, int format, int width, int height);
+
+/**
+ * Frees the latest frame and the scaler, for destroying the session.
+ */
+void releaseLatestFrame(Session *session);
+
+#endif //RTSPLIBRARY_SNAPSHOT_H
@@ -0,0 +1,245 @@
+#ifndef RTSPLIBRARY_SPSC_QUEUE_H
+#define RTSPLIBRARY_SPSC_QUEUE_H
+
+#include <atomic>
+#include <chrono>
+#include <thread>
+#include <stddef.h>
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.  The producer
+ * may also take the oldest item back out with evict() instead of waiting for the consumer.
+ */
+template <typename T>
+class SpscQueue {
+public:
+    explicit SpscQueue(size_t capacity)
+            : slots(capacity + 1), items(new T[capacity + 1]), head(0), tail(0) {
+    }
+
+    ~SpscQueue() {
+        delete[] items;
+    }
+
+    /**
+     * Producer side.
+     * @return false if the queue is full
+     */
+    bool push(const T &item) {
+        size_t t = tail.load(std::memory_order_relaxed);
+        size_t next = (t + 1) % slots;
+        if (next == head.load(std::memory_order_acquire)) {
+            return false;
+        }
+        items[t] = item;
+        tail.store(next, std::memory_order_release);
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     * @return false if the queue is empty
+     */
+    bool pop(T &item) {
+        // The producer may evict the same item, so the slot is claimed by moving the head past
+        // it.  Whoever loses the race retries with the next slot; what it copied meanwhile may
+        // already be overwritten and is thrown away.
+        size_t h = head.load(std::memory_order_acquire);
+        do {
+            if (h == tail.load(std::memory_order_acquire)) {
+                return false;
+            }
+            item = items[h];
+        } while (!head.compare_exchange_weak(h, (h + 1) % slots, std::memory_order_acq_rel,
+                                             std::memory_order_acquire));
+        return true;
+    }
+
+    /**
+     * Producer side, takes the oldest item out to make room.
+     * @return false if the consumer emptied the queue meanwhile
+     */
+    bool evict(T &item) {
+        return pop(item);
+    }
+
+    size_t size() const {
+        size_t h = head.load(std::memory_order_acquire);
+        size_t t = tail.load(std::memory_order_acquire);
+        return (t + slots - h) % slots;
+    }
+
+    size_t capacity() const {
+        return slots - 1;
+    }
+
+private:
+    SpscQueue(const SpscQueue &);
+    SpscQueue &operator=(const SpscQueue &);
+
+    const size_t slots;
+    T *const items;
+    std::atomic<size_t> head;
+    std::atomic<size_t> tail;
+};
+
+// Must match RtspClient.DROP_POLICY_*
+enum DropPolicy {
+    // Producer waits for room, nothing is lost
+    DROP_POLICY_BLOCK = 0,
+    // Producer evicts the oldest item to make room, the consumer then throws away everything but
+    // the newest
+    DROP_POLICY_DROP_OLDEST = 1,
+    // Producer drops the incoming item if nothing depends on it, otherwise waits
+    DROP_POLICY_DROP_NON_REFERENCE = 2
+};
+
+/**
+ * Waits without locks: spins briefly, then yields, then sleeps so an idle stage doesn't burn a
+ * core.
+ */
+class Backoff {
+public:
+    Backoff() : rounds(0) {
+    }
+
+    void pause() {
+        if (rounds < 64) {
+            // busy spin
+        } else if (rounds < 128) {
+            std::this_thread::yield();
+        } else {
+            std::this_thread::sleep_for(std::chrono::microseconds(500));
+        }
+        rounds++;
+    }
+
+private:
+    int rounds;
+};
+
+/**
+ * Connects two pipeline stages: a SpscQueue plus a drop policy and an end of stream marker.
+ * Items the consumer side drops are handed to the discard function so their resources are
+ * returned, items refused or evicted by put() stay with the producer.
+ */
+template <typename T>
+class StageChannel {
+public:
+    typedef void (*DiscardFunction)(T item, void *opaque);
+
+    /**
+     * @param dropCounter also counts drops, may be NULL
+     */
+    StageChannel(size_t capacity, int policy, DiscardFunction discard, void *opaque,
+                 std::atomic<int64_t> *dropCounter = NULL)
+            : queue(capacity), policy(policy), discard(discard), opaque(opaque),
+              dropCounter(dropCounter), overflowed(false), closed(false), dropped(0) {
+    }
+
+    /**
+     * Producer side, waits for room as the policy demands.  With DROP_POLICY_DROP_OLDEST it
+     * never waits, however stalled the consumer is.
+     * @param disposable whether nothing downstream depends on this item
+     * @param oldest receives the item evicted to make room
+     * @param evicted set to true if oldest was evicted, the caller then owns it
+     * @return false if the item was dropped or the pipeline is stopping, the caller keeps it
+     */
+    bool put(T item, bool disposable, const std::atomic<bool> &stop, T &oldest, bool *evicted) {
+        *evicted = false;
+        Backoff backoff;
+        while (!queue.push(item)) {
+            if (policy == DROP_POLICY_DROP_NON_REFERENCE && disposable) {
+                countDrop();
+                return false;
+            }
+            if (policy == DROP_POLICY_DROP_OLDEST && !*evicted) {
+                // Only this thread adds items, so once one is out the push can't fail again.
+                // Failing to evict means the consumer just made room.
+                if (queue.evict(oldest)) {
+                    countDrop();
+                    *evicted = true;
+                    // Ask the consumer to catch up to the newest item on its next take().
+                    overflowed.store(true, std::memory_order_release);
+                }
+                continue;
+            }
+            if (stop) {
+                return false;
+            }
+            backoff.pause();
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side, waits for the next item.
+     * @param flushed set to true if older items were dropped before this one
+     * @return false once the producer closed the channel and it is drained, or on stop
+     */
+    bool take(T &item, bool *flushed, const std::atomic<bool> &stop) {
+        *flushed = false;
+        if (overflowed.exchange(false, std::memory_order_acq_rel)) {
+            // Keep only the newest item
+            T old;
+            while (queue.size() > 1 && queue.pop(old)) {
+                countDrop();
+                discard(old, opaque);
+                *flushed = true;
+            }
+        }
+
+        Backoff backoff;
+        while (!queue.pop(item)) {
+            if (stop || (closed.load(std::memory_order_acquire) && queue.size() == 0)) {
+                return false;
+            }
+            backoff.pause();
+        }
+        return true;
+    }
+
+    /**
+     * Producer side, no more items will follow.
+     */
+    void close() {
+        closed.store(true, std::memory_order_release);
+    }
+
+    /**
+     * Discards whatever is left, only once both stages are done.
+     */
+    void drain() {
+        T item;
+        while (queue.pop(item)) {
+            discard(item, opaque);
+        }
+    }
+
+    size_t size() const {
+        return queue.size();
+    }
+
+    long droppedCount() const {
+        return dropped.load(std::memory_order_relaxed);
+    }
+
+private:
+    void countDrop() {
+        dropped.fetch_add(1, std::memory_order_relaxed);
+        if (dropCounter != NULL) {
+            dropCounter->fetch_add(1, std::memory_order_relaxed);
+        }
+    }
+
+    SpscQueue<T> queue;
+    const int policy;
+    const DiscardFunction discard;
+    void *const opaque;
+    std::atomic<int64_t> *const dropCounter;
+    std::atomic<bool> overflowed;
+    std::atomic<bool> closed;
+    std::atomic<long> dropped;
+};
+
+#endif //RTSPLIBRARY_SPSC_QUEUE_H
@@ -0,0 +1,75 @@
+#include "stats.h"
+
+extern "C" {
+#include <libavutil/avutil.h>
+}
+
+void statsReset(Stats *stats) {
+    for (int i = 0; i < COUNTER_COUNT; i++) {
+        stats->counters[i] = 0;
+    }
+    for (int i = 0; i < STAGE_COUNT; i++) {
+        LatencyHistogram &histogram = stats->stages[i];
+        histogram.count = 0;
+        histogram.totalUs = 0;
+        histogram.maxUs = 0;
+        for (int j = 0; j < HISTOGRAM_BUCKETS; j++) {
+            histogram.buckets[j] = 0;
+        }
+    }
+    stats->bitrateWindowStartUs = AV_NOPTS_VALUE;
+    stats->bitrateWindowBytes = 0;
+    stats->ptsOffsetUs = AV_NOPTS_VALUE;
+}
+
+void statsPacketReceived(Stats *stats, int size, bool corrupt, int64_t ptsUs, int64_t nowUs) {
+    stats->count(COUNTER_PACKETS);
+    stats->count(COUNTER_BYTES, size);
+    if (corrupt) {
+        stats->count(COUNTER_CORRUPT_PACKETS);
+    }
+
+    if (stats->bitrateWindowStartUs == AV_NOPTS_VALUE) {
+        stats->bitrateWindowStartUs = nowUs;
+    }
+    stats->bitrateWindowBytes += size;
+    int64_t elapsedUs = nowUs - stats->bitrateWindowStartUs;
+    if (elapsedUs >= AV_TIME_BASE) {
+        stats->counters[COUNTER_BITRATE].store(stats->bitrateWindowBytes * 8 * AV_TIME_BASE / elapsedUs,
+                                               std::memory_order_relaxed);
+        stats->bitrateWindowStartUs = nowUs;
+        stats->bitrateWindowBytes = 0;
+    }
+
+    if (ptsUs != AV_NOPTS_VALUE) {
+        int64_t offsetUs = nowUs - ptsUs;
+        int64_t minOffsetUs = stats->ptsOffsetUs.load(std::memory_order_relaxed);
+        if (minOffsetUs == AV_NOPTS_VALUE || offsetUs < minOffsetUs) {
+            stats->ptsOffsetUs.store(offsetUs, std::memory_order_relaxed);
+        }
+    }
+}
+
+void statsFrameDelivered(Stats *stats, int64_t ptsUs, int64_t nowUs) {
+    stats->count(COUNTER_DELIVERED_FRAMES);
+    int64_t offsetUs = stats->ptsOffsetUs.load(std::memory_order_relaxed);
+    if (ptsUs != AV_NOPTS_VALUE && offsetUs != AV_NOPTS_VALUE) {
+        stats->stages[STAGE_LATENCY].record(nowUs - (ptsUs + offsetUs));
+    }
+}
+
+void statsSnapshot(Stats *stats, int64_t *values) {
+    int n = 0;
+    for (int i = 0; i < COUNTER_COUNT; i++) {
+        values[n++] = stats->counters[i].load(std::memory_order_relaxed);
+    }
+    for (int i = 0; i < STAGE_COUNT; i++) {
+        LatencyHistogram &histogram = stats->stages[i];
+        values[n++] = histogram.count.load(std::memory_order_relaxed);
+        values[n++] = histogram.totalUs.load(std::memory_order_relaxed);
+        values[n++] = histogram.maxUs.load(std::memory_order_relaxed);
+        for (int j = 0; j < HISTOGRAM_BUCKETS; j++) {
+            values[n++] = histogram.buckets[j].load(std::memory_order_relaxed);
+        }
+    }
+}
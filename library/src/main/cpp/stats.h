@@ -0,0 +1,108 @@
+#ifndef RTSPLIBRARY_STATS_H
+#define RTSPLIBRARY_STATS_H
+
+#include <atomic>
+#include <stdint.h>
+
+// Must match RtspStats.STAGE_*
+enum StatsStage {
+    STAGE_READ = 0,
+    STAGE_DECODE = 1,
+    STAGE_SCALE = 2,
+    STAGE_CALLBACK = 3,
+    STAGE_LATENCY = 4,
+    STAGE_COUNT = 5
+};
+
+// Must match RtspStats.COUNTER_*
+enum StatsCounter {
+    COUNTER_PACKETS = 0,
+    COUNTER_BYTES = 1,
+    COUNTER_BITRATE = 2,
+    COUNTER_CORRUPT_PACKETS = 3,
+    COUNTER_DROPPED_PACKETS = 4,
+    COUNTER_DECODER_ERRORS = 5,
+    COUNTER_DECODED_FRAMES = 6,
+    COUNTER_DROPPED_FRAMES = 7,
+    COUNTER_DELIVERED_FRAMES = 8,
+    COUNTER_RECONNECTS = 9,
+    // Current delay of the playout stage in microseconds, a gauge like the bitrate
+    COUNTER_PLAYOUT_DELAY = 10,
+    // Packets and frames waiting between the stages of a pipelined or scheduled client, a gauge
+    COUNTER_QUEUE_DEPTH = 11,
+    COUNTER_COUNT = 12
+};
+
+// Bucket i counts durations below 2^(i + 1) microseconds, the last one everything above.
+const int HISTOGRAM_BUCKETS = 24;
+
+/**
+ * Log2 histogram of durations.  Each histogram has a single writer, readers may see a sample
+ * counted in one field and not yet in another, which is fine for statistics.
+ */
+struct LatencyHistogram {
+    std::atomic<int64_t> count;
+    std::atomic<int64_t> totalUs;
+    std::atomic<int64_t> maxUs;
+    std::atomic<int64_t> buckets[HISTOGRAM_BUCKETS];
+
+    void record(int64_t us) {
+        if (us < 0) {
+            us = 0;
+        }
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BUCKETS - 1 && us >= (int64_t) 2 << bucket) {
+            bucket++;
+        }
+        buckets[bucket].fetch_add(1, std::memory_order_relaxed);
+        count.fetch_add(1, std::memory_order_relaxed);
+        totalUs.fetch_add(us, std::memory_order_relaxed);
+        if (us > maxUs.load(std::memory_order_relaxed)) {
+            maxUs.store(us, std::memory_order_relaxed);
+        }
+    }
+};
+
+/**
+ * Counters of one session, written by the playback threads with relaxed atomics only and read
+ * by RtspClient.getStats() from any thread.
+ */
+struct Stats {
+    std::atomic<int64_t> counters[COUNTER_COUNT];
+    LatencyHistogram stages[STAGE_COUNT];
+
+    // Only touched by the thread reading packets
+    int64_t bitrateWindowStartUs;
+    int64_t bitrateWindowBytes;
+
+    // Smallest receive time minus PTS seen so far, the reference for STAGE_LATENCY
+    std::atomic<int64_t> ptsOffsetUs;
+
+    void count(StatsCounter counter, int64_t n = 1) {
+        counters[counter].fetch_add(n, std::memory_order_relaxed);
+    }
+};
+
+// Number of values statsSnapshot() writes, must match RtspStats.SNAPSHOT_SIZE
+const int STATS_SNAPSHOT_SIZE = COUNTER_COUNT + STAGE_COUNT * (3 + HISTOGRAM_BUCKETS);
+
+void statsReset(Stats *stats);
+
+/**
+ * Counts a received packet of the video stream and keeps the bitrate over the last second.
+ */
+void statsPacketReceived(Stats *stats, int size, bool corrupt, int64_t ptsUs, int64_t nowUs);
+
+/**
+ * Records how long after its expected arrival a frame with this PTS reached Java.  The expected
+ * arrival is the PTS shifted by the fastest receive time seen, so network jitter and every queue
+ * and stage in between show up.
+ */
+void statsFrameDelivered(Stats *stats, int64_t ptsUs, int64_t nowUs);
+
+/**
+ * Flattens everything into values, see RtspStats for the layout.
+ */
+void statsSnapshot(Stats *stats, int64_t *values);
+
+#endif //RTSPLIBRARY_STATS_H
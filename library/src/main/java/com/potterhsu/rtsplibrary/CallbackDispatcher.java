@@ -0,0 +1,297 @@
+package com.potterhsu.rtsplibrary;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Sits between the native session and the consumer's callback.  Without an executor frames go
+ * straight through on the native thread, with one they are queued to it so the native thread can
+ * get on with the next frame.
+ */
+abstract class CallbackDispatcher {
+
+    /** Serial executor for callbacks, null to call them on the native thread */
+    volatile Executor executor;
+
+    static CallbackDispatcher create(Object callback, int bufferCount) {
+        if (callback instanceof NativeCallback)
+            return new ByteArray((NativeCallback) callback);
+        if (callback instanceof NativeBufferCallback)
+            return new Buffer((NativeBufferCallback) callback, bufferCount);
+        if (callback instanceof NativeYuvCallback)
+            return new Yuv((NativeYuvCallback) callback, bufferCount);
+        return new Packet((NativePacketCallback) callback);
+    }
+
+    /** Frames are fresh arrays already, only the callback needs queueing */
+    static final class ByteArray extends CallbackDispatcher implements NativeCallback {
+
+        private final NativeCallback callback;
+
+        ByteArray(NativeCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int nChannel, int width, int height) {
+            Executor executor = this.executor;
+            if (executor == null)
+                callback.onFrame(frame, nChannel, width, height);
+            else
+                executor.execute(() -> callback.onFrame(frame, nChannel, width, height));
+        }
+    }
+
+    /**
+     * A pooled buffer stays with the consumer until it is released, so one preallocated task per
+     * buffer carries its frame without allocating.
+     */
+    static final class Buffer extends CallbackDispatcher implements NativeBufferCallback {
+
+        private final NativeBufferCallback callback;
+        private final Task[] tasks;
+
+        Buffer(NativeBufferCallback callback, int bufferCount) {
+            this.callback = callback;
+            this.tasks = new Task[bufferCount];
+            for (int i = 0; i < bufferCount; i++)
+                tasks[i] = new Task(i);
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame, int bufferIndex, int nChannel, int width, int height) {
+            Executor executor = this.executor;
+            if (executor == null) {
+                callback.onFrame(frame, bufferIndex, nChannel, width, height);
+                return;
+            }
+            Task task = tasks[bufferIndex];
+            task.frame = frame;
+            task.nChannel = nChannel;
+            task.width = width;
+            task.height = height;
+            executor.execute(task);
+        }
+
+        private final class Task implements Runnable {
+            private final int bufferIndex;
+            private ByteBuffer frame;
+            private int nChannel;
+            private int width;
+            private int height;
+
+            Task(int bufferIndex) {
+                this.bufferIndex = bufferIndex;
+            }
+
+            @Override
+            public void run() {
+                callback.onFrame(frame, bufferIndex, nChannel, width, height);
+            }
+        }
+    }
+
+    /** Same as {@link Buffer} for YUV frames */
+    static final class Yuv extends CallbackDispatcher implements NativeYuvCallback {
+
+        private final NativeYuvCallback callback;
+        private final Task[] tasks;
+
+        Yuv(NativeYuvCallback callback, int bufferCount) {
+            this.callback = callback;
+            this.tasks = new Task[bufferCount];
+            for (int i = 0; i < bufferCount; i++)
+                tasks[i] = new Task(i);
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame, int bufferIndex, int width, int height, int yStride, int uvStride) {
+            Executor executor = this.executor;
+            if (executor == null) {
+                callback.onFrame(frame, bufferIndex, width, height, yStride, uvStride);
+                return;
+            }
+            Task task = tasks[bufferIndex];
+            task.frame = frame;
+            task.width = width;
+            task.height = height;
+            task.yStride = yStride;
+            task.uvStride = uvStride;
+            executor.execute(task);
+        }
+
+        private final class Task implements Runnable {
+            private final int bufferIndex;
+            private ByteBuffer frame;
+            private int width;
+            private int height;
+            private int yStride;
+            private int uvStride;
+
+            Task(int bufferIndex) {
+                this.bufferIndex = bufferIndex;
+            }
+
+            @Override
+            public void run() {
+                callback.onFrame(frame, bufferIndex, width, height, yStride, uvStride);
+            }
+        }
+    }
+
+    /**
+     * The native packet buffer is reused for the next packet right away, so queued packets are
+     * copied into direct buffers recycled through a small pool, each with a preallocated task
+     * like {@link Buffer}'s.
+     */
+    static final class Packet extends CallbackDispatcher implements NativePacketCallback {
+
+        private final NativePacketCallback callback;
+        private final CopyPool<Task> pool = new CopyPool<Task>() {
+            @Override
+            Task create() {
+                return new Task();
+            }
+        };
+
+        Packet(NativePacketCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onCodecConfig(ByteBuffer config, int size) {
+            Executor executor = this.executor;
+            if (executor == null) {
+                callback.onCodecConfig(config, size);
+                return;
+            }
+            Task task = pool.copy(config, size);
+            task.codecConfig = true;
+            executor.execute(task);
+        }
+
+        @Override
+        public void onPacket(ByteBuffer packet, int size, long ptsUs, long dtsUs, boolean keyFrame) {
+            Executor executor = this.executor;
+            if (executor == null) {
+                callback.onPacket(packet, size, ptsUs, dtsUs, keyFrame);
+                return;
+            }
+            Task task = pool.copy(packet, size);
+            task.codecConfig = false;
+            task.ptsUs = ptsUs;
+            task.dtsUs = dtsUs;
+            task.keyFrame = keyFrame;
+            executor.execute(task);
+        }
+
+        private final class Task extends Copy {
+            private boolean codecConfig;
+            private long ptsUs;
+            private long dtsUs;
+            private boolean keyFrame;
+
+            @Override
+            public void run() {
+                try {
+                    if (codecConfig)
+                        callback.onCodecConfig(buffer, size);
+                    else
+                        callback.onPacket(buffer, size, ptsUs, dtsUs, keyFrame);
+                } finally {
+                    pool.recycle(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Always there so audio can be turned on and off without touching the native session.  The
+     * PCM buffer is reused natively like the packet buffer, queued audio is copied the same way.
+     */
+    static final class Audio extends CallbackDispatcher implements NativeAudioCallback {
+
+        volatile NativeAudioCallback callback;
+        private final CopyPool<Task> pool = new CopyPool<Task>() {
+            @Override
+            Task create() {
+                return new Task();
+            }
+        };
+
+        @Override
+        public void onAudio(ByteBuffer pcm, int size, int sampleRate, int channelCount, long ptsUs) {
+            NativeAudioCallback callback = this.callback;
+            if (callback == null)
+                return;
+            Executor executor = this.executor;
+            if (executor == null) {
+                callback.onAudio(pcm, size, sampleRate, channelCount, ptsUs);
+                return;
+            }
+            Task task = pool.copy(pcm, size);
+            task.callback = callback;
+            task.sampleRate = sampleRate;
+            task.channelCount = channelCount;
+            task.ptsUs = ptsUs;
+            executor.execute(task);
+        }
+
+        private final class Task extends Copy {
+            private NativeAudioCallback callback;
+            private int sampleRate;
+            private int channelCount;
+            private long ptsUs;
+
+            @Override
+            public void run() {
+                try {
+                    callback.onAudio(buffer, size, sampleRate, channelCount, ptsUs);
+                } finally {
+                    callback = null;
+                    pool.recycle(this);
+                }
+            }
+        }
+    }
+
+    /** A queued copy and the task that hands it to the callback */
+    private abstract static class Copy implements Runnable {
+        ByteBuffer buffer;
+        int size;
+    }
+
+    /**
+     * Copies for queued callbacks, recycled once the callback ran or threw.  Only as many as
+     * are queued at once are ever created.
+     */
+    private abstract static class CopyPool<T extends Copy> {
+
+        private static final int POOL_SIZE = 16;
+
+        private final ArrayBlockingQueue<T> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+        abstract T create();
+
+        void recycle(T copy) {
+            pool.offer(copy);
+        }
+
+        T copy(ByteBuffer source, int size) {
+            T copy = pool.poll();
+            if (copy == null)
+                copy = create();
+            ByteBuffer buffer = copy.buffer;
+            if (buffer == null || buffer.capacity() < size)
+                buffer = copy.buffer = ByteBuffer.allocateDirect(Math.max(size, buffer != null ? buffer.capacity() * 2 : 0));
+            source.clear();
+            source.limit(size);
+            buffer.clear();
+            buffer.put(source);
+            buffer.flip();
+            copy.size = size;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.potterhsu.rtsplibrary;
+
+import java.util.Arrays;
+
+/**
+ * When {@link RtspClient#setMotionGate} lets a frame through.  Every decoded frame is compared
+ * with the last delivered one on a coarse grid of its brightness; frames that didn't change
+ * enough are neither converted nor delivered.  Changes of the overall brightness, e.g. the
+ * camera's auto exposure, don't count as motion.
+ */
+public final class MotionOptions {
+
+    final float sensitivity;
+    final float minChangedArea;
+    final long heartbeatIntervalUs;
+    final boolean[] regionMask;
+    final int maskColumns;
+    final int maskRows;
+
+    private MotionOptions(Builder builder) {
+        this.sensitivity = builder.sensitivity;
+        this.minChangedArea = builder.minChangedArea;
+        this.heartbeatIntervalUs = builder.heartbeatIntervalUs;
+        this.regionMask = builder.regionMask;
+        this.maskColumns = builder.maskColumns;
+        this.maskRows = builder.maskRows;
+    }
+
+    /**
+     * Change of a region's brightness, in 8 bit luma levels, that counts as motion.  Sensitivity
+     * 1 reacts to 4 levels, just above compression noise, sensitivity 0 only to 64.
+     */
+    int cellThreshold() {
+        return Math.round(4 + (1 - sensitivity) * 60);
+    }
+
+    @Override
+    public String toString() {
+        return "MotionOptions{sensitivity=" + sensitivity + ", minChangedArea=" + minChangedArea +
+                ", heartbeatIntervalUs=" + heartbeatIntervalUs +
+                ", regionMask=" + (regionMask == null ? "none" : maskColumns + "x" + maskRows) + "}";
+    }
+
+    public static final class Builder {
+
+        private float sensitivity = 0.5f;
+        private float minChangedArea = 0.01f;
+        private long heartbeatIntervalUs = 10 * 1000000L;
+        private boolean[] regionMask;
+        private int maskColumns;
+        private int maskRows;
+
+        /**
+         * How small a change of brightness counts, from 0 to 1.  Defaults to 0.5.
+         */
+        public Builder setSensitivity(float sensitivity) {
+            if (!(sensitivity >= 0 && sensitivity <= 1))
+                throw new IllegalArgumentException("Invalid sensitivity: " + sensitivity);
+            this.sensitivity = sensitivity;
+            return this;
+        }
+
+        /**
+         * Fraction of the watched area that has to change for a frame to be delivered, from 0
+         * to 1.  Defaults to 0.01.
+         */
+        public Builder setMinChangedArea(float minChangedArea) {
+            if (!(minChangedArea >= 0 && minChangedArea <= 1))
+                throw new IllegalArgumentException("Invalid minChangedArea: " + minChangedArea);
+            this.minChangedArea = minChangedArea;
+            return this;
+        }
+
+        /**
+         * Deliver a frame at least this often while the picture is still, 0 for never.
+         * Defaults to ten seconds.
+         */
+        public Builder setHeartbeatIntervalUs(long heartbeatIntervalUs) {
+            if (heartbeatIntervalUs < 0)
+                throw new IllegalArgumentException("Invalid heartbeatIntervalUs: " + heartbeatIntervalUs);
+            this.heartbeatIntervalUs = heartbeatIntervalUs;
+            return this;
+        }
+
+        /**
+         * Only watch part of the picture, e.g. to ignore a road or a tree moving in the wind.
+         * The mask is stretched over the whole frame, before any crop.
+         * @param mask row by row, true for every cell that is watched, null to watch everything
+         */
+        public Builder setRegionMask(boolean[] mask, int columns, int rows) {
+            if (mask != null && (columns <= 0 || rows <= 0 || mask.length != columns * rows))
+                throw new IllegalArgumentException("Invalid mask: " + columns + "x" + rows);
+            this.regionMask = mask == null ? null : Arrays.copyOf(mask, mask.length);
+            this.maskColumns = columns;
+            this.maskRows = rows;
+            return this;
+        }
+
+        public MotionOptions build() {
+            return new MotionOptions(this);
+        }
+    }
+}
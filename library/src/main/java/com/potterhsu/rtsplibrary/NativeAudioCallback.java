@@ -0,0 +1,20 @@
+package com.potterhsu.rtsplibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Delivers the audio track of the stream as interleaved PCM, see
+ * {@link RtspClient#setAudioCallback}.
+ *
+ * The buffer is reused for every call, only the first {@code size} bytes are valid and only until
+ * the method returns, so copy whatever has to outlive the call.
+ */
+public interface NativeAudioCallback {
+
+    /**
+     * @param pcm samples in the encoding asked for, in native byte order
+     * @param ptsUs presentation time of the first sample in microseconds, on the same clock as
+     *              the video timestamps, or {@link RtspClient#NO_TIMESTAMP}
+     */
+    void onAudio(ByteBuffer pcm, int size, int sampleRate, int channelCount, long ptsUs);
+}
@@ -0,0 +1,14 @@
+package com.potterhsu.rtsplibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame callback backed by a fixed pool of native buffers, so steady state playback doesn't
+ * allocate anything on the Java heap.
+ *
+ * The buffer belongs to the consumer until it is handed back with
+ * {@link RtspClient#releaseFrame(int)}.  While every buffer is held, new frames are dropped.
+ */
+public interface NativeBufferCallback {
+    void onFrame(ByteBuffer frame, int bufferIndex, int nChannel, int width, int height);
+}
@@ -1,5 +1,11 @@
 package com.potterhsu.rtsplibrary;
 
+/**
+ * Frame callback handing over a fresh array per frame.  Frames carry no timing:
+ * {@link RtspClient#getFramePtsUs} and {@link RtspClient#getFrameReceiveTimeUs} need a pooled
+ * buffer, so use {@link NativeBufferCallback} or {@link NativeYuvCallback} where PTS or latency
+ * matter.  The playout stage of {@link RtspClient#setPlayoutDelay} still paces these frames.
+ */
 public interface NativeCallback {
     void onFrame(byte[] frame, int nChannel, int width, int height);
 }
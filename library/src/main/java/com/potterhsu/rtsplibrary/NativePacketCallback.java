@@ -0,0 +1,27 @@
+package com.potterhsu.rtsplibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Delivers the compressed H264 stream instead of decoded frames, e.g. for MediaCodec or to
+ * forward it elsewhere.  Nothing is decoded.
+ *
+ * Both methods get the same reused buffer, only the first {@code size} bytes are valid and only
+ * until the method returns, so copy whatever has to outlive the call.
+ */
+public interface NativePacketCallback {
+
+    /**
+     * SPS and PPS as Annex-B NAL units, called once before the first packet.  Not called if the
+     * stream doesn't announce them up front, they then only arrive in-band.
+     */
+    void onCodecConfig(ByteBuffer config, int size);
+
+    /**
+     * One access unit as Annex-B NAL units with start codes.
+     * @param ptsUs presentation time in microseconds or {@link RtspClient#NO_TIMESTAMP}
+     * @param dtsUs decoding time in microseconds or {@link RtspClient#NO_TIMESTAMP}
+     * @param keyFrame whether decoding can start with this packet
+     */
+    void onPacket(ByteBuffer packet, int size, long ptsUs, long dtsUs, boolean keyFrame);
+}
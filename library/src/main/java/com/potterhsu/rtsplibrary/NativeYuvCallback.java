@@ -0,0 +1,15 @@
+package com.potterhsu.rtsplibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame callback delivering the decoder's YUV420P planes without any colour conversion.
+ *
+ * The buffer holds the Y plane ({@code yStride * height} bytes) followed by the U and V planes
+ * ({@code uvStride * ((height + 1) / 2)} bytes each).  Strides may be larger than the width.
+ * Like {@link NativeBufferCallback}, the buffer has to be handed back with
+ * {@link RtspClient#releaseFrame(int)}.
+ */
+public interface NativeYuvCallback {
+    void onFrame(ByteBuffer frame, int bufferIndex, int width, int height, int yStride, int uvStride);
+}
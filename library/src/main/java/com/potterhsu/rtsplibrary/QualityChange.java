@@ -0,0 +1,79 @@
+package com.potterhsu.rtsplibrary;
+
+/**
+ * One adjustment made by a {@link QualityController}, with the measurements of the interval
+ * that caused it.
+ */
+public final class QualityChange {
+
+    private final int parameter;
+    private final int oldValue;
+    private final int newValue;
+    private final boolean degraded;
+    private final long latencyUs;
+    private final long decodeUs;
+    private final long outputUs;
+    private final long queueDepth;
+
+    QualityChange(int parameter, int oldValue, int newValue, boolean degraded, long latencyUs,
+                  long decodeUs, long outputUs, long queueDepth) {
+        this.parameter = parameter;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.degraded = degraded;
+        this.latencyUs = latencyUs;
+        this.decodeUs = decodeUs;
+        this.outputUs = outputUs;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * {@link QualityController#PARAMETER_OUTPUT_WIDTH}, {@link QualityController#PARAMETER_SCALER},
+     * {@link QualityController#PARAMETER_DECODE_MODE} or
+     * {@link QualityController#PARAMETER_DECODER_THREADS}
+     */
+    public int getParameter() {
+        return parameter;
+    }
+
+    public int getOldValue() {
+        return oldValue;
+    }
+
+    public int getNewValue() {
+        return newValue;
+    }
+
+    /** Whether quality was lowered to catch up, rather than raised again */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    /** Average {@link RtspStats#STAGE_LATENCY} over the interval */
+    public long getLatencyUs() {
+        return latencyUs;
+    }
+
+    /** Average {@link RtspStats#STAGE_DECODE} over the interval */
+    public long getDecodeUs() {
+        return decodeUs;
+    }
+
+    /** Average {@link RtspStats#STAGE_SCALE} plus {@link RtspStats#STAGE_CALLBACK} over the interval */
+    public long getOutputUs() {
+        return outputUs;
+    }
+
+    /** {@link RtspStats#getQueueDepth()} at the end of the interval */
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    @Override
+    public String toString() {
+        String[] names = {"outputWidth", "scaler", "decodeMode", "decoderThreads"};
+        return "QualityChange{" + names[parameter] + "=" + oldValue + "->" + newValue +
+                ", degraded=" + degraded + ", latencyUs=" + latencyUs + ", decodeUs=" + decodeUs +
+                ", outputUs=" + outputUs + ", queueDepth=" + queueDepth + "}";
+    }
+}
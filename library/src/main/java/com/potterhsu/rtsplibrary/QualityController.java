@@ -0,0 +1,289 @@
+package com.potterhsu.rtsplibrary;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trades quality for latency while a client can't keep up, e.g. once the device throttles or
+ * the callback slows down, instead of letting frames pile up.  Every interval the controller
+ * diffs the client's {@link RtspStats}: average latency over the target, or more queued
+ * packets and frames than allowed, counts as falling behind.  After a few such intervals it
+ * lowers one setting within the bounds of its {@link QualityOptions}, chosen by where the time
+ * goes: decoder threads and decode mode while decoding dominates, scaler and output width while
+ * conversion and the callback do.  After a longer run of intervals well below the target it
+ * raises the setting it lowered last.
+ * <p>
+ * The controller owns the settings it may adjust: {@link #start} sets them to their best
+ * quality, and they shouldn't be changed on the client while it runs.  Stop the controller
+ * before disposing of the client.
+ */
+public class QualityController {
+
+    private static final String TAG = QualityController.class.getSimpleName();
+
+    /** {@link RtspClient#setOutputSize} width, the height follows the aspect ratio */
+    public static final int PARAMETER_OUTPUT_WIDTH = 0;
+    /** {@link RtspClient#setScaler} */
+    public static final int PARAMETER_SCALER = 1;
+    /** {@link RtspClient#setDecodeMode} */
+    public static final int PARAMETER_DECODE_MODE = 2;
+    /** {@link RtspClient#setDecoderThreads} count, takes effect on the next connection */
+    public static final int PARAMETER_DECODER_THREADS = 3;
+
+    private static final int[] SCALERS = {
+            RtspClient.SCALER_BICUBIC, RtspClient.SCALER_BILINEAR, RtspClient.SCALER_FAST_BILINEAR};
+    // Settings to lower, in order, depending on the slower side
+    private static final int[] DECODE_BOUND_ORDER = {
+            PARAMETER_DECODER_THREADS, PARAMETER_DECODE_MODE, PARAMETER_SCALER, PARAMETER_OUTPUT_WIDTH};
+    // More decoder threads don't help a slow conversion or callback
+    private static final int[] OUTPUT_BOUND_ORDER = {
+            PARAMETER_SCALER, PARAMETER_OUTPUT_WIDTH, PARAMETER_DECODE_MODE};
+
+    private final RtspClient client;
+    private final QualityOptions options;
+    /** Null for a thread of its own while started */
+    private final ScheduledExecutorService sharedExecutor;
+    private ScheduledExecutorService executor;
+    /** Values of each parameter from best to cheapest, null if it isn't adjusted */
+    private final int[][] steps = new int[4][];
+    private final int[] levels = new int[4];
+    /** Parameters lowered, the last one on top */
+    private final ArrayDeque<Integer> lowered = new ArrayDeque<>();
+    /**
+     * {@link RtspClient#getConnectionCount} when the decoder threads were last changed, -1 once
+     * a connection picked the change up.  The threads aren't lowered again meanwhile, as that
+     * would only pile up changes without any effect.
+     */
+    private int threadsPendingConnection = -1;
+    private volatile QualityListener listener;
+    private ScheduledFuture<?> task;
+    private RtspStats previous;
+    private int badIntervals;
+    private int goodIntervals;
+
+    /**
+     * Runs on a thread of its own.
+     */
+    public QualityController(RtspClient client, QualityOptions options) {
+        this(client, options, null);
+    }
+
+    /**
+     * @param executor runs the checks, e.g. one thread shared by the controllers of a camera
+     *                 wall, null for a thread of its own
+     */
+    public QualityController(RtspClient client, QualityOptions options, ScheduledExecutorService executor) {
+        this.client = client;
+        this.options = options;
+        this.sharedExecutor = executor;
+
+        if (options.maxOutputWidth > 0)
+            steps[PARAMETER_OUTPUT_WIDTH] = widthSteps(options.minOutputWidth, options.maxOutputWidth);
+        if (options.bestScaler != options.fastestScaler) {
+            int best = scalerRank(options.bestScaler);
+            int fastest = scalerRank(options.fastestScaler);
+            steps[PARAMETER_SCALER] = new int[fastest - best + 1];
+            System.arraycopy(SCALERS, best, steps[PARAMETER_SCALER], 0, fastest - best + 1);
+        }
+        if (options.fullestDecodeMode != options.leanestDecodeMode) {
+            steps[PARAMETER_DECODE_MODE] = new int[options.leanestDecodeMode - options.fullestDecodeMode + 1];
+            for (int i = 0; i < steps[PARAMETER_DECODE_MODE].length; i++)
+                steps[PARAMETER_DECODE_MODE][i] = options.fullestDecodeMode + i;
+        }
+        if (options.maxDecoderThreads > options.minDecoderThreads)
+            steps[PARAMETER_DECODER_THREADS] = threadSteps(options.minDecoderThreads, options.maxDecoderThreads);
+    }
+
+    static int scalerRank(int scaler) {
+        for (int i = 0; i < SCALERS.length; i++) {
+            if (SCALERS[i] == scaler)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Widths shrinking by a quarter each, rounded down to even, ending with the minimum.
+     */
+    private static int[] widthSteps(int minWidth, int maxWidth) {
+        List<Integer> widths = new ArrayList<>();
+        for (int width = maxWidth; width > minWidth; width = (width * 3 / 4) & ~1)
+            widths.add(width);
+        widths.add(minWidth);
+        return toArray(widths);
+    }
+
+    private static int[] threadSteps(int minThreads, int maxThreads) {
+        List<Integer> counts = new ArrayList<>();
+        for (int count = minThreads; count < maxThreads; count *= 2)
+            counts.add(count);
+        counts.add(maxThreads);
+        return toArray(counts);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    public void setListener(QualityListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets every adjusted parameter to its best quality and starts checking.
+     */
+    public synchronized void start() {
+        if (task != null)
+            return;
+        lowered.clear();
+        threadsPendingConnection = -1;
+        for (int parameter = 0; parameter < steps.length; parameter++) {
+            levels[parameter] = 0;
+            if (steps[parameter] != null)
+                apply(parameter, steps[parameter][0]);
+        }
+        previous = client.getStats();
+        badIntervals = 0;
+        goodIntervals = 0;
+        executor = sharedExecutor != null ? sharedExecutor : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rtsp-quality");
+            thread.setDaemon(true);
+            return thread;
+        });
+        task = executor.scheduleWithFixedDelay(this::check, options.intervalMs, options.intervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking and leaves the parameters as they are.  No event follows once this
+     * returned.
+     */
+    public synchronized void stop() {
+        if (task == null)
+            return;
+        task.cancel(false);
+        task = null;
+        if (sharedExecutor == null)
+            executor.shutdown();
+        executor = null;
+    }
+
+    /**
+     * Current value of a parameter, or -1 if this controller doesn't adjust it.
+     */
+    public synchronized int getValue(int parameter) {
+        if (parameter < PARAMETER_OUTPUT_WIDTH || parameter > PARAMETER_DECODER_THREADS)
+            throw new IllegalArgumentException("Invalid parameter: " + parameter);
+        return steps[parameter] != null ? steps[parameter][levels[parameter]] : -1;
+    }
+
+    private synchronized void check() {
+        if (task == null)
+            return;
+        RtspStats stats = client.getStats();
+        RtspStats interval = stats.since(previous);
+        previous = stats;
+        // Nothing delivered, e.g. while reconnecting: no verdict either way
+        if (interval.getSampleCount(RtspStats.STAGE_LATENCY) == 0) {
+            badIntervals = 0;
+            goodIntervals = 0;
+            return;
+        }
+
+        long latencyUs = interval.getAverageUs(RtspStats.STAGE_LATENCY);
+        long decodeUs = interval.getAverageUs(RtspStats.STAGE_DECODE);
+        long outputUs = interval.getAverageUs(RtspStats.STAGE_SCALE) + interval.getAverageUs(RtspStats.STAGE_CALLBACK);
+        long queueDepth = stats.getQueueDepth();
+        boolean behind = latencyUs > options.targetLatencyUs || queueDepth > options.maxQueueDepth;
+        boolean ahead = !behind && latencyUs < options.targetLatencyUs * options.upgradeHeadroom &&
+                interval.getDroppedFrameCount() == 0;
+        badIntervals = behind ? badIntervals + 1 : 0;
+        goodIntervals = ahead ? goodIntervals + 1 : 0;
+
+        int parameter = -1;
+        boolean degraded = false;
+        if (badIntervals >= options.degradeIntervals) {
+            parameter = nextToLower(decodeUs >= outputUs ? DECODE_BOUND_ORDER : OUTPUT_BOUND_ORDER);
+            degraded = true;
+        } else if (goodIntervals >= options.upgradeIntervals && !lowered.isEmpty()) {
+            parameter = lowered.peek();
+        }
+        if (parameter < 0)
+            return;
+
+        int oldValue = steps[parameter][levels[parameter]];
+        if (degraded) {
+            levels[parameter]++;
+            lowered.push(parameter);
+        } else {
+            levels[parameter]--;
+            lowered.pop();
+        }
+        int newValue = steps[parameter][levels[parameter]];
+        apply(parameter, newValue);
+        badIntervals = 0;
+        goodIntervals = 0;
+
+        QualityListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onQualityChanged(client, new QualityChange(parameter, oldValue, newValue, degraded,
+                        latencyUs, decodeUs, outputUs, queueDepth));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * First parameter in the order that can still be lowered, else any that can, else -1.
+     */
+    private int nextToLower(int[] order) {
+        for (int parameter : order) {
+            if (canLower(parameter))
+                return parameter;
+        }
+        for (int parameter = 0; parameter < steps.length; parameter++) {
+            if (canLower(parameter))
+                return parameter;
+        }
+        return -1;
+    }
+
+    private boolean canLower(int parameter) {
+        if (parameter == PARAMETER_DECODER_THREADS && threadsPendingConnection >= 0) {
+            if (client.getConnectionCount() == threadsPendingConnection)
+                return false;
+            threadsPendingConnection = -1;
+        }
+        return steps[parameter] != null && levels[parameter] < steps[parameter].length - 1;
+    }
+
+    private void apply(int parameter, int value) {
+        switch (parameter) {
+            case PARAMETER_OUTPUT_WIDTH:
+                client.setOutputSize(value, 0);
+                break;
+            case PARAMETER_SCALER:
+                client.setScaler(value);
+                break;
+            case PARAMETER_DECODE_MODE:
+                client.setDecodeMode(value);
+                break;
+            case PARAMETER_DECODER_THREADS:
+                client.setDecoderThreads(value, client.getDecoderThreadType());
+                threadsPendingConnection = client.getConnectionCount();
+                break;
+        }
+    }
+}
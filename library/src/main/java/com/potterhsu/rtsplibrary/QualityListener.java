@@ -0,0 +1,8 @@
+package com.potterhsu.rtsplibrary;
+
+/**
+ * Follows the adjustments of a {@link QualityController}.  Called on the controller's thread.
+ */
+public interface QualityListener {
+    void onQualityChanged(RtspClient client, QualityChange change);
+}
@@ -0,0 +1,176 @@
+package com.potterhsu.rtsplibrary;
+
+/**
+ * Target and bounds of a {@link QualityController}.  Each setting the controller may adjust has
+ * a range from its best quality to its cheapest; a range of a single value, or an output width
+ * or thread range of 0, leaves that setting alone.
+ */
+public final class QualityOptions {
+
+    final long targetLatencyUs;
+    final int minOutputWidth;
+    final int maxOutputWidth;
+    final int bestScaler;
+    final int fastestScaler;
+    final int fullestDecodeMode;
+    final int leanestDecodeMode;
+    final int minDecoderThreads;
+    final int maxDecoderThreads;
+    final long intervalMs;
+    final int degradeIntervals;
+    final int upgradeIntervals;
+    final float upgradeHeadroom;
+    final int maxQueueDepth;
+
+    private QualityOptions(Builder builder) {
+        this.targetLatencyUs = builder.targetLatencyUs;
+        this.minOutputWidth = builder.minOutputWidth;
+        this.maxOutputWidth = builder.maxOutputWidth;
+        this.bestScaler = builder.bestScaler;
+        this.fastestScaler = builder.fastestScaler;
+        this.fullestDecodeMode = builder.fullestDecodeMode;
+        this.leanestDecodeMode = builder.leanestDecodeMode;
+        this.minDecoderThreads = builder.minDecoderThreads;
+        this.maxDecoderThreads = builder.maxDecoderThreads;
+        this.intervalMs = builder.intervalMs;
+        this.degradeIntervals = builder.degradeIntervals;
+        this.upgradeIntervals = builder.upgradeIntervals;
+        this.upgradeHeadroom = builder.upgradeHeadroom;
+        this.maxQueueDepth = builder.maxQueueDepth;
+    }
+
+    @Override
+    public String toString() {
+        return "QualityOptions{targetLatencyUs=" + targetLatencyUs +
+                ", outputWidth=" + minOutputWidth + ".." + maxOutputWidth +
+                ", scaler=" + bestScaler + ".." + fastestScaler +
+                ", decodeMode=" + fullestDecodeMode + ".." + leanestDecodeMode +
+                ", decoderThreads=" + minDecoderThreads + ".." + maxDecoderThreads +
+                ", intervalMs=" + intervalMs + ", degradeIntervals=" + degradeIntervals +
+                ", upgradeIntervals=" + upgradeIntervals + ", upgradeHeadroom=" + upgradeHeadroom +
+                ", maxQueueDepth=" + maxQueueDepth + "}";
+    }
+
+    public static final class Builder {
+
+        private long targetLatencyUs = 200 * 1000;
+        private int minOutputWidth;
+        private int maxOutputWidth;
+        private int bestScaler = RtspClient.SCALER_BICUBIC;
+        private int fastestScaler = RtspClient.SCALER_FAST_BILINEAR;
+        private int fullestDecodeMode = RtspClient.DECODE_ALL;
+        private int leanestDecodeMode = RtspClient.DECODE_REFERENCE_FRAMES;
+        private int minDecoderThreads;
+        private int maxDecoderThreads;
+        private long intervalMs = 500;
+        private int degradeIntervals = 2;
+        private int upgradeIntervals = 10;
+        private float upgradeHeadroom = 0.5f;
+        private int maxQueueDepth = 2;
+
+        /**
+         * Average {@link RtspStats#STAGE_LATENCY} to hold.  Defaults to 200 ms.
+         */
+        public Builder setTargetLatencyUs(long targetLatencyUs) {
+            if (targetLatencyUs <= 0)
+                throw new IllegalArgumentException("targetLatencyUs must be positive: " + targetLatencyUs);
+            this.targetLatencyUs = targetLatencyUs;
+            return this;
+        }
+
+        /**
+         * Scale the output down in steps of a quarter, as far as {@code minWidth}.  The height
+         * follows the aspect ratio.  Defaults to 0, leaving the output size alone.
+         */
+        public Builder setOutputWidthRange(int minWidth, int maxWidth) {
+            if (minWidth < 0 || maxWidth < minWidth || (minWidth == 0 && maxWidth != 0))
+                throw new IllegalArgumentException("Invalid output width range: " + minWidth + ".." + maxWidth);
+            this.minOutputWidth = minWidth;
+            this.maxOutputWidth = maxWidth;
+            return this;
+        }
+
+        /**
+         * Both {@link RtspClient#SCALER_BICUBIC}, {@link RtspClient#SCALER_BILINEAR} or
+         * {@link RtspClient#SCALER_FAST_BILINEAR}, the best first.  Defaults to bicubic down to
+         * fast bilinear.
+         */
+        public Builder setScalerRange(int bestScaler, int fastestScaler) {
+            int best = QualityController.scalerRank(bestScaler);
+            int fastest = QualityController.scalerRank(fastestScaler);
+            if (best < 0 || fastest < best)
+                throw new IllegalArgumentException("Invalid scaler range: " + bestScaler + ".." + fastestScaler);
+            this.bestScaler = bestScaler;
+            this.fastestScaler = fastestScaler;
+            return this;
+        }
+
+        /**
+         * From {@link RtspClient#DECODE_ALL} to {@link RtspClient#DECODE_KEYFRAMES}.  Defaults
+         * to decoding everything down to reference frames only.
+         */
+        public Builder setDecodeModeRange(int fullestMode, int leanestMode) {
+            if (fullestMode < RtspClient.DECODE_ALL || leanestMode > RtspClient.DECODE_KEYFRAMES ||
+                    leanestMode < fullestMode)
+                throw new IllegalArgumentException("Invalid decode mode range: " + fullestMode + ".." + leanestMode);
+            this.fullestDecodeMode = fullestMode;
+            this.leanestDecodeMode = leanestMode;
+            return this;
+        }
+
+        /**
+         * Double the decoder threads of a client that can't keep up decoding, as far as
+         * {@code maxThreads}.  Each thread adds throughput and, with frame threading, a frame
+         * of latency; the count takes effect from the next connection or reconnect on, and
+         * isn't raised again before then.  Defaults to 0, leaving the threads alone.
+         */
+        public Builder setDecoderThreadRange(int minThreads, int maxThreads) {
+            if (minThreads < 0 || maxThreads < minThreads || (minThreads == 0 && maxThreads != 0))
+                throw new IllegalArgumentException("Invalid thread range: " + minThreads + ".." + maxThreads);
+            this.minDecoderThreads = minThreads;
+            this.maxDecoderThreads = maxThreads;
+            return this;
+        }
+
+        /**
+         * How often the statistics are checked.  Defaults to 500 ms.
+         */
+        public Builder setIntervalMs(long intervalMs) {
+            if (intervalMs <= 0)
+                throw new IllegalArgumentException("intervalMs must be positive: " + intervalMs);
+            this.intervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * Intervals in a row over the target before a setting is lowered, and below
+         * {@code upgradeHeadroom} times the target before the last lowered one is raised again.
+         * Defaults to 2 and 10, so quality drops quickly and recovers slowly.
+         */
+        public Builder setHysteresis(int degradeIntervals, int upgradeIntervals, float upgradeHeadroom) {
+            if (degradeIntervals <= 0 || upgradeIntervals <= 0)
+                throw new IllegalArgumentException("Invalid intervals: " + degradeIntervals + " / " + upgradeIntervals);
+            if (!(upgradeHeadroom > 0 && upgradeHeadroom <= 1))
+                throw new IllegalArgumentException("Invalid upgradeHeadroom: " + upgradeHeadroom);
+            this.degradeIntervals = degradeIntervals;
+            this.upgradeIntervals = upgradeIntervals;
+            this.upgradeHeadroom = upgradeHeadroom;
+            return this;
+        }
+
+        /**
+         * More packets and frames queued between stages than this counts as falling behind,
+         * whatever the latency.  Defaults to 2.
+         */
+        public Builder setMaxQueueDepth(int maxQueueDepth) {
+            if (maxQueueDepth < 0)
+                throw new IllegalArgumentException("maxQueueDepth must not be negative: " + maxQueueDepth);
+            this.maxQueueDepth = maxQueueDepth;
+            return this;
+        }
+
+        public QualityOptions build() {
+            return new QualityOptions(this);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.potterhsu.rtsplibrary;
+
+/**
+ * Where and how {@link RtspClient#startRecording} writes the video stream.  Segments are named
+ * {@code <prefix>-<yyyyMMdd-HHmmss>-<index>} after their local start time.
+ */
+public final class RecordingOptions {
+
+    /** MP4, plays everywhere but a segment is unreadable if the app dies before it's closed */
+    public static final int CONTAINER_MP4 = 0;
+    /** Matroska, stays readable up to the last written packet */
+    public static final int CONTAINER_MKV = 1;
+
+    final String directory;
+    final String filePrefix;
+    final int container;
+    final long segmentDurationUs;
+    final long segmentSizeBytes;
+
+    private RecordingOptions(Builder builder) {
+        this.directory = builder.directory;
+        this.filePrefix = builder.filePrefix;
+        this.container = builder.container;
+        this.segmentDurationUs = builder.segmentDurationUs;
+        this.segmentSizeBytes = builder.segmentSizeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingOptions{directory=" + directory + ", filePrefix=" + filePrefix +
+                ", container=" + container + ", segmentDurationUs=" + segmentDurationUs +
+                ", segmentSizeBytes=" + segmentSizeBytes + "}";
+    }
+
+    public static final class Builder {
+
+        private final String directory;
+        private String filePrefix = "rtsp";
+        private int container = CONTAINER_MP4;
+        private long segmentDurationUs = 60 * 1000000L;
+        private long segmentSizeBytes = 0;
+
+        /**
+         * @param directory existing, writable directory for the segments
+         */
+        public Builder(String directory) {
+            if (directory == null)
+                throw new NullPointerException("directory must not be null");
+            this.directory = directory;
+        }
+
+        public Builder setFilePrefix(String filePrefix) {
+            if (filePrefix == null)
+                throw new NullPointerException("filePrefix must not be null");
+            this.filePrefix = filePrefix;
+            return this;
+        }
+
+        /**
+         * @param container {@link #CONTAINER_MP4} or {@link #CONTAINER_MKV}
+         */
+        public Builder setContainer(int container) {
+            if (container != CONTAINER_MP4 && container != CONTAINER_MKV)
+                throw new IllegalArgumentException("Invalid container: " + container);
+            this.container = container;
+            return this;
+        }
+
+        /**
+         * Start a new segment at the first keyframe after this much video, 0 for no limit.
+         * Defaults to one minute.
+         */
+        public Builder setSegmentDurationUs(long segmentDurationUs) {
+            this.segmentDurationUs = requireNotNegative(segmentDurationUs);
+            return this;
+        }
+
+        /**
+         * Start a new segment at the first keyframe after this many bytes, 0 for no limit.
+         * Defaults to no limit.
+         */
+        public Builder setSegmentSizeBytes(long segmentSizeBytes) {
+            this.segmentSizeBytes = requireNotNegative(segmentSizeBytes);
+            return this;
+        }
+
+        public RecordingOptions build() {
+            return new RecordingOptions(this);
+        }
+
+        private static long requireNotNegative(long value) {
+            if (value < 0)
+                throw new IllegalArgumentException("Value must not be negative: " + value);
+            return value;
+        }
+    }
+}
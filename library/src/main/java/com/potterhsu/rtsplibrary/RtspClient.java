@@ -2,29 +2,762 @@ package com.potterhsu.rtsplibrary;
 
 import android.util.Log;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
 public class RtspClient {
 
     private static final String TAG = RtspClient.class.getSimpleName();
 
+    /** Packed RGB, 3 bytes per pixel */
+    public static final int FORMAT_RGB24 = 0;
+    /** Planar YUV 4:2:0, straight from the decoder */
+    public static final int FORMAT_YUV420P = 1;
+    /** Compressed H264 access units in Annex-B form, not decoded at all */
+    public static final int FORMAT_H264_ANNEXB = 2;
+    /** JPEG image, only for {@link #grabLatest} */
+    public static final int FORMAT_JPEG = 3;
+
+    /** Signed 16 bit samples */
+    public static final int AUDIO_ENCODING_PCM_16BIT = 0;
+    /** 32 bit float samples from -1 to 1 */
+    public static final int AUDIO_ENCODING_PCM_FLOAT = 1;
+
+    /** Timestamp of a packet that didn't come with one */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * Decode several slices of a frame in parallel.  Adds no latency but only helps when the
+     * encoder splits frames into slices, which many cameras don't.
+     */
+    public static final int THREAD_TYPE_SLICE = 2;
+    /**
+     * Decode several frames in parallel.  Scales with any stream, but every extra thread holds
+     * back one more frame, so latency grows by (threadCount - 1) frames.
+     */
+    public static final int THREAD_TYPE_FRAME = 1;
+
+    /** Fastest, visibly blocky when shrinking a lot */
+    public static final int SCALER_FAST_BILINEAR = 1;
+    /** Good for moderate downscaling */
+    public static final int SCALER_BILINEAR = 2;
+    /** Sharpest and slowest, the default */
+    public static final int SCALER_BICUBIC = 4;
+    /** Nearest neighbour, cheapest of all but aliases */
+    public static final int SCALER_POINT = 0x10;
+    /** Averages source pixels, best quality for large downscales */
+    public static final int SCALER_AREA = 0x20;
+
+    /** Decode every frame */
+    public static final int DECODE_ALL = 0;
+    /** Skip frames no other frame refers to, roughly halves decoding for streams with B-frames */
+    public static final int DECODE_REFERENCE_FRAMES = 1;
+    /** Only decode keyframes, typically one frame every one or two seconds */
+    public static final int DECODE_KEYFRAMES = 2;
+
+    /** Queue between the network thread and the decoder, holds compressed packets */
+    public static final int QUEUE_PACKETS = 0;
+    /** Queue between the decoder and the colour conversion, holds decoded frames */
+    public static final int QUEUE_FRAMES = 1;
+    /** Queue between the colour conversion and the callback, holds converted frames */
+    public static final int QUEUE_CONVERTED = 2;
+
+    /** The producer waits for room, nothing is lost */
+    public static final int DROP_POLICY_BLOCK = 0;
+    /**
+     * Once the queue overflows everything but the newest item is dropped, the producer never
+     * waits.  On the packet queue decoding then resumes at the next keyframe.
+     */
+    public static final int DROP_POLICY_DROP_OLDEST = 1;
+    /**
+     * When the queue is full, incoming items nothing else depends on are dropped, others wait.
+     * On the packet queue these are non-reference frames, decoded and converted frames can
+     * always be dropped.
+     */
+    public static final int DROP_POLICY_DROP_NON_REFERENCE = 2;
+
+    /** Not connected, before playing and after play returned */
+    public static final int STATE_CLOSED = 0;
+    /** Opening the connection and probing the stream */
+    public static final int STATE_CONNECTING = 1;
+    /** Connected and streaming */
+    public static final int STATE_PLAYING = 2;
+    /** Nothing arrived for the stall timeout and the connection was dropped */
+    public static final int STATE_STALLED = 3;
+    /** Waiting to connect again, see {@link RtspOptions.Builder#setReconnect} */
+    public static final int STATE_RECONNECTING = 4;
+
+    private final int outputFormat;
+    private int outputWidth;
+    private int outputHeight;
+    private int cropX;
+    private int cropY;
+    private int cropWidth;
+    private int cropHeight;
+    private int scaler = SCALER_BICUBIC;
+    private int decodeMode = DECODE_ALL;
+    /** Set by {@link StreamManager#focus}, the leaner of it and decodeMode applies */
+    private int managedDecodeMode = DECODE_ALL;
+    private long frameIntervalUs;
+    private int decoderThreadCount;
+    private int decoderThreadType;
+    private final CallbackDispatcher dispatcher;
+    private final CallbackDispatcher.Audio audioDispatcher = new CallbackDispatcher.Audio();
+    private Executor callbackExecutor;
+    private volatile RtspStateListener stateListener;
+    private volatile int state = STATE_CLOSED;
+    /** Connections started, reconnects included; each opens the decoder anew */
+    private volatile int connectionCount;
+    private volatile boolean stopRequested;
+    private boolean playing;
+    /** Completed by the first STATE_PLAYING of {@link #start} */
+    private CompletableFuture<Void> started;
+    /** Completed once play returned and the callbacks queued before ran */
+    private CompletableFuture<Void> closed;
+    /** Source this client is subscribed to, it plays meanwhile */
+    private SharedSource source;
+
+    /** Native session owned by this client, set by initialize() and cleared by dispose() */
+    @SuppressWarnings("unused")
+    private long nativeHandle;
+
     public RtspClient(NativeCallback callback) {
-        if (initialize(callback) == -1)
+        this(callback, FORMAT_RGB24, 0);
+    }
+
+    /**
+     * @param bufferCount number of native frame buffers in the pool, at least one
+     */
+    public RtspClient(NativeBufferCallback callback, int bufferCount) {
+        this(callback, FORMAT_RGB24, requirePositive(bufferCount));
+    }
+
+    /**
+     * Deliver frames as YUV420P planes, skipping the RGB conversion entirely.
+     * @param bufferCount number of native frame buffers in the pool, at least one
+     */
+    public RtspClient(NativeYuvCallback callback, int bufferCount) {
+        this(callback, FORMAT_YUV420P, requirePositive(bufferCount));
+    }
+
+    /**
+     * Deliver the compressed stream instead of frames, decoding is skipped entirely.
+     * Without a callback executor packets are delivered straight from the network thread.
+     * {@link #setPipelined} and the decoder settings have no effect.
+     */
+    public RtspClient(NativePacketCallback callback) {
+        this(callback, FORMAT_H264_ANNEXB, 0);
+    }
+
+    private RtspClient(Object callback, int outputFormat, int bufferCount) {
+        this.outputFormat = outputFormat;
+        this.dispatcher = CallbackDispatcher.create(callback, bufferCount);
+        if (initialize(dispatcher, audioDispatcher, outputFormat, bufferCount) == -1)
             Log.d(TAG, "RtspClient initialize failed");
         else
             Log.d(TAG, "RtspClient initialize successfully");
+        setDecoderThreads(defaultDecoderThreadCount(), THREAD_TYPE_FRAME | THREAD_TYPE_SLICE);
     }
 
     static {
         System.loadLibrary("rtsp");
     }
 
-    private native int initialize(NativeCallback callback);
+    private static int requirePositive(int bufferCount) {
+        if (bufferCount <= 0)
+            throw new IllegalArgumentException("bufferCount must be positive: " + bufferCount);
+        return bufferCount;
+    }
+
+    /**
+     * @return {@link #FORMAT_RGB24}, {@link #FORMAT_YUV420P} or {@link #FORMAT_H264_ANNEXB}
+     */
+    public int getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * One decoder thread per core, capped since H264 frame threading stops scaling well beyond
+     * that and every thread adds a frame of latency.
+     */
+    private static int defaultDecoderThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    }
+
+    /**
+     * Configure decoder threading, takes effect on the next call to {@link #play}.
+     * Defaults to one thread per core (up to 8) with frame and slice threading, where frame
+     * threading wins for codecs supporting both.  For the lowest latency use
+     * {@link #THREAD_TYPE_SLICE} or a single thread.
+     * @param threadCount number of decoder threads, 0 lets FFmpeg decide
+     * @param threadType {@link #THREAD_TYPE_SLICE}, {@link #THREAD_TYPE_FRAME} or both
+     */
+    public void setDecoderThreads(int threadCount, int threadType) {
+        if (threadCount < 0)
+            throw new IllegalArgumentException("threadCount must not be negative: " + threadCount);
+        if ((threadType & ~(THREAD_TYPE_SLICE | THREAD_TYPE_FRAME)) != 0 || threadType == 0)
+            throw new IllegalArgumentException("Invalid threadType: " + threadType);
+        this.decoderThreadCount = threadCount;
+        this.decoderThreadType = threadType;
+        configureDecoder(threadCount, threadType);
+    }
+
+    public int getDecoderThreadCount() {
+        return decoderThreadCount;
+    }
+
+    public int getDecoderThreadType() {
+        return decoderThreadType;
+    }
+
+    /**
+     * Run demuxing, decoding and colour conversion each on their own thread, connected by
+     * bounded queues, so a slow callback doesn't stall network reads.  Frames are still
+     * delivered on the thread calling {@link #play}, unless there is a callback executor.
+     * Takes effect on the next call to play.
+     * <p>
+     * With a {@link NativeBufferCallback} or {@link NativeYuvCallback}, use more buffers than
+     * the capacity of {@link #QUEUE_CONVERTED} or frames will be dropped for lack of buffers.
+     */
+    public void setPipelined(boolean pipelined) {
+        configurePipeline(pipelined);
+    }
+
+    /**
+     * Configure one of the pipeline queues, takes effect on the next call to {@link #play}.
+     * By default packets block with room for 128, decoded frames drop the oldest with room for
+     * 4 and converted frames drop the oldest with room for 2.
+     * @param queue {@link #QUEUE_PACKETS}, {@link #QUEUE_FRAMES} or {@link #QUEUE_CONVERTED}
+     * @param capacity maximum number of queued items, at least one
+     * @param dropPolicy {@link #DROP_POLICY_BLOCK}, {@link #DROP_POLICY_DROP_OLDEST} or
+     *                   {@link #DROP_POLICY_DROP_NON_REFERENCE}
+     */
+    public void setQueuePolicy(int queue, int capacity, int dropPolicy) {
+        if (queue < QUEUE_PACKETS || queue > QUEUE_CONVERTED)
+            throw new IllegalArgumentException("Invalid queue: " + queue);
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (dropPolicy < DROP_POLICY_BLOCK || dropPolicy > DROP_POLICY_DROP_NON_REFERENCE)
+            throw new IllegalArgumentException("Invalid dropPolicy: " + dropPolicy);
+        configureQueue(queue, capacity, dropPolicy);
+    }
+
+    /**
+     * Scale frames to this size before they are delivered, so only what is shown crosses JNI.
+     * Takes effect with the next frame.  0 keeps the source (or cropped) size, if only one
+     * dimension is 0 it follows the aspect ratio.
+     */
+    public synchronized void setOutputSize(int width, int height) {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Invalid output size: " + width + "x" + height);
+        this.outputWidth = width;
+        this.outputHeight = height;
+        updateOutput();
+    }
+
+    /**
+     * Only deliver this part of the source frame, before scaling to the output size.
+     * Takes effect with the next frame.  The rectangle is clamped to the frame and its origin
+     * rounded down to even coordinates for YUV 4:2:0 sources.
+     * @param width crop width, 0 together with height 0 for the whole frame
+     */
+    public synchronized void setCrop(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width < 0 || height < 0)
+            throw new IllegalArgumentException("Invalid crop: " + width + "x" + height + " at " + x + "," + y);
+        this.cropX = x;
+        this.cropY = y;
+        this.cropWidth = width;
+        this.cropHeight = height;
+        updateOutput();
+    }
+
+    /**
+     * @param scaler {@link #SCALER_FAST_BILINEAR}, {@link #SCALER_BILINEAR},
+     *               {@link #SCALER_BICUBIC}, {@link #SCALER_POINT} or {@link #SCALER_AREA}
+     */
+    public synchronized void setScaler(int scaler) {
+        if (scaler != SCALER_FAST_BILINEAR && scaler != SCALER_BILINEAR && scaler != SCALER_BICUBIC &&
+                scaler != SCALER_POINT && scaler != SCALER_AREA)
+            throw new IllegalArgumentException("Invalid scaler: " + scaler);
+        this.scaler = scaler;
+        updateOutput();
+    }
+
+    private void updateOutput() {
+        configureOutput(outputWidth, outputHeight, cropX, cropY, cropWidth, cropHeight, scaler);
+    }
+
+    /**
+     * Decode fewer frames, for consumers that only sample the stream.  Takes effect with the
+     * next packet.  While a {@link StreamManager} puts the client in the background, the leaner
+     * of this and the manager's mode applies.
+     * @param decodeMode {@link #DECODE_ALL}, {@link #DECODE_REFERENCE_FRAMES} or
+     *                   {@link #DECODE_KEYFRAMES}
+     */
+    public synchronized void setDecodeMode(int decodeMode) {
+        if (decodeMode < DECODE_ALL || decodeMode > DECODE_KEYFRAMES)
+            throw new IllegalArgumentException("Invalid decodeMode: " + decodeMode);
+        this.decodeMode = decodeMode;
+        updateDecodeRate();
+    }
+
+    /**
+     * Deliver at most this many frames per second.  Frames in between are still decoded, since
+     * later frames depend on them, but neither converted nor passed to the callback.  Takes
+     * effect with the next frame.
+     * @param fps frames per second, 0 for every frame
+     */
+    public synchronized void setTargetFps(double fps) {
+        if (fps < 0 || Double.isNaN(fps) || Double.isInfinite(fps))
+            throw new IllegalArgumentException("Invalid fps: " + fps);
+        this.frameIntervalUs = fps > 0 ? Math.round(1000000 / fps) : 0;
+        updateDecodeRate();
+    }
+
+    /**
+     * Decode mode imposed by a {@link StreamManager}, kept apart from the one set by the app so
+     * neither overwrites the other.
+     */
+    synchronized void setManagedDecodeMode(int decodeMode) {
+        this.managedDecodeMode = decodeMode;
+        updateDecodeRate();
+    }
+
+    private void updateDecodeRate() {
+        configureDecodeRate(Math.max(decodeMode, managedDecodeMode), frameIntervalUs);
+    }
+
+    /**
+     * Hold every frame back until its PTS plus a delay on the local clock, so network jitter
+     * doesn't show as judder.  With {@code maxDelayUs} above {@code targetDelayUs} the delay
+     * adapts: it grows as far as {@code maxDelayUs} while frames arrive late and shrinks back
+     * towards {@code targetDelayUs} once they arrive in time again.  Frames that are late anyway
+     * are dropped rather than queued.  The delays apply right away, turning playout on or off
+     * takes effect on the next call to {@link #play} or {@link SharedSource#subscribe}.  The
+     * delay is paced by the frames' PTS, which only pooled buffers report back through
+     * {@link #getFramePtsUs}; {@link NativeCallback} frames are paced all the same.
+     * @param targetDelayUs delay over the fastest frame seen
+     * @param maxDelayUs upper bound of the adaptive delay, 0 together with targetDelayUs 0 for
+     *                   no playout stage
+     */
+    public synchronized void setPlayoutDelay(long targetDelayUs, long maxDelayUs) {
+        if (targetDelayUs < 0 || maxDelayUs < targetDelayUs)
+            throw new IllegalArgumentException("Invalid delay: " + targetDelayUs + " / " + maxDelayUs);
+        configurePlayout(targetDelayUs, maxDelayUs);
+    }
+
+    /**
+     * Keep the compressed video since the last keyframe in memory, unless that GOP grows past
+     * the limits, in which case nothing is kept until the next keyframe.  A {@link SharedSource} subscriber joining
+     * mid-stream starts from the cached keyframe instead of waiting for the camera's next one,
+     * and a client played again within {@code maxDurationUs} of stopping decodes the cache
+     * faster than real time and shows the newest picture right away.  Takes effect with the
+     * next packet.
+     * @param maxBytes 0 to turn the cache off and free it
+     * @param maxDurationUs longest span of packets kept, at least one GOP to be of any use
+     */
+    public void setGopCache(long maxBytes, long maxDurationUs) {
+        if (maxBytes < 0 || (maxBytes > 0 && maxDurationUs <= 0))
+            throw new IllegalArgumentException("Invalid limits: " + maxBytes + " / " + maxDurationUs);
+        configureGopCache(maxBytes, maxDurationUs);
+    }
+
+    /**
+     * Skip converting and delivering frames while the picture doesn't change.  Frames are still
+     * decoded, the comparison runs on the decoded brightness and costs a fraction of the
+     * conversion.  Takes effect with the next frame.
+     * @param options when frames count as changed, null to deliver every frame again
+     */
+    public void setMotionGate(MotionOptions options) {
+        if (options == null) {
+            configureMotion(false, 0, 0, 0, null, 0, 0);
+        } else {
+            configureMotion(true, options.cellThreshold(), options.minChangedArea, options.heartbeatIntervalUs,
+                    options.regionMask, options.maskColumns, options.maskRows);
+        }
+    }
+
+    /**
+     * Only keep the newest decoded frame natively instead of converting and delivering every
+     * frame, e.g. while the UI is in the background or for periodic snapshots.  Frames are still
+     * decoded, so {@link #grabLatest} always has a current one.  Takes effect with the next frame.
+     */
+    public void setLatestFrameOnly(boolean latestFrameOnly) {
+        configureLatestFrame(latestFrameOnly);
+    }
+
+    /**
+     * Convert the newest decoded frame on the calling thread, with the crop and scaler of this
+     * client.  Works in any mode, the frame stays available after play returned until
+     * {@link #dispose}.
+     * @param buffer direct buffer the frame is written to, from its start
+     * @param format {@link #FORMAT_RGB24}, {@link #FORMAT_YUV420P} or {@link #FORMAT_JPEG}
+     * @param width output width, 0 to keep the source width or aspect ratio
+     * @param height output height, 0 to keep the source height or aspect ratio
+     * @return number of bytes written, 0 if no frame was decoded yet, or minus the number of
+     *         bytes needed if the buffer is too small
+     */
+    public int grabLatest(ByteBuffer buffer, int format, int width, int height) {
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Buffer must be direct");
+        if (format != FORMAT_RGB24 && format != FORMAT_YUV420P && format != FORMAT_JPEG)
+            throw new IllegalArgumentException("Invalid format: " + format);
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        return grabLatestFrame(buffer, format, width, height);
+    }
+
+    /**
+     * Turn decoding off to only record, takes effect on the next call to {@link #play}.  The
+     * frame callback then gets nothing.  Has no effect with a {@link NativePacketCallback}.
+     */
+    public void setDecoding(boolean decoding) {
+        configureDecoding(decoding);
+    }
+
+    /**
+     * Decode the audio track of the stream as well, AAC, G.711 and Opus among others, over the
+     * same connection as the video.  Audio is decoded on the network thread, which is cheap next
+     * to video, and its timestamps share the clock of the video timestamps.  Takes effect on the
+     * next call to {@link #play}, streams without audio just play without it.
+     * @param callback gets the PCM, null to not decode audio
+     * @param encoding {@link #AUDIO_ENCODING_PCM_16BIT} or {@link #AUDIO_ENCODING_PCM_FLOAT}
+     * @param sampleRate resample to this rate, 0 to keep the stream's
+     * @param channelCount mix to this many channels, 0 to keep the stream's
+     */
+    public synchronized void setAudioCallback(NativeAudioCallback callback, int encoding, int sampleRate,
+                                              int channelCount) {
+        if (encoding != AUDIO_ENCODING_PCM_16BIT && encoding != AUDIO_ENCODING_PCM_FLOAT)
+            throw new IllegalArgumentException("Invalid encoding: " + encoding);
+        if (sampleRate < 0 || channelCount < 0 || channelCount > 8)
+            throw new IllegalArgumentException("Invalid format: " + sampleRate + " Hz, " + channelCount + " channels");
+        audioDispatcher.callback = callback;
+        configureAudio(callback != null, encoding, sampleRate, channelCount);
+    }
+
+    /**
+     * Attach to a {@link StreamManager} worker pool, 0 to decode on the play() thread again.
+     */
+    void setScheduler(long schedulerHandle, int priority) {
+        configureScheduler(schedulerHandle, priority);
+    }
+
+    /**
+     * Feed this client from the connection of another one until {@link #detach}.  Callbacks go
+     * through the callback executor as with play(), the source's decoding thread if none is set.
+     * The native calls wait for a delivery in progress, so they run without holding this
+     * client's monitor, which a callback may need for a setter.  The caller keeps attach and
+     * detach in order.
+     * @throws IllegalStateException if playing, disposed or already subscribed
+     */
+    void attach(SharedSource source, RtspClient connection) {
+        synchronized (this) {
+            if (playing)
+                throw new IllegalStateException("RtspClient is already playing");
+            Executor serialExecutor = callbackExecutor != null ? new SerialExecutor(callbackExecutor) : null;
+            dispatcher.executor = serialExecutor;
+            audioDispatcher.executor = serialExecutor;
+            playing = true;
+            this.source = source;
+        }
+        if (!connection.addSubscriber(this)) {
+            synchronized (this) {
+                playing = false;
+                this.source = null;
+            }
+            throw new IllegalStateException("RtspClient cannot subscribe");
+        }
+    }
+
+    /**
+     * Waits for a delivery to this client that is in progress.
+     */
+    void detach(RtspClient connection) {
+        synchronized (this) {
+            if (source == null)
+                return;
+        }
+        connection.removeSubscriber(this);
+        // Only now, so dispose() meanwhile waits for the source rather than destroying the
+        // session while it is still subscribed
+        synchronized (this) {
+            playing = false;
+            source = null;
+        }
+    }
+
+    /**
+     * Remux the video stream to disk as rolling segments, without decoding or re-encoding it.
+     * Can be called before or during {@link #play}; recording starts at the next keyframe,
+     * replacing any recording in progress, and carries on across calls to play.
+     */
+    public void startRecording(RecordingOptions options) {
+        configureRecording(options.directory, options.filePrefix, options.container,
+                options.segmentDurationUs, options.segmentSizeBytes);
+    }
+
+    /**
+     * Finish the current segment and stop recording.
+     */
+    public void stopRecording() {
+        configureRecording(null, null, 0, 0, 0);
+    }
+
+    /**
+     * Snapshot of the per stage timings and counters.  Reading them never blocks playback.
+     */
+    public RtspStats getStats() {
+        long[] values = new long[RtspStats.SNAPSHOT_SIZE];
+        readStats(values);
+        return new RtspStats(values);
+    }
+
+    private native int initialize(Object callback, Object audioCallback, int outputFormat, int bufferCount);
+    private native void configureDecoder(int threadCount, int threadType);
+    private native void configurePipeline(boolean pipelined);
+    private native void configureQueue(int queue, int capacity, int dropPolicy);
+    private native void configureOutput(int width, int height, int cropX, int cropY,
+                                        int cropWidth, int cropHeight, int scaler);
+    private native void configureDecodeRate(int decodeMode, long frameIntervalUs);
+    private native void configureDecoding(boolean decoding);
+    private native void configureAudio(boolean enabled, int encoding, int sampleRate, int channelCount);
+    private native void configureScheduler(long schedulerHandle, int priority);
+    private native boolean addSubscriber(RtspClient subscriber);
+    private native void removeSubscriber(RtspClient subscriber);
+    private native void configurePlayout(long delayUs, long maxDelayUs);
+    private native void configureGopCache(long maxBytes, long maxDurationUs);
+    private native void readStats(long[] values);
+    private native void configureLatestFrame(boolean latestFrameOnly);
+    private native void configureMotion(boolean enabled, int cellThreshold, float minScore, long heartbeatUs,
+                                        boolean[] mask, int maskColumns, int maskRows);
+    private native int grabLatestFrame(ByteBuffer buffer, int format, int width, int height);
+    private native void configureRecording(String directory, String filePrefix, int container,
+                                           long segmentDurationUs, long segmentSizeBytes);
 
     /**
      * Play stream synchronously.
      * @param endpoint resource endpoint
+     * @param minPort lowest local RTP port, negative for FFmpeg's default
+     * @param maxPort highest local RTP port, negative for FFmpeg's default
+     * @return 0 if exit normally or -1 otherwise
+     */
+    public int play(String endpoint, int minPort, int maxPort) {
+        return play(endpoint, new RtspOptions.Builder().setPortRange(minPort, maxPort).build());
+    }
+
+    /**
+     * Play stream synchronously.  With {@link RtspOptions.Builder#setReconnect} this only returns
+     * after {@link #stop()}.
+     * @param endpoint resource endpoint
+     * @param options demuxer settings, e.g. {@link RtspOptions#lowestLatency()}
      * @return 0 if exit normally or -1 otherwise
      */
-    public native int play(String endpoint, int minPort, int maxPort);
+    public int play(String endpoint, RtspOptions options) {
+        Executor executor;
+        synchronized (this) {
+            if (playing) {
+                Log.e(TAG, "RtspClient is already playing");
+                return -1;
+            }
+            playing = true;
+            stopRequested = false;
+            executor = callbackExecutor;
+        }
+        return playAndClose(endpoint, options, executor);
+    }
+
+    /**
+     * Play stream on a thread of its own and return right away.  Frames and state changes go
+     * to the callback executor, {@link ForkJoinPool#commonPool()} unless one was set, so they
+     * never run on the network thread.
+     * @param endpoint resource endpoint
+     * @param options demuxer settings, e.g. {@link RtspOptions#lowestLatency()}
+     * @return completes once the stream plays, or exceptionally if it is closed before that
+     * @throws IllegalStateException if already playing
+     */
+    public synchronized CompletableFuture<Void> start(String endpoint, RtspOptions options) {
+        if (playing)
+            throw new IllegalStateException("RtspClient is already playing");
+        playing = true;
+        stopRequested = false;
+        started = new CompletableFuture<>();
+        CompletableFuture<Void> result = started;
+        Executor executor = callbackExecutor != null ? callbackExecutor : ForkJoinPool.commonPool();
+        new Thread(() -> playAndClose(endpoint, options, executor), "rtsp-play").start();
+        return result;
+    }
+
+    /**
+     * Stop without waiting for the network thread.
+     * @return completes once play returned and every callback queued before ran, after which
+     *         {@link #dispose()} is safe
+     */
+    public synchronized CompletableFuture<Void> stopAsync() {
+        if (!playing)
+            return CompletableFuture.completedFuture(null);
+        if (closed == null)
+            closed = new CompletableFuture<>();
+        stopRequested = true;
+        stop();
+        return closed;
+    }
+
+    /**
+     * Executor for frame, packet and state callbacks, taking effect on the next call to
+     * {@link #play} or {@link #start}.  Callbacks of one client still run one at a time and in
+     * order, so a small pool can serve many clients.  Null, the default, calls them on the
+     * network or pipeline thread during play() and uses {@link ForkJoinPool#commonPool()} for
+     * start().
+     * <p>
+     * The executor must keep up: pooled buffers drop frames once all are queued, but byte array
+     * frames and packets queue without bound.
+     */
+    public synchronized void setCallbackExecutor(Executor executor) {
+        this.callbackExecutor = executor;
+    }
+
+    /**
+     * @param listener called with every state change, null for none
+     */
+    public void setStateListener(RtspStateListener listener) {
+        this.stateListener = listener;
+    }
+
+    /**
+     * @return {@link #STATE_CLOSED}, {@link #STATE_CONNECTING}, {@link #STATE_PLAYING},
+     *         {@link #STATE_STALLED} or {@link #STATE_RECONNECTING}
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * Settings applied "on the next play()" have taken effect once this changed.
+     */
+    int getConnectionCount() {
+        return connectionCount;
+    }
+
+    private int playAndClose(String endpoint, RtspOptions options, Executor executor) {
+        // Audio shares the serial executor, so audio and video callbacks stay in order.
+        Executor serialExecutor = executor != null ? new SerialExecutor(executor) : null;
+        dispatcher.executor = serialExecutor;
+        audioDispatcher.executor = serialExecutor;
+        int result = play(endpoint, options.toArray(), options.stallTimeoutUs, options.reconnect,
+                options.reconnectDelayMs, options.maxReconnectDelayMs);
+        synchronized (this) {
+            playing = false;
+            changeState(STATE_CLOSED);
+            started = null;
+            closed = null;
+        }
+        return result;
+    }
+
+    /**
+     * Called by the network thread, only queues the change.
+     */
+    @SuppressWarnings("unused")
+    private synchronized void onNativeStateChanged(int state) {
+        // A stopAsync() right after start() may have come before the native side reset its
+        // stop flag, so repeat it now that it's listening.
+        if (state == STATE_CONNECTING && stopRequested)
+            stop();
+        if (state == STATE_CONNECTING)
+            connectionCount++;
+        changeState(state);
+    }
+
+    private void changeState(int state) {
+        this.state = state;
+        CompletableFuture<Void> started = this.started;
+        CompletableFuture<Void> closed = this.closed;
+        Executor executor = dispatcher.executor;
+        if (executor == null)
+            deliverState(state, started, closed);
+        else
+            executor.execute(() -> deliverState(state, started, closed));
+    }
+
+    private void deliverState(int state, CompletableFuture<Void> started, CompletableFuture<Void> closed) {
+        try {
+            RtspStateListener listener = stateListener;
+            if (listener != null)
+                listener.onStateChanged(this, state);
+        } finally {
+            if (state == STATE_PLAYING && started != null)
+                started.complete(null);
+            if (state == STATE_CLOSED) {
+                if (started != null)
+                    started.completeExceptionally(new IOException("Closed before playing"));
+                if (closed != null)
+                    closed.complete(null);
+            }
+        }
+    }
+
+    private native int play(String endpoint, String[] options, long stallTimeoutUs, boolean reconnect,
+                            long reconnectDelayMs, long maxReconnectDelayMs);
+
+    /**
+     * Make {@link #play} return, interrupting a connect or read that is blocked on the network.
+     */
     public native void stop();
-    public native void dispose();
+
+    /**
+     * Hand a buffer received by {@link NativeBufferCallback#onFrame} back to the pool.
+     * The ByteBuffer must not be touched afterwards.
+     * @param bufferIndex index passed along with the frame
+     */
+    public native void releaseFrame(int bufferIndex);
+
+    /**
+     * Presentation time of the frame in a pooled buffer, valid until the buffer is released.
+     * Frames of a {@link NativeCallback} carry no buffer index and have no timing.
+     * @return PTS in microseconds or {@link #NO_TIMESTAMP}
+     */
+    public long getFramePtsUs(int bufferIndex) {
+        return framePtsUs(bufferIndex);
+    }
+
+    /**
+     * When the packet the frame in a pooled buffer was decoded from arrived, valid until the
+     * buffer is released.  Not available for {@link NativeCallback} frames either.
+     * @return time on the {@code System.nanoTime() / 1000} clock or {@link #NO_TIMESTAMP}
+     */
+    public long getFrameReceiveTimeUs(int bufferIndex) {
+        return frameReceiveTimeUs(bufferIndex);
+    }
+
+    /**
+     * Fraction of the watched area that changed since the previously delivered frame, for the
+     * frame in a pooled buffer while a motion gate is set.  Valid until the buffer is released.
+     * @return score from 0 to 1, 1 for the first frame, or -1 without a motion gate
+     */
+    public float getFrameMotionScore(int bufferIndex) {
+        return frameMotionScore(bufferIndex);
+    }
+
+    private native long framePtsUs(int bufferIndex);
+    private native long frameReceiveTimeUs(int bufferIndex);
+    private native float frameMotionScore(int bufferIndex);
+
+    /**
+     * Free the native session, unsubscribing from a {@link SharedSource} first.  While playing,
+     * the session is freed once play returns.
+     */
+    public void dispose() {
+        SharedSource source;
+        synchronized (this) {
+            source = this.source;
+        }
+        if (source != null)
+            source.unsubscribe(this);
+        destroy();
+    }
+
+    private native void destroy();
 }
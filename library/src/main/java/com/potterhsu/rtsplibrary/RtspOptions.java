@@ -0,0 +1,219 @@
+package com.potterhsu.rtsplibrary;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Demuxer settings passed to FFmpeg when the stream is opened, plus timeouts and reconnecting.
+ * Start from a preset and adjust with {@link #buildUpon()}, or build from scratch.
+ */
+public final class RtspOptions {
+
+    /** RTP over UDP, lowest latency but lost packets show up as corrupt frames */
+    public static final int TRANSPORT_UDP = 0;
+    /** RTP interleaved in the RTSP TCP connection, nothing is lost but bursts add latency */
+    public static final int TRANSPORT_TCP = 1;
+
+    private final Map<String, String> options;
+    final long stallTimeoutUs;
+    final boolean reconnect;
+    final long reconnectDelayMs;
+    final long maxReconnectDelayMs;
+
+    private RtspOptions(Builder builder) {
+        this.options = new LinkedHashMap<>(builder.options);
+        this.stallTimeoutUs = builder.stallTimeoutUs;
+        this.reconnect = builder.reconnect;
+        this.reconnectDelayMs = builder.reconnectDelayMs;
+        this.maxReconnectDelayMs = builder.maxReconnectDelayMs;
+    }
+
+    /**
+     * Shortest startup and least buffering: UDP, no demuxer buffering, no RTP reordering and a
+     * minimal probe in avformat_find_stream_info.  Best on wired or otherwise clean networks.
+     */
+    public static RtspOptions lowestLatency() {
+        return new Builder()
+                .setTransport(TRANSPORT_UDP)
+                .setNoBuffer(true)
+                .setAnalyzeDurationUs(100000)
+                .setProbeSize(32 * 1024)
+                .setMaxDelayUs(0)
+                .setReorderQueueSize(0)
+                .build();
+    }
+
+    /**
+     * Tolerates packet loss and jitter: RTP over TCP so nothing is lost, with half a second of
+     * reordering headroom and a full probe.  Reconnects when the stream drops out.
+     */
+    public static RtspOptions robustOverLossyWifi() {
+        return new Builder()
+                .setTransport(TRANSPORT_TCP)
+                .setMaxDelayUs(500000)
+                .setReconnect(true)
+                .build();
+    }
+
+    public Builder buildUpon() {
+        return new Builder(this);
+    }
+
+    /**
+     * Key / value pairs, flattened for the native side.
+     */
+    String[] toArray() {
+        String[] array = new String[options.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : options.entrySet()) {
+            array[i++] = entry.getKey();
+            array[i++] = entry.getValue();
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return "RtspOptions" + options + ", stallTimeoutUs=" + stallTimeoutUs +
+                (reconnect ? ", reconnect after " + reconnectDelayMs + " - " + maxReconnectDelayMs + "ms" : "");
+    }
+
+    public static final class Builder {
+
+        private final Map<String, String> options;
+        private long stallTimeoutUs = 5000000;
+        private boolean reconnect = false;
+        private long reconnectDelayMs = 250;
+        private long maxReconnectDelayMs = 5000;
+
+        public Builder() {
+            this.options = new LinkedHashMap<>();
+        }
+
+        private Builder(RtspOptions options) {
+            this.options = new LinkedHashMap<>(options.options);
+            this.stallTimeoutUs = options.stallTimeoutUs;
+            this.reconnect = options.reconnect;
+            this.reconnectDelayMs = options.reconnectDelayMs;
+            this.maxReconnectDelayMs = options.maxReconnectDelayMs;
+        }
+
+        /**
+         * @param transport {@link #TRANSPORT_UDP} or {@link #TRANSPORT_TCP}
+         */
+        public Builder setTransport(int transport) {
+            if (transport != TRANSPORT_UDP && transport != TRANSPORT_TCP)
+                throw new IllegalArgumentException("Invalid transport: " + transport);
+            return set("rtsp_transport", transport == TRANSPORT_TCP ? "tcp" : "udp");
+        }
+
+        /**
+         * Local UDP port range for RTP / RTCP.  Negative values keep FFmpeg's defaults
+         * (5000 - 65000), the range is widened to hold at least one RTP / RTCP pair.
+         */
+        public Builder setPortRange(int minPort, int maxPort) {
+            int min = minPort >= 0 ? minPort : 5000;
+            int max = maxPort >= 0 ? maxPort : 65000;
+            if (max < min + 2) {
+                max = min + 2;
+            }
+            set("min_port", Integer.toString(min));
+            return set("max_port", Integer.toString(max));
+        }
+
+        /**
+         * Don't buffer packets in the demuxer to work out missing stream details.
+         */
+        public Builder setNoBuffer(boolean noBuffer) {
+            return noBuffer ? set("fflags", "nobuffer") : remove("fflags");
+        }
+
+        /**
+         * How long avformat_find_stream_info may read before giving up, FFmpeg defaults to 5s.
+         */
+        public Builder setAnalyzeDurationUs(long analyzeDurationUs) {
+            return set("analyzeduration", Long.toString(requireNotNegative(analyzeDurationUs)));
+        }
+
+        /**
+         * How many bytes avformat_find_stream_info may read, FFmpeg defaults to 5MB.
+         */
+        public Builder setProbeSize(long probeSize) {
+            if (probeSize < 32)
+                throw new IllegalArgumentException("probeSize must be at least 32: " + probeSize);
+            return set("probesize", Long.toString(probeSize));
+        }
+
+        /**
+         * Maximum time packets are held back to restore their order.
+         */
+        public Builder setMaxDelayUs(long maxDelayUs) {
+            return set("max_delay", Long.toString(requireNotNegative(maxDelayUs)));
+        }
+
+        /**
+         * Number of RTP packets buffered for reordering, 0 hands them on as they arrive.
+         */
+        public Builder setReorderQueueSize(int reorderQueueSize) {
+            return set("reorder_queue_size", Long.toString(requireNotNegative(reorderQueueSize)));
+        }
+
+        /**
+         * Give up on the connection when connecting or waiting for the next packet takes longer,
+         * 0 waits forever.  Defaults to 5s.  Probing the stream may take its analyze duration on
+         * top.
+         */
+        public Builder setStallTimeoutUs(long stallTimeoutUs) {
+            this.stallTimeoutUs = requireNotNegative(stallTimeoutUs);
+            return this;
+        }
+
+        /**
+         * Reconnect whenever the connection fails, stalls or the stream ends, until
+         * {@link RtspClient#stop()}.  Off by default, in which case play() returns instead.
+         * The codec parameters probed on the first connection are reused, so a reconnect skips
+         * probing the stream again.
+         */
+        public Builder setReconnect(boolean reconnect) {
+            this.reconnect = reconnect;
+            return this;
+        }
+
+        /**
+         * Wait before reconnecting, doubling from delayMs up to maxDelayMs while attempts keep
+         * failing.  Defaults to 250ms - 5s.
+         */
+        public Builder setReconnectDelayMs(long delayMs, long maxDelayMs) {
+            if (delayMs <= 0 || maxDelayMs < delayMs)
+                throw new IllegalArgumentException("Invalid reconnect delay: " + delayMs + " - " + maxDelayMs);
+            this.reconnectDelayMs = delayMs;
+            this.maxReconnectDelayMs = maxDelayMs;
+            return this;
+        }
+
+        /**
+         * Any other AVOption understood by the RTSP demuxer or avformat.
+         */
+        public Builder set(String key, String value) {
+            if (key == null || value == null)
+                throw new NullPointerException("key and value must not be null");
+            options.put(key, value);
+            return this;
+        }
+
+        public Builder remove(String key) {
+            options.remove(key);
+            return this;
+        }
+
+        public RtspOptions build() {
+            return new RtspOptions(this);
+        }
+
+        private static long requireNotNegative(long value) {
+            if (value < 0)
+                throw new IllegalArgumentException("Value must not be negative: " + value);
+            return value;
+        }
+    }
+}
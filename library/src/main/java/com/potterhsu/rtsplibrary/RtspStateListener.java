@@ -0,0 +1,15 @@
+package com.potterhsu.rtsplibrary;
+
+/**
+ * Follows the connection of an {@link RtspClient}.  Called on the executor given to
+ * {@link RtspClient#setCallbackExecutor}, in order with the frames, or on the network thread
+ * without one.
+ */
+public interface RtspStateListener {
+    /**
+     * @param state {@link RtspClient#STATE_CONNECTING}, {@link RtspClient#STATE_PLAYING},
+     *              {@link RtspClient#STATE_STALLED}, {@link RtspClient#STATE_RECONNECTING} or
+     *              {@link RtspClient#STATE_CLOSED}
+     */
+    void onStateChanged(RtspClient client, int state);
+}
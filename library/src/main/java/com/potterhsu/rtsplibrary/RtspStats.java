@@ -0,0 +1,215 @@
+package com.potterhsu.rtsplibrary;
+
+/**
+ * Snapshot of the counters and latency histograms of one {@link RtspClient}, taken by
+ * {@link RtspClient#getStats()}.  Counters accumulate over the lifetime of the client, diff two
+ * snapshots to get rates over an interval.
+ * <p>
+ * Durations are kept in log2 histograms: bucket {@code i} counts samples below
+ * {@code 2^(i + 1)} microseconds (and not in a lower bucket), the last bucket everything longer.
+ */
+public final class RtspStats {
+
+    /** Waiting for av_read_frame, i.e. for the network */
+    public static final int STAGE_READ = 0;
+    /** Decoding one packet */
+    public static final int STAGE_DECODE = 1;
+    /** Cropping, scaling and colour converting, or copying, one frame */
+    public static final int STAGE_SCALE = 2;
+    /** Time spent in the Java callback */
+    public static final int STAGE_CALLBACK = 3;
+    /**
+     * PTS to delivery: how much later than expected from its PTS a frame was handed to the
+     * callback.  The expectation is anchored on the fastest packet seen, so this covers network
+     * jitter, buffering and every stage in between, but not the constant part of the delay.
+     */
+    public static final int STAGE_LATENCY = 4;
+    private static final int STAGE_COUNT = 5;
+
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    // Layout of the values written by the native side, see stats.h
+    static final int COUNTER_PACKETS = 0;
+    static final int COUNTER_BYTES = 1;
+    static final int COUNTER_BITRATE = 2;
+    static final int COUNTER_CORRUPT_PACKETS = 3;
+    static final int COUNTER_DROPPED_PACKETS = 4;
+    static final int COUNTER_DECODER_ERRORS = 5;
+    static final int COUNTER_DECODED_FRAMES = 6;
+    static final int COUNTER_DROPPED_FRAMES = 7;
+    static final int COUNTER_DELIVERED_FRAMES = 8;
+    static final int COUNTER_RECONNECTS = 9;
+    static final int COUNTER_PLAYOUT_DELAY = 10;
+    static final int COUNTER_QUEUE_DEPTH = 11;
+    private static final int COUNTER_COUNT = 12;
+    private static final int STAGE_SIZE = 3 + HISTOGRAM_BUCKETS;
+    static final int SNAPSHOT_SIZE = COUNTER_COUNT + STAGE_COUNT * STAGE_SIZE;
+
+    private final long[] values;
+
+    RtspStats(long[] values) {
+        this.values = values;
+    }
+
+    /** Video packets received */
+    public long getPacketCount() {
+        return values[COUNTER_PACKETS];
+    }
+
+    /** Video bytes received */
+    public long getByteCount() {
+        return values[COUNTER_BYTES];
+    }
+
+    /** Video bitrate over the last second, in bits per second */
+    public long getBitrate() {
+        return values[COUNTER_BITRATE];
+    }
+
+    /** Packets the demuxer flagged as corrupt, typically after RTP packet loss */
+    public long getCorruptPacketCount() {
+        return values[COUNTER_CORRUPT_PACKETS];
+    }
+
+    /** Packets dropped by the packet queue of a pipelined client */
+    public long getDroppedPacketCount() {
+        return values[COUNTER_DROPPED_PACKETS];
+    }
+
+    /** Packets the decoder failed on */
+    public long getDecoderErrorCount() {
+        return values[COUNTER_DECODER_ERRORS];
+    }
+
+    public long getDecodedFrameCount() {
+        return values[COUNTER_DECODED_FRAMES];
+    }
+
+    /**
+     * Frames dropped by the frame queues or because Java still held every buffer.  Frames
+     * skipped for {@link RtspClient#setTargetFps} don't count.
+     */
+    public long getDroppedFrameCount() {
+        return values[COUNTER_DROPPED_FRAMES];
+    }
+
+    /** Frames, or packets with a {@link NativePacketCallback}, handed to the callback */
+    public long getDeliveredFrameCount() {
+        return values[COUNTER_DELIVERED_FRAMES];
+    }
+
+    /** Reconnects after the stream ended, stalled or couldn't be opened */
+    public long getReconnectCount() {
+        return values[COUNTER_RECONNECTS];
+    }
+
+    /** Current delay of the playout stage, see {@link RtspClient#setPlayoutDelay} */
+    public long getPlayoutDelayUs() {
+        return values[COUNTER_PLAYOUT_DELAY];
+    }
+
+    /**
+     * Packets and frames currently waiting between the stages of a pipelined client, or in the
+     * {@link StreamManager} queue of a scheduled one.  Always 0 otherwise.
+     */
+    public long getQueueDepth() {
+        return values[COUNTER_QUEUE_DEPTH];
+    }
+
+    /**
+     * @param stage {@link #STAGE_READ}, {@link #STAGE_DECODE}, {@link #STAGE_SCALE},
+     *              {@link #STAGE_CALLBACK} or {@link #STAGE_LATENCY}
+     */
+    public long getSampleCount(int stage) {
+        return values[stageOffset(stage)];
+    }
+
+    public long getAverageUs(int stage) {
+        long count = getSampleCount(stage);
+        return count > 0 ? values[stageOffset(stage) + 1] / count : 0;
+    }
+
+    public long getMaxUs(int stage) {
+        return values[stageOffset(stage) + 2];
+    }
+
+    /**
+     * Upper bound of the histogram bucket holding the given percentile.
+     * @param percentile between 0 and 100
+     */
+    public long getPercentileUs(int stage, double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        int offset = stageOffset(stage) + 3;
+        long total = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            total += values[offset + i];
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS - 1; i++) {
+            seen += values[offset + i];
+            if (seen >= rank && seen > 0)
+                return 2L << i;
+        }
+        return getMaxUs(stage);
+    }
+
+    /**
+     * @return copy of the {@link #HISTOGRAM_BUCKETS} bucket counts
+     */
+    public long[] getHistogram(int stage) {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        System.arraycopy(values, stageOffset(stage) + 3, histogram, 0, HISTOGRAM_BUCKETS);
+        return histogram;
+    }
+
+    /**
+     * Counters and histograms accumulated since an earlier snapshot of the same client.  Gauges,
+     * like the bitrate and the queue depth, and the maximum durations keep this snapshot's
+     * values.
+     */
+    public RtspStats since(RtspStats earlier) {
+        long[] delta = new long[SNAPSHOT_SIZE];
+        for (int i = 0; i < SNAPSHOT_SIZE; i++) {
+            delta[i] = values[i] - earlier.values[i];
+        }
+        delta[COUNTER_BITRATE] = values[COUNTER_BITRATE];
+        delta[COUNTER_PLAYOUT_DELAY] = values[COUNTER_PLAYOUT_DELAY];
+        delta[COUNTER_QUEUE_DEPTH] = values[COUNTER_QUEUE_DEPTH];
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            int max = COUNTER_COUNT + stage * STAGE_SIZE + 2;
+            delta[max] = values[max];
+        }
+        return new RtspStats(delta);
+    }
+
+    private static int stageOffset(int stage) {
+        if (stage < STAGE_READ || stage > STAGE_LATENCY)
+            throw new IllegalArgumentException("Invalid stage: " + stage);
+        return COUNTER_COUNT + stage * STAGE_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("RtspStats{packets=").append(getPacketCount())
+                .append(", bitrate=").append(getBitrate())
+                .append(", corrupt=").append(getCorruptPacketCount())
+                .append(", droppedPackets=").append(getDroppedPacketCount())
+                .append(", decoderErrors=").append(getDecoderErrorCount())
+                .append(", decoded=").append(getDecodedFrameCount())
+                .append(", droppedFrames=").append(getDroppedFrameCount())
+                .append(", delivered=").append(getDeliveredFrameCount())
+                .append(", reconnects=").append(getReconnectCount())
+                .append(", playoutDelay=").append(getPlayoutDelayUs())
+                .append(", queueDepth=").append(getQueueDepth());
+        String[] names = {"read", "decode", "scale", "callback", "latency"};
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            builder.append(", ").append(names[stage])
+                    .append("=").append(getAverageUs(stage))
+                    .append("/").append(getPercentileUs(stage, 99))
+                    .append("/").append(getMaxUs(stage)).append("us");
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,56 @@
+package com.potterhsu.rtsplibrary;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time and in order on top of a shared executor, so a few threads can serve
+ * many clients without any client seeing its callbacks concurrently or out of order.
+ */
+final class SerialExecutor implements Executor {
+
+    private static final String TAG = SerialExecutor.class.getSimpleName();
+    /** Tasks run per turn on the shared executor before giving other clients a chance */
+    private static final int BATCH_SIZE = 16;
+
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final Runnable drain = this::drain;
+    private boolean scheduled;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        executor.execute(drain);
+    }
+
+    private void drain() {
+        for (int n = 0; n < BATCH_SIZE; n++) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Callback failed", e);
+            }
+        }
+        executor.execute(drain);
+    }
+}
@@ -0,0 +1,124 @@
+package com.potterhsu.rtsplibrary;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One RTSP connection feeding any number of {@link RtspClient}s, e.g. a preview, an analysis
+ * stream and a recorder of the same camera, without opening the camera once per consumer.
+ * The stream is read and decoded once; every subscriber keeps its own callback, output format,
+ * output size and crop, frame rate, motion gate, playout delay and statistics.  Subscribers asking for the same
+ * format and output size share one conversion, {@link RtspClient#FORMAT_H264_ANNEXB}
+ * subscribers get the compressed packets.
+ * <p>
+ * Subscribers count as playing while subscribed, so they can't play on their own meanwhile.
+ * They can subscribe and unsubscribe at any time, also while the source is connecting or
+ * reconnecting, and get frames only while it plays.  Unsubscribing waits for a callback that
+ * runs on the source's thread or the subscriber's playout stage, so a subscriber without a
+ * callback executor must not unsubscribe from its own callback.
+ */
+public class SharedSource {
+
+    /** GOP cache of the connection, see {@link RtspClient#setGopCache} */
+    public static final long DEFAULT_GOP_CACHE_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_GOP_CACHE_DURATION_US = 8 * 1000000L;
+
+    private final RtspClient connection;
+    /**
+     * Keeps subscribing and unsubscribing in order.  They wait for deliveries in progress, so
+     * they don't hold this object's monitor, which guards the list alone.
+     */
+    private final Object changeLock = new Object();
+    private final List<RtspClient> subscribers = new ArrayList<>();
+    private boolean released;
+
+    public SharedSource() {
+        // Frames are only decoded for the subscribers, the connection never converts its own.
+        connection = new RtspClient(new NativeYuvCallback() {
+            @Override
+            public void onFrame(ByteBuffer frame, int bufferIndex, int width, int height, int yStride,
+                                int uvStride) {
+                connection.releaseFrame(bufferIndex);
+            }
+        }, 1);
+        connection.setLatestFrameOnly(true);
+        // Lets packet subscribers start from the last keyframe
+        connection.setGopCache(DEFAULT_GOP_CACHE_BYTES, DEFAULT_GOP_CACHE_DURATION_US);
+    }
+
+    /**
+     * The client holding the connection, for its options, state listener, statistics,
+     * recording and {@link RtspClient#grabLatest} snapshots.  Its decoder settings, pipelining
+     * and {@link StreamManager} apply to the subscribers.
+     */
+    public RtspClient getConnection() {
+        return connection;
+    }
+
+    /**
+     * @throws IllegalStateException if the client is playing, disposed or subscribed elsewhere
+     */
+    public void subscribe(RtspClient client) {
+        synchronized (changeLock) {
+            synchronized (this) {
+                if (released)
+                    throw new IllegalStateException("SharedSource is released");
+                if (client == connection)
+                    throw new IllegalArgumentException("The connection cannot subscribe to itself");
+            }
+            client.attach(this, connection);
+            synchronized (this) {
+                subscribers.add(client);
+            }
+        }
+    }
+
+    /**
+     * The client stops receiving right away and can play on its own again.
+     */
+    public void unsubscribe(RtspClient client) {
+        synchronized (changeLock) {
+            synchronized (this) {
+                if (!subscribers.remove(client))
+                    return;
+            }
+            client.detach(connection);
+        }
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Connect on a thread of its own, see {@link RtspClient#start}.
+     */
+    public CompletableFuture<Void> start(String endpoint, RtspOptions options) {
+        return connection.start(endpoint, options);
+    }
+
+    public CompletableFuture<Void> stopAsync() {
+        return connection.stopAsync();
+    }
+
+    /**
+     * Unsubscribes every client, which stay usable, and closes the connection.
+     */
+    public void release() {
+        synchronized (changeLock) {
+            List<RtspClient> detached;
+            synchronized (this) {
+                if (released)
+                    return;
+                released = true;
+                detached = new ArrayList<>(subscribers);
+                subscribers.clear();
+            }
+            for (RtspClient client : detached)
+                client.detach(connection);
+            connection.dispose();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.potterhsu.rtsplibrary;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes many {@link RtspClient}s on one fixed pool of worker threads, for camera walls where
+ * a thread per stream would have every stream compete for the cores.  Each client still reads
+ * from the network on its own play() thread, while the workers decode, convert and deliver
+ * for all of them, serving the stream with the highest priority first.  Streams that fall a
+ * whole packet queue behind drop to their next keyframe.
+ * <p>
+ * Priorities take effect right away, attaching and detaching clients on their next call to
+ * {@link RtspClient#play}.  Decode mode, frame rate and output size stay per client and can be
+ * changed while playing, e.g. with {@link #focus}.
+ */
+public class StreamManager {
+
+    /** Served before any other stream */
+    public static final int PRIORITY_FOCUSED = 100;
+    public static final int PRIORITY_NORMAL = 0;
+    /** Only decoded while no other stream is waiting */
+    public static final int PRIORITY_BACKGROUND = -100;
+
+    private final Map<RtspClient, Integer> clients = new HashMap<>();
+    private long nativeHandle;
+
+    static {
+        System.loadLibrary("rtsp");
+    }
+
+    /**
+     * One worker per core, up to 8.
+     */
+    public StreamManager() {
+        this(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8)));
+    }
+
+    /**
+     * @param workerCount number of decoding threads shared by all clients, at least one
+     */
+    public StreamManager(int workerCount) {
+        if (workerCount <= 0)
+            throw new IllegalArgumentException("workerCount must be positive: " + workerCount);
+        this.nativeHandle = createScheduler(workerCount);
+    }
+
+    /**
+     * Decode the client on the worker pool from its next call to play() on.  The pool decodes
+     * streams in parallel, so the client's decoder is switched to a single slice thread.
+     * {@link RtspClient#setPipelined} has no effect while added.
+     * @param priority higher is served first, e.g. {@link #PRIORITY_FOCUSED}
+     */
+    public synchronized void add(RtspClient client, int priority) {
+        requireNotReleased();
+        if (client.getOutputFormat() == RtspClient.FORMAT_H264_ANNEXB)
+            throw new IllegalArgumentException("Packet clients don't decode");
+        client.setDecoderThreads(1, RtspClient.THREAD_TYPE_SLICE);
+        client.setScheduler(nativeHandle, priority);
+        clients.put(client, priority);
+    }
+
+    /**
+     * Takes effect right away.
+     */
+    public synchronized void setPriority(RtspClient client, int priority) {
+        requireNotReleased();
+        if (!clients.containsKey(client))
+            throw new IllegalArgumentException("Client was not added");
+        client.setScheduler(nativeHandle, priority);
+        clients.put(client, priority);
+    }
+
+    public synchronized int getPriority(RtspClient client) {
+        Integer priority = clients.get(client);
+        if (priority == null)
+            throw new IllegalArgumentException("Client was not added");
+        return priority;
+    }
+
+    /**
+     * Decode the client on its own play() thread again from its next call to play() on.
+     */
+    public synchronized void remove(RtspClient client) {
+        if (clients.remove(client) != null) {
+            client.setScheduler(0, 0);
+            client.setManagedDecodeMode(RtspClient.DECODE_ALL);
+        }
+    }
+
+    /**
+     * Give one client the full frame rate and everything else only keyframes, as for a wall
+     * with one enlarged tile.  Decode modes set on the clients are kept and apply again once
+     * they are back in focus.
+     * @param focused client to show in full, null to play every client in full
+     */
+    public synchronized void focus(RtspClient focused) {
+        for (RtspClient client : clients.keySet()) {
+            if (focused == null)
+                setPriority(client, PRIORITY_NORMAL);
+            else
+                setPriority(client, client == focused ? PRIORITY_FOCUSED : PRIORITY_BACKGROUND);
+            boolean full = focused == null || client == focused;
+            client.setManagedDecodeMode(full ? RtspClient.DECODE_ALL : RtspClient.DECODE_KEYFRAMES);
+        }
+    }
+
+    /**
+     * Detaches every client and shuts the workers down once clients still playing on them
+     * have stopped.
+     */
+    public synchronized void release() {
+        if (nativeHandle == 0)
+            return;
+        for (RtspClient client : clients.keySet()) {
+            client.setScheduler(0, 0);
+            client.setManagedDecodeMode(RtspClient.DECODE_ALL);
+        }
+        clients.clear();
+        releaseScheduler(nativeHandle);
+        nativeHandle = 0;
+    }
+
+    private void requireNotReleased() {
+        if (nativeHandle == 0)
+            throw new IllegalStateException("StreamManager was released");
+    }
+
+    private static native long createScheduler(int workerCount);
+    private static native void releaseScheduler(long handle);
+}
@@ -0,0 +1,68 @@
+package com.potterhsu.rtsplibrary.gl;
+
+import android.content.Context;
+import android.opengl.GLSurfaceView;
+import android.util.AttributeSet;
+
+import com.potterhsu.rtsplibrary.NativeBufferCallback;
+import com.potterhsu.rtsplibrary.NativeYuvCallback;
+import com.potterhsu.rtsplibrary.RtspClient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GLSurfaceView showing the frames of a pooled {@link RtspClient} through an
+ * {@link RtspRenderer}.  Pass the view itself as the client's callback, as
+ * {@link NativeYuvCallback} for YUV (cheapest) or {@link NativeBufferCallback} for RGB:
+ * <pre>
+ * RtspClient client = new RtspClient((NativeYuvCallback) view, 3);
+ * view.setClient(client);
+ * </pre>
+ * Only renders when a frame arrives.  Two buffers are enough, one being drawn while the next
+ * is decoded.
+ */
+public class RtspGLView extends GLSurfaceView implements NativeYuvCallback, NativeBufferCallback {
+
+    private final RtspRenderer renderer = new RtspRenderer();
+
+    public RtspGLView(Context context) {
+        this(context, null);
+    }
+
+    public RtspGLView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setEGLContextClientVersion(3);
+        setRenderer(renderer);
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+    }
+
+    /**
+     * Client whose frames are shown, needed to hand its buffers back.
+     */
+    public void setClient(RtspClient client) {
+        renderer.setClient(client);
+    }
+
+    public RtspRenderer getRenderer() {
+        return renderer;
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, int bufferIndex, int width, int height, int yStride, int uvStride) {
+        renderer.submitYuv(frame, bufferIndex, width, height, yStride, uvStride);
+        requestRender();
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, int bufferIndex, int nChannel, int width, int height) {
+        renderer.submitRgb(frame, bufferIndex, width, height);
+        requestRender();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        // The GL thread won't draw again until onResume()
+        renderer.releasePending();
+    }
+}
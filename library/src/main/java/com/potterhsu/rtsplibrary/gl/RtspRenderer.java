@@ -0,0 +1,409 @@
+package com.potterhsu.rtsplibrary.gl;
+
+import android.opengl.GLES30;
+import android.opengl.GLSurfaceView;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import com.potterhsu.rtsplibrary.NativeBufferCallback;
+import com.potterhsu.rtsplibrary.NativeYuvCallback;
+import com.potterhsu.rtsplibrary.RtspClient;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Draws frames from a pooled {@link RtspClient}, RGB or YUV420P, letterboxed into the surface.
+ * <p>
+ * Frames are taken straight from the native buffer pool without copying on the decoder's
+ * thread: the newest one is held until the next draw, older ones are released right away.
+ * On the GL thread the frame goes into one of two pixel buffer objects, alternating so the
+ * driver never waits for the previous transfer, and the textures are updated from there
+ * asynchronously.  The buffer is handed back to the client as soon as it is in the pixel
+ * buffer.  YUV is converted to RGB in the fragment shader.  Geometry, uniforms and GL objects
+ * are all created with the surface, so steady state drawing allocates nothing.
+ * Requires OpenGL ES 3.0.
+ */
+public class RtspRenderer implements GLSurfaceView.Renderer {
+
+    private static final String TAG = RtspRenderer.class.getSimpleName();
+
+    private static final String VERTEX_SHADER =
+            "#version 300 es\n" +
+            "uniform mat4 matrixProjectionAndView;\n" +
+            "layout(location = 0) in vec2 position;\n" +
+            "layout(location = 1) in vec2 texturePosition;\n" +
+            "out vec2 texturePositionO;\n" +
+            "void main() {\n" +
+            "    gl_Position = matrixProjectionAndView * vec4(position, 0.0, 1.0);\n" +
+            "    texturePositionO = texturePosition;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_RGB =
+            "#version 300 es\n" +
+            "uniform sampler2D image;\n" +
+            "in mediump vec2 texturePositionO;\n" +
+            "out mediump vec4 fragColor;\n" +
+            "void main() {\n" +
+            "    fragColor = vec4(texture(image, texturePositionO).rgb, 1.0);\n" +
+            "}\n";
+
+    // BT.601 limited range to RGB, one single channel texture per plane
+    private static final String FRAGMENT_SHADER_YUV =
+            "#version 300 es\n" +
+            "uniform sampler2D imageY;\n" +
+            "uniform sampler2D imageU;\n" +
+            "uniform sampler2D imageV;\n" +
+            "in mediump vec2 texturePositionO;\n" +
+            "out mediump vec4 fragColor;\n" +
+            "void main() {\n" +
+            "    mediump float y = 1.1644 * (texture(imageY, texturePositionO).r - 0.0625);\n" +
+            "    mediump float u = texture(imageU, texturePositionO).r - 0.5;\n" +
+            "    mediump float v = texture(imageV, texturePositionO).r - 0.5;\n" +
+            "    fragColor = vec4(y + 1.5960 * v,\n" +
+            "                     y - 0.3918 * u - 0.8130 * v,\n" +
+            "                     y + 2.0172 * u,\n" +
+            "                     1.0);\n" +
+            "}\n";
+
+    // Unit square as a triangle strip, position xy then texture uv per vertex
+    private static final float[] QUAD = {
+            0f, 0f, 0f, 0f,
+            0f, 1f, 0f, 1f,
+            1f, 0f, 1f, 0f,
+            1f, 1f, 1f, 1f,
+    };
+    private static final int VERTEX_STRIDE = 4 * 4;
+
+    private final Object pendingLock = new Object();
+    private RtspClient client;
+    // Newest frame not drawn yet, owned by the renderer until released back to the client
+    private ByteBuffer pendingFrame;
+    private int pendingIndex = -1;
+    private int pendingFormat;
+    private int pendingWidth;
+    private int pendingHeight;
+    private int pendingYStride;
+    private int pendingUvStride;
+
+    // Only touched on the GL thread
+    private boolean ready;
+    private int programRgb;
+    private int programYuv;
+    private int matrixRgb;
+    private int matrixYuv;
+    private final int[] textures = new int[3];
+    private final int[] pixelBuffers = new int[2];
+    private final int[] quadBuffer = new int[1];
+    private int nextPixelBuffer;
+    private int frameFormat = -1;
+    private int frameWidth;
+    private int frameHeight;
+    private int viewWidth;
+    private int viewHeight;
+    private final float[] projection = new float[16];
+    private final float[] model = new float[16];
+    private final float[] mvp = new float[16];
+
+    /**
+     * Client to hand buffers back to, set before the first frame arrives.
+     */
+    public void setClient(RtspClient client) {
+        synchronized (pendingLock) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * Takes a frame from {@link NativeYuvCallback#onFrame}, the caller then requests a render.
+     */
+    public void submitYuv(ByteBuffer frame, int bufferIndex, int width, int height, int yStride, int uvStride) {
+        submit(frame, bufferIndex, RtspClient.FORMAT_YUV420P, width, height, yStride, uvStride);
+    }
+
+    /**
+     * Takes a frame from {@link NativeBufferCallback#onFrame}, the caller then requests a render.
+     */
+    public void submitRgb(ByteBuffer frame, int bufferIndex, int width, int height) {
+        submit(frame, bufferIndex, RtspClient.FORMAT_RGB24, width, height, width * 3, 0);
+    }
+
+    private void submit(ByteBuffer frame, int bufferIndex, int format, int width, int height,
+                        int yStride, int uvStride) {
+        int replaced;
+        RtspClient client;
+        synchronized (pendingLock) {
+            replaced = pendingIndex;
+            client = this.client;
+            pendingFrame = frame;
+            pendingIndex = bufferIndex;
+            pendingFormat = format;
+            pendingWidth = width;
+            pendingHeight = height;
+            pendingYStride = yStride;
+            pendingUvStride = uvStride;
+        }
+        // The previous frame was never drawn, the new one supersedes it.
+        if (replaced >= 0)
+            client.releaseFrame(replaced);
+    }
+
+    /**
+     * Hands back a frame that wasn't drawn yet, e.g. when the surface goes away.
+     */
+    public void releasePending() {
+        int index;
+        RtspClient client;
+        synchronized (pendingLock) {
+            index = pendingIndex;
+            client = this.client;
+            pendingFrame = null;
+            pendingIndex = -1;
+        }
+        if (index >= 0)
+            client.releaseFrame(index);
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl10, EGLConfig eglConfig) {
+        GLES30.glClearColor(0f, 0f, 0f, 1f);
+        GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+
+        // The old context and everything in it is gone
+        ready = false;
+        frameFormat = -1;
+        programRgb = loadProgram(VERTEX_SHADER, FRAGMENT_SHADER_RGB);
+        programYuv = loadProgram(VERTEX_SHADER, FRAGMENT_SHADER_YUV);
+        if (programRgb == 0 || programYuv == 0)
+            return;
+
+        matrixRgb = GLES30.glGetUniformLocation(programRgb, "matrixProjectionAndView");
+        GLES30.glUseProgram(programRgb);
+        GLES30.glUniform1i(GLES30.glGetUniformLocation(programRgb, "image"), 0);
+        matrixYuv = GLES30.glGetUniformLocation(programYuv, "matrixProjectionAndView");
+        GLES30.glUseProgram(programYuv);
+        GLES30.glUniform1i(GLES30.glGetUniformLocation(programYuv, "imageY"), 0);
+        GLES30.glUniform1i(GLES30.glGetUniformLocation(programYuv, "imageU"), 1);
+        GLES30.glUniform1i(GLES30.glGetUniformLocation(programYuv, "imageV"), 2);
+        GLES30.glUseProgram(0);
+
+        GLES30.glGenTextures(textures.length, textures, 0);
+        GLES30.glGenBuffers(pixelBuffers.length, pixelBuffers, 0);
+        GLES30.glGenBuffers(1, quadBuffer, 0);
+
+        FloatBuffer quad = ByteBuffer.allocateDirect(QUAD.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        quad.put(QUAD).position(0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, quadBuffer[0]);
+        GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, QUAD.length * 4, quad, GLES30.GL_STATIC_DRAW);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+        ready = true;
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl10, int width, int height) {
+        GLES30.glViewport(0, 0, width, height);
+        viewWidth = width;
+        viewHeight = height;
+        updateGeometry();
+    }
+
+    @Override
+    public void onDrawFrame(GL10 gl10) {
+        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+        if (!ready) {
+            releasePending();
+            return;
+        }
+
+        ByteBuffer frame;
+        int index;
+        int format;
+        int width;
+        int height;
+        int yStride;
+        int uvStride;
+        RtspClient client;
+        synchronized (pendingLock) {
+            frame = pendingFrame;
+            index = pendingIndex;
+            format = pendingFormat;
+            width = pendingWidth;
+            height = pendingHeight;
+            yStride = pendingYStride;
+            uvStride = pendingUvStride;
+            client = this.client;
+            pendingFrame = null;
+            pendingIndex = -1;
+        }
+        if (index >= 0) {
+            upload(frame, format, width, height, yStride, uvStride);
+            client.releaseFrame(index);
+        }
+
+        if (frameFormat < 0 || viewWidth == 0 || viewHeight == 0)
+            return;
+        draw();
+    }
+
+    /**
+     * Copies the frame into the next pixel buffer and starts the transfer to the textures,
+     * which runs on without blocking this thread.
+     */
+    private void upload(ByteBuffer frame, int format, int width, int height, int yStride, int uvStride) {
+        if (format != frameFormat || width != frameWidth || height != frameHeight)
+            allocateTextures(format, width, height);
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int ySize = yStride * height;
+        int uvSize = uvStride * chromaHeight;
+        int size = format == RtspClient.FORMAT_YUV420P ? ySize + 2 * uvSize : ySize;
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, pixelBuffers[nextPixelBuffer]);
+        nextPixelBuffer = (nextPixelBuffer + 1) % pixelBuffers.length;
+        frame.clear();
+        // Fresh storage each time, so the copy never waits for a transfer still reading it
+        GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, frame, GLES30.GL_STREAM_DRAW);
+
+        GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
+        if (format == RtspClient.FORMAT_YUV420P) {
+            uploadPlane(textures[0], width, height, yStride, GLES30.GL_RED, 0);
+            uploadPlane(textures[1], chromaWidth, chromaHeight, uvStride, GLES30.GL_RED, ySize);
+            uploadPlane(textures[2], chromaWidth, chromaHeight, uvStride, GLES30.GL_RED, ySize + uvSize);
+        } else {
+            uploadPlane(textures[0], width, height, 0, GLES30.GL_RGB, 0);
+        }
+        GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * @param rowLength pixels between the starts of two rows, 0 when rows are tightly packed
+     * @param offset of the plane in the bound pixel buffer
+     */
+    private static void uploadPlane(int texture, int width, int height, int rowLength, int glFormat, int offset) {
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture);
+        GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, rowLength);
+        GLES30.glTexSubImage2D(GLES30.GL_TEXTURE_2D, 0, 0, 0, width, height, glFormat,
+                GLES30.GL_UNSIGNED_BYTE, offset);
+    }
+
+    /**
+     * Texture storage is only reallocated when the frame format or size changes.
+     */
+    private void allocateTextures(int format, int width, int height) {
+        if (format == RtspClient.FORMAT_YUV420P) {
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            allocateTexture(textures[0], width, height, GLES30.GL_R8, GLES30.GL_RED);
+            allocateTexture(textures[1], chromaWidth, chromaHeight, GLES30.GL_R8, GLES30.GL_RED);
+            allocateTexture(textures[2], chromaWidth, chromaHeight, GLES30.GL_R8, GLES30.GL_RED);
+        } else {
+            allocateTexture(textures[0], width, height, GLES30.GL_RGB8, GLES30.GL_RGB);
+        }
+        frameFormat = format;
+        frameWidth = width;
+        frameHeight = height;
+        updateGeometry();
+    }
+
+    private static void allocateTexture(int texture, int width, int height, int internalFormat, int glFormat) {
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+        GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, internalFormat, width, height, 0, glFormat,
+                GLES30.GL_UNSIGNED_BYTE, null);
+    }
+
+    /**
+     * Scales the unit square to the largest rectangle of the frame's aspect ratio that fits the
+     * view, centred.  Only runs when either size changes.
+     */
+    private void updateGeometry() {
+        if (viewWidth == 0 || viewHeight == 0 || frameWidth == 0 || frameHeight == 0)
+            return;
+        float scale = Math.min((float) viewWidth / frameWidth, (float) viewHeight / frameHeight);
+        float width = frameWidth * scale;
+        float height = frameHeight * scale;
+        Matrix.orthoM(projection, 0, 0, viewWidth, viewHeight, 0, -1, 1);
+        Matrix.setIdentityM(model, 0);
+        Matrix.translateM(model, 0, (viewWidth - width) / 2, (viewHeight - height) / 2, 0);
+        Matrix.scaleM(model, 0, width, height, 1);
+        Matrix.multiplyMM(mvp, 0, projection, 0, model, 0);
+    }
+
+    private void draw() {
+        boolean yuv = frameFormat == RtspClient.FORMAT_YUV420P;
+        GLES30.glUseProgram(yuv ? programYuv : programRgb);
+        GLES30.glUniformMatrix4fv(yuv ? matrixYuv : matrixRgb, 1, false, mvp, 0);
+        int planes = yuv ? 3 : 1;
+        for (int i = 0; i < planes; i++) {
+            GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + i);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, textures[i]);
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, quadBuffer[0]);
+        GLES30.glEnableVertexAttribArray(0);
+        GLES30.glVertexAttribPointer(0, 2, GLES30.GL_FLOAT, false, VERTEX_STRIDE, 0);
+        GLES30.glEnableVertexAttribArray(1);
+        GLES30.glVertexAttribPointer(1, 2, GLES30.GL_FLOAT, false, VERTEX_STRIDE, 2 * 4);
+        GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+        for (int i = planes - 1; i >= 0; i--) {
+            GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + i);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        }
+        GLES30.glUseProgram(0);
+    }
+
+    private static int loadShader(String source, int type) {
+        int[] compiled = new int[1];
+        int shader = GLES30.glCreateShader(type);
+        GLES30.glShaderSource(shader, source);
+        GLES30.glCompileShader(shader);
+        GLES30.glGetShaderiv(shader, GLES30.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e(TAG, "Shader compilation failed: " + GLES30.glGetShaderInfoLog(shader));
+            GLES30.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    private static int loadProgram(String vertexSource, String fragmentSource) {
+        int vertex = loadShader(vertexSource, GLES30.GL_VERTEX_SHADER);
+        if (vertex == 0)
+            return 0;
+        int fragment = loadShader(fragmentSource, GLES30.GL_FRAGMENT_SHADER);
+        if (fragment == 0) {
+            GLES30.glDeleteShader(vertex);
+            return 0;
+        }
+
+        int program = GLES30.glCreateProgram();
+        int[] linked = new int[1];
+        GLES30.glAttachShader(program, vertex);
+        GLES30.glAttachShader(program, fragment);
+        GLES30.glLinkProgram(program);
+        GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, linked, 0);
+        GLES30.glDeleteShader(vertex);
+        GLES30.glDeleteShader(fragment);
+        if (linked[0] == 0) {
+            Log.e(TAG, "Program linking failed: " + GLES30.glGetProgramInfoLog(program));
+            GLES30.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+}
@@ -0,0 +1,122 @@
+// Host test of the pipeline channels, built with the host library and run by
+// ./gradlew :benchmark:test through ctest.
+
+#include <spsc_queue.h>
+
+#include <chrono>
+#include <stdio.h>
+#include <thread>
+#include <vector>
+
+#define CHECK(condition) \
+    do { \
+        if (!(condition)) { \
+            fprintf(stderr, "%s:%d: check failed: %s\n", __FILE__, __LINE__, #condition); \
+            return false; \
+        } \
+    } while (0)
+
+static const size_t CAPACITY = 4;
+
+static void discardInt(int item, void *opaque) {
+    static_cast<std::vector<int> *>(opaque)->push_back(item);
+}
+
+/**
+ * A consumer that never takes anything must not hold up the producer: every put() succeeds at
+ * once, handing back the oldest item, and the newest items stay queued.
+ */
+static bool testStalledConsumerDoesNotBlockPut() {
+    std::vector<int> discarded;
+    std::atomic<int64_t> drops(0);
+    StageChannel<int> channel(CAPACITY, DROP_POLICY_DROP_OLDEST, discardInt, &discarded, &drops);
+    std::atomic<bool> stop(false);
+    const int count = 100000;
+
+    std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+    for (int i = 0; i < count; i++) {
+        int oldest;
+        bool evicted;
+        CHECK(channel.put(i, false, stop, oldest, &evicted));
+        CHECK(evicted == (i >= (int) CAPACITY));
+        if (evicted) {
+            CHECK(oldest == i - (int) CAPACITY);
+        }
+    }
+    // Generous, a single wait for the consumer would be a 500 us sleep per put
+    CHECK(std::chrono::steady_clock::now() - start < std::chrono::seconds(5));
+    CHECK(drops.load() == count - (int) CAPACITY);
+    CHECK(channel.size() == CAPACITY);
+
+    // The consumer catches up to the newest item
+    int item;
+    bool flushed;
+    CHECK(channel.take(item, &flushed, stop));
+    CHECK(flushed);
+    CHECK(item == count - 1);
+    CHECK(discarded.size() == CAPACITY - 1);
+    return true;
+}
+
+/**
+ * Producer evictions racing a slow consumer: each item ends up taken, evicted or discarded
+ * exactly once, never twice.
+ */
+static bool testEvictionRacesConsumer() {
+    std::vector<int> discarded;
+    StageChannel<int> channel(CAPACITY, DROP_POLICY_DROP_OLDEST, discardInt, &discarded);
+    std::atomic<bool> stop(false);
+    const int count = 200000;
+    std::vector<int> evictedItems;
+
+    std::thread producer([&]() {
+        for (int i = 0; i < count; i++) {
+            int oldest;
+            bool evicted;
+            channel.put(i, false, stop, oldest, &evicted);
+            if (evicted) {
+                evictedItems.push_back(oldest);
+            }
+        }
+        channel.close();
+    });
+
+    std::vector<int> taken;
+    int item;
+    bool flushed;
+    while (channel.take(item, &flushed, stop)) {
+        taken.push_back(item);
+        if (taken.size() % 64 == 0) {
+            std::this_thread::sleep_for(std::chrono::microseconds(50));
+        }
+    }
+    producer.join();
+
+    std::vector<int> seen(count, 0);
+    for (size_t i = 0; i < taken.size(); i++) {
+        seen[taken[i]]++;
+    }
+    for (size_t i = 0; i < evictedItems.size(); i++) {
+        seen[evictedItems[i]]++;
+    }
+    for (size_t i = 0; i < discarded.size(); i++) {
+        seen[discarded[i]]++;
+    }
+    for (int i = 0; i < count; i++) {
+        CHECK(seen[i] == 1);
+    }
+    // Taken items keep their order
+    for (size_t i = 1; i < taken.size(); i++) {
+        CHECK(taken[i - 1] < taken[i]);
+    }
+    CHECK(taken.back() == count - 1);
+    return true;
+}
+
+int main() {
+    bool ok = true;
+    ok &= testStalledConsumerDoesNotBlockPut();
+    ok &= testEvictionRacesConsumer();
+    printf("%s\n", ok ? "OK" : "FAILED");
+    return ok ? 0 : 1;
+}